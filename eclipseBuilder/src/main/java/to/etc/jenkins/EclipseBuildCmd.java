@@ -142,6 +142,7 @@ public class EclipseBuildCmd {
 			//-- Start running JUnit tests in module build order.
 			OrderedBuildList obl = bbh.getOrderedBuildList();
 			JUnitTestRunner jtr = new JUnitTestRunner(listener, bdir, obl);
+			jtr.configure(getConfig());
 			jtr.runTests();
 			int utc = jtr.getFailedTestCount();
 			if(utc > 0) {
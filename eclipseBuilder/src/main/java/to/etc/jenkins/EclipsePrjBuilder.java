@@ -160,6 +160,7 @@ public class EclipsePrjBuilder extends Builder {
 			//-- Start running JUnit tests in module build order.
 			OrderedBuildList obl = bbh.getOrderedBuildList();
 			JUnitTestRunner jtr = new JUnitTestRunner(listener, bdir, obl);
+			jtr.configure(getConfig());
 			jtr.runTests();
 			Result r = Result.SUCCESS;
 			int utc = jtr.getFailedTestCount();
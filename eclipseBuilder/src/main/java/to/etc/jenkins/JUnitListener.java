@@ -1,16 +1,22 @@
 package to.etc.jenkins;
 
+import java.io.*;
 import java.util.*;
 
 import org.junit.runner.*;
 import org.junit.runner.notification.*;
 
+/**
+ * Collects the results of the tests of a module. The details of a finished test are written
+ * to a {@link JUnitXmlWriter} right away; only the run times and the names of the failed tests
+ * are kept. Tests can run at the same time, so the running tests are kept by display name.
+ */
 public class JUnitListener extends RunListener {
-	private List<ATest> m_testList = new ArrayList<ATest>();
-
 	static public class ATest {
 		private Description	m_description;
 
+		private long m_start;
+
 		private long m_duration;
 
 		private Failure m_failure;
@@ -50,9 +56,10 @@ public class JUnitListener extends RunListener {
 		}
 	}
 
-	private long m_ts_start;
+	/** The tests that started and did not finish yet, by display name. */
+	private Map<String, ATest> m_runningMap = new HashMap<String, ATest>();
 
-	private ATest m_test;
+	private int m_count;
 
 	private int m_failed;
 
@@ -60,56 +67,109 @@ public class JUnitListener extends RunListener {
 
 	private Date m_suiteStart;
 
+	/** The run time of every finished test by display name; the rest of a test is only passed to the writer. */
+	private Map<String, Long> m_durationMap = new HashMap<String, Long>();
+
+	private Set<String> m_failedSet = new HashSet<String>();
+
+	private JUnitXmlWriter m_writer;
+
+	/**
+	 * Set the writer that finished tests are written to.
+	 */
+	public synchronized void setWriter(JUnitXmlWriter writer) {
+		m_writer = writer;
+	}
+
 	@Override
-	public void testStarted(Description description) throws Exception {
-		m_ts_start = System.currentTimeMillis();
-		m_test = new ATest(description);
-		m_testList.add(m_test);
+	public synchronized void testStarted(Description description) throws Exception {
+		ATest at = new ATest(description);
+		at.m_start = System.currentTimeMillis();
+		m_runningMap.put(description.getDisplayName(), at);
 	}
 
 	@Override
-	public void testFinished(Description description) throws Exception {
+	public synchronized void testFinished(Description description) throws Exception {
 		long cts = System.currentTimeMillis();
-		m_test.setDuration(cts - m_ts_start);
-		m_test = null;
+		ATest at = m_runningMap.remove(description.getDisplayName());
+		if(at == null)
+			return;
+		at.setDuration(cts - at.m_start);
+		finish(at);
 	}
 
 	@Override
-	public void testFailure(Failure failure) throws Exception {
-		m_test.setFailure(failure);
+	public synchronized void testFailure(Failure failure) throws Exception {
+		ATest test = m_runningMap.get(failure.getDescription().getDisplayName());
+		if(test == null) {
+			//-- Failure outside of a test, like in a @BeforeClass method or in a dying test JVM
+			ATest at = new ATest(failure.getDescription());
+			at.setFailure(failure);
+			m_failed++;
+			finish(at);
+			return;
+		}
+		test.setFailure(failure);
 		m_failed++;
 	}
 
 	@Override
-	public void testIgnored(Description description) throws Exception {
-		m_test.setIgnored();
+	public synchronized void testIgnored(Description description) throws Exception {
+		//-- Ignored tests are not started.
+		ATest test = m_runningMap.get(description.getDisplayName());
+		if(test != null)
+			test.setIgnored();
 		m_ignored++;
 	}
 
-	public int getTestCount() {
-		return m_testList.size();
+	private void finish(ATest at) throws IOException {
+		String name = at.getDescription().getDisplayName();
+		m_count++;
+		m_durationMap.put(name, Long.valueOf(at.getDuration()));
+		if(at.getFailure() != null)
+			m_failedSet.add(name);
+		if(m_writer != null)
+			m_writer.testcase(at);
+	}
+
+	public synchronized int getTestCount() {
+		return m_count;
 	}
 
-	public int getFailedCount() {
+	public synchronized int getFailedCount() {
 		return m_failed;
 	}
 
-	public int getIgnoredCount() {
+	public synchronized int getIgnoredCount() {
 		return m_ignored;
 	}
 
-	public List<ATest> getTestList() {
-		return Collections.unmodifiableList(m_testList);
+	/**
+	 * The run time of all finished tests, by display name.
+	 */
+	public synchronized Map<String, Long> getTestDurations() {
+		return Collections.unmodifiableMap(m_durationMap);
+	}
+
+	/**
+	 * The display names of the failed tests.
+	 */
+	public synchronized Set<String> getFailedTests() {
+		return Collections.unmodifiableSet(m_failedSet);
 	}
 
-	public Date getSuiteStart() {
+	public synchronized Date getSuiteStart() {
 		return m_suiteStart;
 	}
 
-	public void reset() {
-		m_testList.clear();
+	public synchronized void reset() {
+		m_runningMap.clear();
+		m_count = 0;
 		m_failed = 0;
 		m_ignored = 0;
+		m_durationMap.clear();
+		m_failedSet.clear();
+		m_writer = null;
 		m_suiteStart = new Date();
 	}
 }
@@ -5,29 +5,29 @@ import hudson.model.*;
 
 import java.io.*;
 import java.net.*;
-import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.regex.*;
 
 import org.junit.runner.*;
 import org.junit.runner.Result;
 import org.junit.runner.notification.*;
 import org.junit.runner.notification.Failure;
-import org.objectweb.asm.*;
 
-import to.etc.jenkins.JUnitListener.ATest;
 import to.etc.prjbuilder.builder.*;
+import to.etc.prjbuilder.maker.*;
+import to.etc.prjbuilder.util.*;
 import to.etc.util.*;
-import to.etc.xml.*;
 
 /**
  * This very shoddily and quickly written class locates all JUnit test classes in all
  * projects and executes them.
  *
  * It walks all projects from low to high and executes Junit tests for each of them.
- * It locates JUnit test classes by using an asm ClassVisitor on all generated artifacts,
- * and check if the class has methods annotated with org.junit.Test. In that case that
- * class is a JUnit test class to execute.
+ * It locates JUnit test classes by scanning all generated class files for methods annotated
+ * with org.junit.Test, in the class or in one of its superclasses. The results are kept in a
+ * {@link TestClassIndex} per module, so only changed class files need to be scanned.
  *
  * The classes are executed per-project. After collecting all test classes for a project
  * the code creates a specific ClassLoader for just that project and it's dependencies
@@ -36,6 +36,27 @@ import to.etc.xml.*;
  * itself: it will try to remove any JUnit library from the build jars and substitute the
  * instance loaded by Jenkins itself.
  *
+ * Because every module has its own ClassLoader, modules can be tested concurrently; see
+ * {@link #setThreads(int)}. Every module then gets its own JUnitCore and listeners, and its
+ * console output is buffered and written in one piece, in module build order.
+ *
+ * When forking is enabled the tests do not run in this JVM but in worker JVM's from a
+ * {@link TestWorkerPool}, using the same classpath; test discovery and the result files
+ * are the same in both modes.
+ *
+ * A {@link TestSelector} decides which of the test classes are run; the tests that are not
+ * run are reported as skipped in the result file, so that the test trends in Jenkins do not
+ * jump around.
+ *
+ * The tests can also be split in shards that run in separate processes, possibly on separate
+ * machines; see {@link #setShard(String)}. The split uses the run times of the test classes
+ * from a {@link TestHistory}. Every shard writes its own result files, which are merged into
+ * the normal ones by {@link TestResultMerger}.
+ *
+ * Within a module the tests that failed recently run first, and then the slowest ones, using the
+ * {@link ModuleTestHistory} in the module's output directory. With fail-fast on, the test run
+ * stops after a number of failed tests, so that a broken build is reported quickly; the tests
+ * of the modules that did not run yet are reported as skipped.
  *
  * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
  * Created on Mar 3, 2012
@@ -47,13 +68,55 @@ public class JUnitTestRunner {
 
 	private final OrderedBuildList m_buildList;
 
-	private JUnitCore m_core;
+	private int m_failedTestCount;
 
-	private TestCaseClassVisitor m_scanner;
+	/** The #of modules whose tests run at the same time. */
+	private int m_threads = 1;
 
-	private int m_failedTestCount;
+	/** When set, tests run in forked JVM's. */
+	private boolean m_fork;
+
+	private List<String> m_forkJvmArgs = new ArrayList<String>();
+
+	/** Timeouts for a single test and for all tests of a module in forked JVM's, in millis; 0 means no timeout. */
+	private long m_testTimeout, m_moduleTimeout;
+
+	private TestWorkerPool m_pool;
+
+	/** The jar index used to recognize the same jars in different modules; null to use their path. */
+	private JarIndex m_jarIndex;
+
+	private TestClassLoaders m_loaders;
+
+	private TestSelectionMode m_selection = TestSelectionMode.ALL;
+
+	/** When set all tests are run, regardless of the selection mode. */
+	private boolean m_runAll;
 
-	final private JUnitListener m_jtl = new JUnitListener();
+	/** When > 0, all tests are run every this many test runs. */
+	private int m_runAllEvery;
+
+	private TestSelector m_selector;
+
+	/** The 0-based index of the shard to run, and the #of shards; 0 when not sharded. */
+	private int m_shardIndex, m_shardCount;
+
+	private File m_historyFile;
+
+	private TestHistory m_history;
+
+	/** When sharded, the module/class keys of the test classes of this shard. */
+	private Set<String> m_shardKeys;
+
+	/** When > 0, stop the test run after this many failed tests. */
+	private int m_failFast;
+
+	private final AtomicInteger m_failures = new AtomicInteger();
+
+	private volatile boolean m_stopped;
+
+	/** The notifiers of the modules whose tests run in this JVM, to stop them on fail-fast. */
+	private final List<RunNotifier> m_notifiers = new ArrayList<RunNotifier>();
 
 	public JUnitTestRunner(BuildListener listener, File workRoot, OrderedBuildList buildList) {
 		m_listener = listener;
@@ -61,147 +124,498 @@ public class JUnitTestRunner {
 		m_buildList = buildList;
 	}
 
-	public void runTests() throws Exception {
-		m_core = new JUnitCore();
-		m_core.addListener(new RunListener() {
-			boolean m_failed;
+	public int getThreads() {
+		return m_threads;
+	}
 
-			@Override
-			public void testStarted(Description description) throws Exception {
-				test("====== Test: " + description.getDisplayName() + " =====");
-				m_failed = false;
+	/**
+	 * Set the #of modules that are tested at the same time. With 1 (the default) all modules are
+	 * tested one after another, and their output is written as the tests run.
+	 */
+	public void setThreads(int threads) {
+		m_threads = threads;
+	}
+
+	/**
+	 * Only run one shard of the tests, specified as "index/count" with index 1..count. All shards
+	 * together run every test class once, provided they use the same test history. A shard does
+	 * not select tests by the changes in the build.
+	 */
+	public void setShard(String shard) {
+		int ix = shard.indexOf('/');
+		try {
+			if(ix > 0) {
+				int index = Integer.parseInt(shard.substring(0, ix).trim());
+				int count = Integer.parseInt(shard.substring(ix + 1).trim());
+				if(index >= 1 && index <= count) {
+					m_shardIndex = index - 1;
+					m_shardCount = count;
+					return;
+				}
 			}
+		} catch(NumberFormatException x) {}
+		throw new IllegalArgumentException("Invalid test shard '" + shard + "': it must be index/count, with index 1..count");
+	}
 
-			@Override
-			public void testFailure(Failure failure) throws Exception {
-				test("Failed: " + failure.getMessage());
-				test(filterTrace(failure.getException()));
-				m_failed = true;
-				m_failedTestCount++;
+	public void setHistoryFile(File historyFile) {
+		m_historyFile = historyFile;
+	}
+
+	/**
+	 * When > 0, stop the test run after this many failed tests.
+	 */
+	public void setFailFast(int failFast) {
+		m_failFast = failFast;
+	}
+
+	/**
+	 * Take the test settings from the configuration.
+	 */
+	public void configure(BuilderConfiguration bc) {
+		m_threads = bc.getTestThreads();
+		m_fork = bc.isTestFork();
+		m_forkJvmArgs = bc.getTestJvmArgs();
+		m_testTimeout = bc.getTestTimeout() * 1000L;
+		m_moduleTimeout = bc.getTestModuleTimeout() * 1000L;
+		m_selection = bc.getTestSelection();
+		m_runAllEvery = bc.getTestRunAllEvery();
+
+		//-- Running all tests can also be asked for per build, by a system property or environment variable.
+		m_runAll = bc.isTestRunAll() || Boolean.getBoolean("prjbuilder.test.runall") || "true".equalsIgnoreCase(System.getenv("PRJBUILDER_TEST_RUNALL"));
+		m_historyFile = bc.getTestHistoryFile();
+		m_failFast = bc.getTestFailFast();
+		m_jarIndex = bc.getJarIndex(new JenkinsReporter(m_listener));
+
+		//-- The shard is set per process.
+		String s = System.getProperty("prjbuilder.test.shard");
+		if(s == null)
+			s = System.getenv("PRJBUILDER_TEST_SHARD");
+		if(s != null && s.trim().length() > 0)
+			setShard(s.trim());
+	}
+
+	public void runTests() throws Exception {
+		if(m_fork)
+			m_pool = new TestWorkerPool(m_forkJvmArgs, m_testTimeout, m_moduleTimeout);
+		m_loaders = new TestClassLoaders(m_jarIndex, getClass().getClassLoader());
+		try {
+			m_history = TestHistory.load(m_historyFile != null ? m_historyFile : new File(m_workRoot, TestResultMerger.HISTORY_NAME));
+			m_selector = new TestSelector(m_shardCount > 0 ? TestSelectionMode.ALL : m_selection, m_workRoot, m_runAll, m_runAllEvery);
+			m_selector.prepare(m_buildList, m_listener.getLogger());
+			if(m_shardCount > 0)
+				selectShard();
+			registerModules();
+			runAllModules();
+
+			//-- Shards leave the shared state alone; the merge of their results updates the history.
+			if(m_shardCount == 0) {
+				//-- After a fail-fast stop the indexes are not saved, so the changes select the skipped tests again next time.
+				m_selector.save(!m_stopped);
+				m_history.save();
+			}
+		} finally {
+			if(m_pool != null) {
+				m_pool.close();
+				m_pool = null;
 			}
+			m_loaders.close();
+		}
+	}
 
+	/**
+	 * Count a failed test. When fail-fast is on and this is the failure that reaches the limit, stop
+	 * all running tests and return true.
+	 */
+	private boolean testFailed() {
+		if(m_failFast <= 0 || m_failures.incrementAndGet() != m_failFast)
+			return false;
+		m_stopped = true;
+		synchronized(m_notifiers) {
+			for(RunNotifier n : m_notifiers)
+				n.pleaseStop();
+		}
+		if(m_pool != null)
+			m_pool.stop();
+		return true;
+	}
+
+	/**
+	 * Determine the test classes of this shard, from the test classes of all modules.
+	 */
+	private void selectShard() {
+		List<String> keys = new ArrayList<String>();
+		for(ModuleBuildInfo mbi : m_buildList) {
+			List<File> outpaths = mbi.getMaker().getModuleOutputPaths(true);
+			if(outpaths.size() == 0)
+				continue;
+			for(String cn : m_selector.getIndex(mbi).getTestClasses(outpaths))
+				keys.add(TestHistory.key(mbi.getName(), cn));
+		}
+		m_shardKeys = m_history.getShard(keys, m_shardIndex, m_shardCount);
+		m_listener.getLogger().println("testrunner: Running shard " + (m_shardIndex + 1) + " of " + m_shardCount + ": " + m_shardKeys.size() + " of " + keys.size() + " test classes");
+	}
+
+	private void runAllModules() throws Exception {
+		if(m_threads <= 1) {
+			for(ModuleBuildInfo mbi : m_buildList) {
+				ModuleTestRun tr = new ModuleTestRun(mbi, m_listener.getLogger());
+				tr.run();
+				tr.reportErrors();
+				m_failedTestCount += tr.getFailedCount();
+			}
+			return;
+		}
+
+		ExecutorService es = Executors.newFixedThreadPool(m_threads, new ThreadFactory() {
 			@Override
-			public void testFinished(Description description) throws Exception {
-				if(!m_failed)
-					test("Test succesful");
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "junit");
+				t.setDaemon(true);
+				return t;
 			}
 		});
-		m_core.addListener(m_jtl);
+		try {
+			//-- Start all modules, each writing its output to a buffer
+			List<ByteArrayOutputStream> outl = new ArrayList<ByteArrayOutputStream>();
+			List<Future<ModuleTestRun>> futl = new ArrayList<Future<ModuleTestRun>>();
+			for(ModuleBuildInfo mbi : m_buildList) {
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				final ModuleTestRun tr = new ModuleTestRun(mbi, new PrintStream(bos, true, "utf-8"));
+				outl.add(bos);
+				futl.add(es.submit(new Callable<ModuleTestRun>() {
+					@Override
+					public ModuleTestRun call() throws Exception {
+						tr.run();
+						return tr;
+					}
+				}));
+			}
 
-		for(ModuleBuildInfo mbi : m_buildList) {
-			checkTests(mbi);
+			//-- Write the output of each module as soon as it and all modules before it are done.
+			for(int i = 0; i < futl.size(); i++) {
+				ModuleTestRun tr;
+				try {
+					tr = futl.get(i).get();
+				} catch(ExecutionException x) {
+					Throwable t = x.getCause();
+					if(t instanceof Exception)
+						throw (Exception) t;
+					if(t instanceof Error)
+						throw (Error) t;
+					throw x;
+				} finally {
+					outl.get(i).writeTo(m_listener.getLogger());
+					outl.set(i, null);
+				}
+				tr.reportErrors();
+				m_failedTestCount += tr.getFailedCount();
+			}
+		} finally {
+			es.shutdownNow();
 		}
-
 	}
 
 	/**
-	 * Remove everything below JUnit test run.
-	 * @param t
-	 * @return
+	 * The test run of a single module. It has its own JUnitCore and listeners, and writes
+	 * all of its output to its own stream.
 	 */
-	private String filterTrace(Throwable t) {
-		StringBuilder sb = new StringBuilder();
-		sb.append(t.toString()).append("\n");
-		filterTrace(sb, t);
-
-		for(;;) {
-			Throwable xt = t.getCause();
-			if(xt == t || xt == null)
-				break;
-			t = xt;
-
-			sb.append("Caused by: ").append(t.toString()).append("\n");
-			filterTrace(sb, t);
+	private final class ModuleTestRun {
+		private final ModuleBuildInfo m_mbi;
+
+		private final PrintStream m_out;
+
+		private final JUnitListener m_jtl = new JUnitListener();
+
+		private int m_failedCount;
+
+		/** The test classes that could not be loaded, reported as build errors when the module is done. */
+		private final List<String> m_loadErrors = new ArrayList<String>();
+
+		private ModuleTestHistory m_moduleHistory;
+
+		/** How the module's tests run in parallel, one of the TestWorker modes, or null. */
+		private String m_parallel;
+
+		private int m_parallelThreads;
+
+		public ModuleTestRun(ModuleBuildInfo mbi, PrintStream out) {
+			m_mbi = mbi;
+			m_out = out;
 		}
 
-		return sb.toString();
-	}
+		public int getFailedCount() {
+			return m_failedCount;
+		}
 
+		private void log(String s) {
+			m_out.println("testrunner: " + s);
+		}
 
-	private void filterTrace(StringBuilder sb, Throwable t) {
-		int eix = -1;
-		StackTraceElement[] ar = t.getStackTrace();
-		for(StackTraceElement se : ar) {
-			String s = se.getClassName();
-			if(s.startsWith("org.junit.runners")) {
-				break;
-			}
-			eix++;
+		/**
+		 * Report the classes that could not be loaded as errors of the build. This is called on the
+		 * thread that runs the build, after the module's output has been written.
+		 */
+		public void reportErrors() {
+			for(String s : m_loadErrors)
+				m_listener.error(s);
 		}
 
-		//-- Move back over all "reflect" thingies
-		while(eix >= 0) {
-			String s = ar[eix].getClassName();
-			if(s.startsWith("sun.reflect") || s.startsWith("java.lang.reflect")) {
-				eix--;
-			} else
-				break;
+		private void test(String s) {
+			m_out.println(s);
 		}
-		if(eix <= 0)
-			eix = ar.length - 1;
 
-		for(int i = 0; i <= eix; i++) {
-			sb.append("        at " + ar[i].toString()).append("\n");
+		public void run() throws Exception {
+			ModuleBuildInfo mbi = m_mbi;
+			List<File> outpaths = mbi.getMaker().getModuleOutputPaths(true);
+			if(outpaths.size() == 0)
+				return;
+
+			//-- Locate all @Test annotated things, and select the ones to run.
+			TestClassIndex tci = m_selector.getIndex(mbi);
+			Set<String> all = tci.getTestClasses(outpaths);
+			if(m_shardKeys != null) {
+				for(Iterator<String> it = all.iterator(); it.hasNext();) {
+					if(!m_shardKeys.contains(TestHistory.key(mbi.getName(), it.next())))
+						it.remove();
+				}
+			}
+			if(all.size() == 0)
+				return;
+			m_jtl.reset();
+			JUnitXmlWriter xw = new JUnitXmlWriter(getResultFile(mbi));
+			try {
+				if(m_stopped) {
+					log("Not running the tests of " + mbi.getName() + ": the test run was stopped after " + m_failFast + " failed tests");
+					writeSkipped(xw, tci, all, "Not run: the test run was stopped after " + m_failFast + " failed tests");
+					xw.close(mbi.getName(), m_jtl.getSuiteStart(), 0);
+					xw = null;
+					return;
+				}
+				Set<String> res = m_selector.select(mbi, all, m_out);
+				Set<String> skipped = new TreeSet<String>(all);
+				skipped.removeAll(res);
+				writeSkipped(xw, tci, skipped, SKIP_UNAFFECTED);
+				long runtime = 0;
+				if(res.size() > 0) {
+					m_jtl.setWriter(xw);
+					runtime = runTests(res);
+				}
+				xw.close(mbi.getName(), m_jtl.getSuiteStart(), runtime);
+				xw = null;
+			} finally {
+				if(xw != null)
+					xw.abort();
+			}
 		}
-	}
 
-	private void log(String s) throws Exception {
-//		System.out.println("testrunner: " + s);
-		m_listener.getLogger().println("testrunner: " + s);
-	}
+		/**
+		 * Run the selected tests, and return the run time. Classes that cannot be loaded are
+		 * reported as a failed test.
+		 */
+		private long runTests(Set<String> res) throws Exception {
+			ModuleBuildInfo mbi = m_mbi;
+
+			//-- Run recent failures first, then the slow ones.
+			m_moduleHistory = ModuleTestHistory.load(new File(mbi.getOutputDir(), ModuleTestHistory.NAME));
+			List<String> classes = m_moduleHistory.orderClasses(res);
+			List<String> order = m_moduleHistory.getOrder(classes);
+
+			log("Discovered " + classes + " test classes in module " + mbi.getName());
+			TestClassLoaders.Layers layers = getModuleLayers(mbi);
+			initParallel();
+			Set<String> failed = new HashSet<String>();
+			ConsoleListener cl = new ConsoleListener();
+			if(m_pool != null) {
+				long runtime = m_pool.run(mbi.getName(), layers, classes, order, m_parallel, m_parallelThreads, m_out, cl, m_jtl);
+				finished(res, failed);
+				return runtime;
+			}
 
-	private void test(String s) throws Exception {
-//		System.out.println("testrunner: " + s);
-		m_listener.getLogger().println(s);
-	}
+			//-- Get a classloader for the module; its jars come from the shared loader.
+			URLClassLoader ucl = m_loaders.createLoader(layers);
+			ClassLoader oldcl = Thread.currentThread().getContextClassLoader();
+			Thread.currentThread().setContextClassLoader(ucl);
+			try {
+				List<Class< ? >> testl = new ArrayList<Class< ? >>();
+				for(String cname : classes) {
+					try {
+						Class< ? > clz = ucl.loadClass(cname);
+						testl.add(clz);
+					} catch(Throwable x) {
+						Failure f = TestWorker.loadFailure(cname, x);
+						cl.testFailure(f);
+						m_jtl.testFailure(f);
+						failed.add(cname);
+					}
+				}
 
-	private void checkTests(ModuleBuildInfo mbi) throws Exception {
-		List<File> outpaths = mbi.getMaker().getModuleOutputPaths(true);
-		if(outpaths.size() == 0)
-			return;
+				if(testl.size() == 0) {
+					log("All classes of " + mbi.getName() + " failed to load.");
+					finished(res, failed);
+					return 0;
+				}
 
-		//-- Locate all @Test annotated things.
-		Set<String> res = new HashSet<String>();
-		for(File of : outpaths) {
-//			System.out.println("test: check module " + mbi.getName() + " path " + of);
-			getTestClasses(res, of, "");
+				TestWorker.ParallelComputer pc = TestWorker.ParallelComputer.create(m_parallel, m_parallelThreads);
+				Request rq = Request.classes(pc == null ? Computer.serial() : pc, testl.toArray(new Class< ? >[testl.size()])).sortWith(new TestWorker.RankOrder(order));
+				RunNotifier notifier = new RunNotifier();
+				synchronized(m_notifiers) {
+					m_notifiers.add(notifier);
+				}
+				Result r;
+				try {
+					if(m_stopped)
+						notifier.pleaseStop();
+					r = TestWorker.run(rq, notifier, cl, m_jtl);
+				} finally {
+					synchronized(m_notifiers) {
+						m_notifiers.remove(notifier);
+					}
+					if(pc != null)
+						pc.shutdown();
+				}
+				finished(res, failed);
+				return r.getRunTime();
+			} finally {
+				Thread.currentThread().setContextClassLoader(oldcl);
+				try {
+					ucl.close();
+				} catch(Exception x) {}
+			}
 		}
-		if(res.size() == 0)
-			return;
 
-		log("Discovered " + res + " test classes in module " + mbi.getName());
+		/**
+		 * Get the parallel mode of the module from its puzzler.properties: test.parallel is classes
+		 * to run its test classes at the same time, or methods to run the tests of each test class at
+		 * the same time. test.threads is the #of threads to use, by default the #of processors.
+		 */
+		private void initParallel() {
+			String s = m_mbi.getModuleProperty("test.parallel");
+			m_parallel = null;
+			if(s != null && s.trim().length() > 0 && !"none".equalsIgnoreCase(s.trim())) {
+				s = s.trim().toLowerCase();
+				if(!s.equals(TestWorker.PARALLEL_CLASSES) && !s.equals(TestWorker.PARALLEL_METHODS))
+					throw new IllegalArgumentException("Invalid test.parallel '" + s + "' in module " + m_mbi.getName() + ": use none, classes or methods");
+				m_parallel = s;
+			}
+			m_parallelThreads = Runtime.getRuntime().availableProcessors();
+			s = m_mbi.getModuleProperty("test.threads");
+			if(s != null && s.trim().length() > 0) {
+				try {
+					m_parallelThreads = Integer.parseInt(s.trim());
+				} catch(NumberFormatException x) {
+					m_parallelThreads = 0;
+				}
+				if(m_parallelThreads <= 0)
+					throw new IllegalArgumentException("Invalid test.threads '" + s + "' in module " + m_mbi.getName() + ": it must be a number > 0");
+			}
+			if(m_parallel != null)
+				log("Running the " + m_parallel + " of " + m_mbi.getName() + " in parallel on " + m_parallelThreads + " threads");
+		}
 
-		//-- Get a classloader for the module.
-		URLClassLoader ucl = createModuleClassLoader(mbi);
+		private void finished(Set<String> selected, Set<String> failed) throws IOException {
+			m_selector.finished(m_mbi, getRanClasses(selected), getFailedClasses(m_jtl, failed));
 
-		List<Class< ? >> testl = new ArrayList<Class< ? >>();
-		for(String cname : res) {
-			try {
-				Class< ? > clz = ucl.loadClass(cname);
-				testl.add(clz);
-			} catch(Exception x) {
-				m_listener.error("testrunner: cannot load " + cname + ": " + x);
-//				System.out.println("testrunner: cannot load " + cname + ": " + x);
-				m_listener.getLogger().println("testrunner: cannot load " + cname + ": " + x);
+			//-- Shards leave the histories alone; the merge of their results updates them.
+			if(m_shardCount == 0) {
+				m_history.setDurations(m_mbi.getName(), getClassDurations(m_jtl));
+				if(m_jtl.getTestCount() > 0) {
+					m_moduleHistory.addRun(m_jtl.getTestDurations(), m_jtl.getFailedTests());
+					m_moduleHistory.save();
+				}
 			}
 		}
 
-		if(testl.size() == 0) {
-			log("All classes of " + mbi.getName() + " failed to load.");
-			return;
+		/**
+		 * Return the selected test classes that ran. When the test run was stopped by fail-fast only
+		 * the classes of which all tests finished count, so that the failures of the classes that
+		 * were cut off are kept.
+		 */
+		private Set<String> getRanClasses(Set<String> selected) {
+			if(!m_stopped)
+				return selected;
+			TestClassIndex tci = m_selector.getIndex(m_mbi);
+			Set<String> done = m_jtl.getTestDurations().keySet();
+			Set<String> res = new HashSet<String>();
+			for(String cn : selected) {
+				List<String> methods = tci.getTestMethods(cn);
+				boolean all = methods.size() > 0;
+				for(String mn : methods) {
+					if(!done.contains(mn + "(" + cn + ")")) {
+						all = false;
+						break;
+					}
+				}
+				if(all)
+					res.add(cn);
+			}
+			return res;
 		}
 
-		m_jtl.reset();
-		Result r = m_core.run(testl.toArray(new Class< ? >[testl.size()]));
-		writeXml(mbi, r);
+		/**
+		 * Writes the progress of the tests to the module's output. When tests run in parallel, the
+		 * output of each test, including what it writes itself in a forked JVM, is kept until the test
+		 * finishes and is then written as a single block.
+		 */
+		private final class ConsoleListener extends RunListener implements TestWorkerPool.TestOutputListener {
+			/** The output of the running tests by display name, when they run in parallel. */
+			private final Map<String, StringBuilder> m_outputMap = m_parallel == null ? null : new HashMap<String, StringBuilder>();
+
+			/** The running tests that failed. */
+			private final Set<String> m_failedSet = new HashSet<String>();
+
+			private void print(Description d, String s) {
+				if(m_outputMap != null) {
+					StringBuilder sb = m_outputMap.get(d.getDisplayName());
+					if(sb != null) {
+						sb.append(s).append('\n');
+						return;
+					}
+				}
+				test(s);
+			}
+
+			@Override
+			public synchronized void testStarted(Description description) throws Exception {
+				if(m_outputMap != null)
+					m_outputMap.put(description.getDisplayName(), new StringBuilder());
+				m_failedSet.remove(description.getDisplayName());
+				print(description, "====== Test: " + description.getDisplayName() + " =====");
+			}
 
+			@Override
+			public synchronized void testOutput(String test, String text) throws Exception {
+				StringBuilder sb = m_outputMap == null ? null : m_outputMap.get(test);
+				if(sb != null)
+					sb.append(text);
+				else
+					m_out.print(text);
+			}
 
-//		System.out.println("testrunner: result = " + r.getFailureCount() + " failed, " + r.getRunCount() + " run, " + r.getIgnoreCount() + " ignored in "
-//			+ StringTool.strDurationMillis(r.getRunTime()));
-//		for(org.junit.runner.notification.Failure f : r.getFailures()) {
-//			System.out.println("testrunner: " + f.getTestHeader() + "\n" + f.getMessage() + "\n" + f.getDescription() + "\n" + f.getTrace());
-//		}
+			@Override
+			public synchronized void testFailure(Failure failure) throws Exception {
+				Description d = failure.getDescription();
+				if(TestWorker.isLoadFailure(d))
+					m_loadErrors.add("testrunner: cannot load " + getClassName(d.getDisplayName()) + ": " + failure.getMessage());
+				print(d, "Failed: " + failure.getMessage());
+				Throwable t = failure.getException();
+				print(d, t instanceof TestWorkerPool.RemoteTestFailure ? ((TestWorkerPool.RemoteTestFailure) t).getFilteredTrace() : TestWorker.filterTrace(t));
+				m_failedSet.add(d.getDisplayName());
+				m_failedCount++;
+				if(testFailed())
+					log("Stopping the test run after " + m_failFast + " failed tests");
+			}
 
+			@Override
+			public synchronized void testFinished(Description description) throws Exception {
+				if(!m_failedSet.remove(description.getDisplayName()))
+					print(description, "Test succesful");
+				if(m_outputMap != null) {
+					StringBuilder sb = m_outputMap.remove(description.getDisplayName());
+					if(sb != null)
+						m_out.print(sb);
+				}
+			}
+		}
 	}
 
 	private boolean isJunit(File f) {
@@ -209,94 +623,115 @@ public class JUnitTestRunner {
 	}
 
 	/**
-	 * Create a classloader for the target project. Remove any junit instances from there and use this classloader
-	 * as a base.
-	 * @param mbi
-	 * @return
-	 * @throws Exception
+	 * Register the classpaths of all modules with tests, so that their class loaders can share the
+	 * library jars they have in common.
 	 */
-	private URLClassLoader createModuleClassLoader(ModuleBuildInfo mbi) throws Exception {
-		List<URL> urls = new ArrayList<URL>();
-		for(File f : mbi.getMaker().getModuleOutputPaths(false)) {
-			if(isJunit(f))
-				continue;
-			URL u = f.toURI().toURL();
-			urls.add(u);
+	private void registerModules() {
+		for(ModuleBuildInfo mbi : m_buildList) {
+			if(mbi.getMaker().getModuleOutputPaths(true).size() > 0 && !isIsolated(mbi))
+				m_loaders.addModule(getTestClasspath(mbi), getBuiltJars(mbi));
 		}
+	}
 
+	/**
+	 * The classpath of the module's tests, without any junit instances.
+	 */
+	private List<File> getTestClasspath(ModuleBuildInfo mbi) {
+		List<File> files = new ArrayList<File>();
+		for(File f : mbi.getMaker().getModuleOutputPaths(false)) {
+			if(!isJunit(f))
+				files.add(f);
+		}
 		for(File f : mbi.getMaker().getModuleClasspath()) {
-			if(isJunit(f))
-				continue;
-			URL u = f.toURI().toURL();
-			urls.add(u);
+			if(!isJunit(f))
+				files.add(f);
+		}
+		return files;
+	}
+
+	/**
+	 * The jars made by this build that can be on the module's classpath. They differ per build, so
+	 * they are not shared.
+	 */
+	static private Set<File> getBuiltJars(ModuleBuildInfo mbi) {
+		Set<File> res = new HashSet<File>();
+		List<ModuleBuildInfo> list = new ArrayList<ModuleBuildInfo>();
+		list.add(mbi);
+		for(ModuleBuildInfo bi : mbi.getFullDependencyList())
+			list.add(bi);
+		for(ModuleBuildInfo bi : list) {
+			for(GeneratedProduct gp : bi.getMaker().getGeneratedProductList()) {
+				if(gp instanceof GeneratedJarProduct)
+					res.add(((GeneratedJarProduct) gp).getFile());
+			}
 		}
+		return res;
+	}
+
+	/**
+	 * A module that sets test.isolated in its puzzler.properties gets a loader of its own, with its
+	 * whole classpath in the original order, for when sharing library classes with other modules
+	 * breaks its tests.
+	 */
+	static private boolean isIsolated(ModuleBuildInfo mbi) {
+		String s = mbi.getModuleProperty("test.isolated");
+		return s != null && StringTool.dbGetBool(s.trim());
+	}
 
+	/**
+	 * Get the classpath for the target project, split in the layers of its class loader. Remove any
+	 * junit instances from there and use the one of this class instead.
+	 */
+	private TestClassLoaders.Layers getModuleLayers(ModuleBuildInfo mbi) throws Exception {
 		//-- Locate junit module in here
+		List<URL> junit = new ArrayList<URL>();
 		URL[] myulrs = ClassUtil.findUrlsFor(getClass().getClassLoader());
 		for(URL u: myulrs) {
 			if(u.getPath().contains("junit-"))
-				urls.add(u);
+				junit.add(u);
 		}
 
-//		for(URL s : urls)
-//			System.out.println("Loader: " + s);
-
-		final ClassLoader	dad = getClass().getClassLoader();
-		URLClassLoader ucl = new URLClassLoader(urls.toArray(new URL[urls.size()])) {
-			@Override
-			public java.lang.Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
-				if(name.startsWith("org.junit")) {
-					return dad.loadClass(name);
-				}
-				return super.loadClass(name, resolve);
-			}
-		};
-		return ucl;
+		return m_loaders.split(getTestClasspath(mbi), getBuiltJars(mbi), junit, isIsolated(mbi));
 	}
 
+	public int getFailedTestCount() {
+		return m_failedTestCount;
+	}
 
-	private void getTestClasses(Set<String> result, File root, String relpath) {
-		if(root.isDirectory()) {
-			File[] far = root.listFiles();
-			if(far == null)
-				return;
-			for(File f : far) {
-				String path = relpath.length() == 0 ? f.getName() : relpath + "." + f.getName();
-				if(f.isFile()) {
-					String name = hasTestAnnotations(f);
-					if(null != name) {
-						//-- Has annotations.
-						result.add(name);
-					}
-				} else {
-					getTestClasses(result, f, path);
-				}
-			}
-		}
+	/**
+	 * The name of the result file of a module; every shard has its own.
+	 */
+	private File getResultFile(ModuleBuildInfo mbi) {
+		if(m_shardCount == 0)
+			return new File(mbi.getOutputDir(), TestResultMerger.RESULT_NAME);
+		return new File(mbi.getOutputDir(), TestResultMerger.SHARD_PREFIX + (m_shardIndex + 1) + ".xml");
 	}
 
-	private String hasTestAnnotations(File f) {
-		if(m_scanner == null)
-			m_scanner = new TestCaseClassVisitor();
+	static private String getClassName(String name) {
+		Matcher m = CLASSP.matcher(name);
+		return m.matches() ? m.group(2) : name;
+	}
 
-		InputStream is = null;
-		try {
-			is = new FileInputStream(f);
-			ClassReader r = new ClassReader(is);
-			m_scanner.reset();
-			r.accept(m_scanner, true);
-		} catch(Exception x) {
-		} finally {
-			try {
-				if(is != null)
-					is.close();
-			} catch(Exception x) {}
+	/**
+	 * Return the total run time of the tests per class.
+	 */
+	static private Map<String, Long> getClassDurations(JUnitListener jtl) {
+		Map<String, Long> res = new HashMap<String, Long>();
+		for(Map.Entry<String, Long> me : jtl.getTestDurations().entrySet()) {
+			String cn = getClassName(me.getKey());
+			Long l = res.get(cn);
+			res.put(cn, Long.valueOf(me.getValue().longValue() + (l == null ? 0 : l.longValue())));
 		}
-		return m_scanner.isFound() ? m_scanner.getName() : null;
+		return res;
 	}
 
-	public int getFailedTestCount() {
-		return m_failedTestCount;
+	/**
+	 * Add the names of the classes with failed tests to the set.
+	 */
+	static private Set<String> getFailedClasses(JUnitListener jtl, Set<String> res) {
+		for(String name : jtl.getFailedTests())
+			res.add(getClassName(name));
+		return res;
 	}
 
 
@@ -306,69 +741,15 @@ public class JUnitTestRunner {
 
 	static private final Pattern CLASSP = Pattern.compile("(.*)\\((.*)\\)");
 
+	static private final String SKIP_UNAFFECTED = "Not affected by the changes in this build";
+
 	/**
-	 *
-	 * @param mbi
-	 * @param r
+	 * Write the tests of the skipped classes as skipped test cases.
 	 */
-	private void writeXml(ModuleBuildInfo mbi, Result r) throws Exception {
-		File resfile = new File(mbi.getOutputDir(), "SUITE-testResult.xml");
-
-		Writer xw = null;
-
-		try {
-			xw = new OutputStreamWriter(new FileOutputStream(resfile), "utf-8");
-			XmlWriter w = new XmlWriter(xw);
-			xw = w;
-
-			w.append("<?xml version='1.0' encoding='utf-8'?>\n");
-			w.tag("testsuites");
-
-			double runtime = r.getRunTime() / 1000.0;
-
-
-			SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
-			w.tag("testsuite", "name", mbi.getName(), "tests", Integer.toString(m_jtl.getTestCount()), "failures", Integer.toString(m_jtl.getFailedCount()), "errors", "0",
-				"time", String.format("%.3f", runtime), "timestamp", df.format(m_jtl.getSuiteStart()));
-			w.append("\n");
-
-			for(ATest at : m_jtl.getTestList()) {
-				double dur = at.getDuration() / 1000.0;
-
-				//-- Sign. Why on earth everyone insists on storing stuff in presentation format instead of native format is a mystery to me 8-( Description contains the
-				//-- required data as "method(classname)" - so we need to get that out now.
-				Matcher m = CLASSP.matcher(at.getDescription().getDisplayName());
-				String cn, mn;
-
-				if(!m.matches()) {
-					cn = at.getDescription().getDisplayName();
-					mn = "unknown";
-				} else {
-					cn = m.group(2);
-					mn = m.group(1);
-				}
-
-				w.tag("testcase", "classname", cn, "name", mn, "time", String.format("%.3f", dur));
-
-				if(at.getFailure() != null) {
-					w.tag("error", "message", at.getFailure().getMessage(), "type", at.getFailure().getException().getClass().getName());
-					w.cdata(at.getFailure().getTrace());
-					w.tagendnl();
-				}
-
-				w.tagendnl();
-			}
-
-			w.tagendnl(); // testsuite
-			w.tagendnl(); // testsuites
-
-			xw.close();
-			xw = null;
-		} finally {
-			try {
-				if(null != xw)
-					xw.close();
-			} catch(Exception x) {}
+	static private void writeSkipped(JUnitXmlWriter xw, TestClassIndex tci, Set<String> skipped, String message) throws IOException {
+		for(String cn : skipped) {
+			for(String mn : tci.getTestMethods(cn))
+				xw.skipped(cn, mn, message);
 		}
 	}
 }
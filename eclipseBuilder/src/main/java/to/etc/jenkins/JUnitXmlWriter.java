@@ -0,0 +1,156 @@
+package to.etc.jenkins;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+import java.util.regex.*;
+
+import org.junit.runner.notification.*;
+
+import to.etc.jenkins.JUnitListener.ATest;
+import to.etc.util.*;
+import to.etc.xml.*;
+
+/**
+ * Writes a JUnit result file while the tests run, so that the results of a module do not have to
+ * be kept in memory until all of its tests are done. The testcase elements are written to a temp
+ * file as soon as a test finishes; {@link #close(String, Date, long)} then writes the result file
+ * as the testsuite element with the totals, followed by a copy of the temp file.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+public class JUnitXmlWriter {
+	static private final Pattern CLASSP = Pattern.compile("(.*)\\((.*)\\)");
+
+	private final File m_file;
+
+	private final File m_tmpFile;
+
+	private XmlWriter m_w;
+
+	private int m_tests, m_failures, m_skipped;
+
+	/** Scratch buffer for formatting times. */
+	private final StringBuilder m_sb = new StringBuilder(16);
+
+	public JUnitXmlWriter(File file) throws IOException {
+		m_file = file;
+		m_tmpFile = File.createTempFile("testcases", ".xml", file.getParentFile());
+		try {
+			m_w = new XmlWriter();
+			m_w.init(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(m_tmpFile), "utf-8"), 65536), 2);
+		} catch(IOException x) {
+			m_tmpFile.delete();
+			throw x;
+		}
+	}
+
+	/**
+	 * Write a finished test.
+	 */
+	public void testcase(ATest at) throws IOException {
+		//-- Sign. Why on earth everyone insists on storing stuff in presentation format instead of native format is a mystery to me 8-( Description contains the
+		//-- required data as "method(classname)" - so we need to get that out now.
+		String name = at.getDescription().getDisplayName();
+		Matcher m = CLASSP.matcher(name);
+		String cn, mn;
+		if(!m.matches()) {
+			cn = name;
+			mn = "unknown";
+		} else {
+			cn = m.group(2);
+			mn = m.group(1);
+		}
+
+		m_w.tag("testcase", "classname", cn, "name", mn, "time", formatSeconds(at.getDuration()));
+		Failure f = at.getFailure();
+		if(f != null) {
+			Throwable t = f.getException();
+			String type = t instanceof TestWorkerPool.RemoteTestFailure ? ((TestWorkerPool.RemoteTestFailure) t).getClassName() : t.getClass().getName();
+			m_w.tag("error", "message", f.getMessage(), "type", type);
+			m_w.cdata(f.getTrace());
+			m_w.tagendnl();
+			m_failures++;
+		}
+		m_w.tagendnl();
+		m_tests++;
+	}
+
+	/**
+	 * Write a test that was not run.
+	 */
+	public void skipped(String className, String methodName, String message) throws IOException {
+		m_w.tag("testcase", "classname", className, "name", methodName, "time", "0.000");
+		m_w.tagonlynl("skipped", "message", message);
+		m_w.tagendnl();
+		m_tests++;
+		m_skipped++;
+	}
+
+	/**
+	 * Write the result file, and remove the temp file.
+	 */
+	public void close(String suiteName, Date start, long runtimeMillis) throws IOException {
+		m_w.close();
+		m_w = null;
+
+		StringWriter sw = new StringWriter();
+		XmlWriter w = new XmlWriter(sw);
+		w.append("<?xml version='1.0' encoding='utf-8'?>\n");
+		w.tag("testsuites");
+		SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+		w.tag("testsuite", "name", suiteName, "tests", Integer.toString(m_tests), "failures", Integer.toString(m_failures), "errors", "0", "skipped", Integer.toString(m_skipped),
+			"time", formatSeconds(runtimeMillis), "timestamp", df.format(start));
+		w.append("\n");
+		w.flush();
+
+		OutputStream os = new FileOutputStream(m_file);
+		InputStream is = null;
+		try {
+			os.write(sw.toString().getBytes("utf-8"));
+			is = new FileInputStream(m_tmpFile);
+			FileTool.copyFile(os, is);
+			os.write("  </testsuite>\n</testsuites>\n".getBytes("utf-8"));
+			os.close();
+			os = null;
+		} finally {
+			try {
+				if(is != null)
+					is.close();
+			} catch(Exception x) {}
+			try {
+				if(os != null)
+					os.close();
+			} catch(Exception x) {}
+			m_tmpFile.delete();
+		}
+	}
+
+	/**
+	 * Discard everything; use when the tests could not be run.
+	 */
+	public void abort() {
+		try {
+			if(m_w != null)
+				m_w.close();
+		} catch(Exception x) {}
+		m_w = null;
+		m_tmpFile.delete();
+	}
+
+	/**
+	 * Format millis as seconds with three decimals, independent of the locale.
+	 */
+	private String formatSeconds(long ms) {
+		StringBuilder sb = m_sb;
+		sb.setLength(0);
+		sb.append(ms / 1000).append('.');
+		long frac = ms % 1000;
+		if(frac < 100)
+			sb.append('0');
+		if(frac < 10)
+			sb.append('0');
+		sb.append(frac);
+		return sb.toString();
+	}
+}
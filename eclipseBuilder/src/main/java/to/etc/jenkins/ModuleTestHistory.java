@@ -0,0 +1,169 @@
+package to.etc.jenkins;
+
+import java.io.*;
+import java.util.*;
+
+import to.etc.util.*;
+
+/**
+ * The outcome and run time of every test of a module in earlier test runs, kept in the module's
+ * output directory. It is used to run the tests in the order that gives the most information
+ * early: first the tests that failed in the last {@link #RECENT_RUNS} runs, most recent failure
+ * first, and then the slowest tests, so that long tests start early and overlap better when
+ * modules are tested at the same time. Tests are identified by their JUnit display name,
+ * "method(class)".
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+public class ModuleTestHistory implements Serializable {
+	static private final long serialVersionUID = 1;
+
+	/** The name of the history file in a module's output directory. */
+	static public final String NAME = ".testhistory";
+
+	/** A failure in one of this many last runs makes a test run first. */
+	static private final int RECENT_RUNS = 5;
+
+	static private final class TestRecord implements Serializable {
+		static private final long serialVersionUID = 1;
+
+		/** The run time of the test in millis, the last time it ran. */
+		long duration;
+
+		/** The run in which the test last failed, 0 if it never failed. */
+		int lastFailedRun;
+	}
+
+	/** The #of test runs registered. */
+	private int m_runs;
+
+	private Map<String, TestRecord> m_testMap = new HashMap<String, TestRecord>();
+
+	private transient File m_file;
+
+	private transient boolean m_dirty;
+
+	/**
+	 * Load the history from the file. If that fails for whatever reason an empty history is returned.
+	 */
+	static public ModuleTestHistory load(File f) {
+		ModuleTestHistory th = null;
+		try {
+			if(f.exists())
+				th = (ModuleTestHistory) FileTool.loadSerialized(f);
+		} catch(Exception x) {}
+		if(th == null)
+			th = new ModuleTestHistory();
+		th.m_file = f;
+		return th;
+	}
+
+	/**
+	 * Save the history if it changed.
+	 */
+	public synchronized void save() throws IOException {
+		if(m_dirty && m_file != null) {
+			FileTool.saveSerialized(m_file, this);
+			m_dirty = false;
+		}
+	}
+
+	/**
+	 * Register a test run: the run times of the tests that ran, by display name, and the names
+	 * of the ones that failed.
+	 */
+	public synchronized void addRun(Map<String, Long> durations, Set<String> failed) {
+		m_runs++;
+		for(Map.Entry<String, Long> me : durations.entrySet()) {
+			TestRecord tr = m_testMap.get(me.getKey());
+			if(tr == null) {
+				tr = new TestRecord();
+				m_testMap.put(me.getKey(), tr);
+			}
+			tr.duration = me.getValue().longValue();
+			if(failed.contains(me.getKey()))
+				tr.lastFailedRun = m_runs;
+		}
+		m_dirty = true;
+	}
+
+	/**
+	 * Return the run in which the test failed recently, or 0.
+	 */
+	private int getRecentFailure(TestRecord tr) {
+		return tr.lastFailedRun > 0 && m_runs - tr.lastFailedRun < RECENT_RUNS ? tr.lastFailedRun : 0;
+	}
+
+	/**
+	 * Return the test classes in the order in which they should run: the ones with a recent failure
+	 * first, the most recent one first, then by their total run time, the slowest first.
+	 */
+	public synchronized List<String> orderClasses(Collection<String> classes) {
+		final Map<String, long[]> keyMap = new HashMap<String, long[]>();
+		for(String cn : classes)
+			keyMap.put(cn, new long[2]);
+		for(Map.Entry<String, TestRecord> me : m_testMap.entrySet()) {
+			long[] key = keyMap.get(getClassName(me.getKey()));
+			if(key != null) {
+				key[0] = Math.max(key[0], getRecentFailure(me.getValue()));
+				key[1] += me.getValue().duration;
+			}
+		}
+		List<String> res = new ArrayList<String>(classes);
+		Collections.sort(res, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				int res = compareKeys(keyMap.get(a), keyMap.get(b));
+				return res != 0 ? res : a.compareTo(b);
+			}
+		});
+		return res;
+	}
+
+	/**
+	 * Return the order in which tests should run, for a {@link TestWorker.RankOrder}: the classes
+	 * in the specified order, followed by all known tests of these classes with the recently failed
+	 * ones first, and then by run time.
+	 */
+	public synchronized List<String> getOrder(List<String> classes) {
+		Set<String> cs = new HashSet<String>(classes);
+		final Map<String, long[]> keyMap = new HashMap<String, long[]>();
+		for(Map.Entry<String, TestRecord> me : m_testMap.entrySet()) {
+			if(cs.contains(getClassName(me.getKey())))
+				keyMap.put(me.getKey(), new long[]{getRecentFailure(me.getValue()), me.getValue().duration});
+		}
+		List<String> tests = new ArrayList<String>(keyMap.keySet());
+		Collections.sort(tests, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				int res = compareKeys(keyMap.get(a), keyMap.get(b));
+				return res != 0 ? res : a.compareTo(b);
+			}
+		});
+		List<String> res = new ArrayList<String>(classes.size() + tests.size());
+		res.addAll(classes);
+		res.addAll(tests);
+		return res;
+	}
+
+	/**
+	 * Compare [recent failure, duration] keys, both descending.
+	 */
+	static private int compareKeys(long[] a, long[] b) {
+		for(int i = 0; i < a.length; i++) {
+			if(a[i] != b[i])
+				return a[i] > b[i] ? -1 : 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Get the class name from a "method(class)" display name.
+	 */
+	static private String getClassName(String name) {
+		int ix = name.lastIndexOf('(');
+		if(ix < 0 || !name.endsWith(")"))
+			return name;
+		return name.substring(ix + 1, name.length() - 1);
+	}
+}
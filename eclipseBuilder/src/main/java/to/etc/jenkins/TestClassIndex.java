@@ -0,0 +1,287 @@
+package to.etc.jenkins;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+import to.etc.util.*;
+
+/**
+ * A persistent index of the class files in a module's output paths, used to find its JUnit test
+ * classes without reading all class files on every build. For each class file it holds the result
+ * of a {@link TestClassScanner} scan, keyed by the file's path. A class file is scanned again only
+ * when its size changed, or when its timestamp changed and its CRC shows that its content did too;
+ * a full rebuild that writes the same classes again only costs a CRC per class.
+ *
+ * A class is a test class when it can be instantiated and it, or one of its superclasses, has
+ * methods annotated with @Test. Superclasses are only found in the paths that were scanned.
+ *
+ * The index also keeps the classes that each class refers to, and after a scan it knows which
+ * classes were added, changed or removed since the index was last saved. {@link TestSelector}
+ * uses both to find the tests that are affected by a build.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+public class TestClassIndex implements Serializable {
+	static private final long serialVersionUID = 1;
+
+	static private final class ClassInfo implements Serializable {
+		static private final long serialVersionUID = 1;
+
+		long			size;
+
+		long			lastModified;
+
+		int				crc;
+
+		String			name;
+
+		String			superName;
+
+		boolean			concrete;
+
+		boolean			hasTests;
+
+		List<String>	testMethods;
+
+		String[]		refs;
+	}
+
+	/** Maps the absolute path of a class file to what was found in it. */
+	private Map<String, ClassInfo>	m_map = new HashMap<String, ClassInfo>();
+
+	private transient File			m_file;
+
+	private transient boolean		m_dirty;
+
+	private transient int			m_scanned;
+
+	private transient int			m_crcChecked;
+
+	private transient int			m_classCount;
+
+	/** The names of the classes that were added, changed or removed by the last scan. */
+	private transient Set<String>	m_changed = new HashSet<String>();
+
+	/** m_map by class name, built when first needed after a scan. */
+	private transient Map<String, ClassInfo>	m_byName;
+
+	/**
+	 * Load the index from the file. If that fails for whatever reason an empty index is returned.
+	 */
+	static public TestClassIndex load(File f) {
+		TestClassIndex ti = null;
+		try {
+			if(f.exists())
+				ti = (TestClassIndex) FileTool.loadSerialized(f);
+		} catch(Exception x) {}
+		if(ti == null)
+			ti = new TestClassIndex();
+		ti.m_file = f;
+		ti.m_changed = new HashSet<String>();
+		return ti;
+	}
+
+	/**
+	 * Save the index if it changed.
+	 */
+	public void save() throws IOException {
+		if(m_dirty && m_file != null) {
+			FileTool.saveSerialized(m_file, this);
+			m_dirty = false;
+		}
+	}
+
+	/**
+	 * Return the names of all test classes found in the roots. Entries for class files that are
+	 * no longer present are removed from the index.
+	 */
+	public Set<String> findTestClasses(List<File> roots) throws IOException {
+		scan(roots);
+		return getTestClasses(roots);
+	}
+
+	/**
+	 * Bring the index up to date with the class files in the roots, and determine which classes
+	 * changed. Entries for class files that are no longer present are removed from the index.
+	 */
+	public void scan(List<File> roots) throws IOException {
+		Map<String, ClassInfo> seen = new HashMap<String, ClassInfo>();
+		for(File root : roots)
+			scanDirectory(seen, root);
+
+		m_changed = new HashSet<String>();
+		for(Map.Entry<String, ClassInfo> me : m_map.entrySet()) {
+			if(!seen.containsKey(me.getKey()))
+				m_changed.add(me.getValue().name);
+		}
+		for(Map.Entry<String, ClassInfo> me : seen.entrySet()) {
+			if(m_map.get(me.getKey()) != me.getValue())
+				m_changed.add(me.getValue().name);
+		}
+		if(m_changed.size() > 0)
+			m_dirty = true;
+		m_map = seen;
+		m_byName = null;
+		m_classCount = seen.size();
+	}
+
+	/**
+	 * Return the names of the test classes whose class file is in one of the roots, from the
+	 * last scan.
+	 */
+	public Set<String> getTestClasses(List<File> roots) {
+		List<String> prefixes = new ArrayList<String>();
+		for(File root : roots)
+			prefixes.add(root.getAbsolutePath() + File.separator);
+
+		//-- Resolve inheritance by class name.
+		Map<String, ClassInfo> byName = getByName();
+		Set<String> res = new TreeSet<String>();
+		for(Map.Entry<String, ClassInfo> me : m_map.entrySet()) {
+			ClassInfo ci = me.getValue();
+			if(!ci.concrete || !startsWithAny(me.getKey(), prefixes))
+				continue;
+			int depth = 0;
+			for(ClassInfo c = ci; c != null && depth < 100; c = c.superName == null ? null : byName.get(c.superName), depth++) {
+				if(c.hasTests) {
+					res.add(ci.name);
+					break;
+				}
+			}
+		}
+		return res;
+	}
+
+	static private boolean startsWithAny(String s, List<String> prefixes) {
+		for(String p : prefixes) {
+			if(s.startsWith(p))
+				return true;
+		}
+		return false;
+	}
+
+	private synchronized Map<String, ClassInfo> getByName() {
+		Map<String, ClassInfo> byName = m_byName;
+		if(byName == null) {
+			byName = new HashMap<String, ClassInfo>(m_map.size() * 2);
+			for(ClassInfo ci : m_map.values())
+				byName.put(ci.name, ci);
+			m_byName = byName;
+		}
+		return byName;
+	}
+
+	/**
+	 * Return the names of the @Test methods of a class, including the ones it inherits.
+	 */
+	public List<String> getTestMethods(String className) {
+		Map<String, ClassInfo> byName = getByName();
+		Set<String> res = new TreeSet<String>();
+		int depth = 0;
+		for(ClassInfo c = byName.get(className); c != null && depth < 100; c = c.superName == null ? null : byName.get(c.superName), depth++) {
+			if(c.testMethods != null)
+				res.addAll(c.testMethods);
+		}
+		return new ArrayList<String>(res);
+	}
+
+	/**
+	 * The names of the classes that were added, changed or removed by the last scan.
+	 */
+	public Set<String> getChangedClasses() {
+		return m_changed;
+	}
+
+	/**
+	 * Add the references of all classes in the index to the map, as class name to the names of
+	 * the classes it refers to.
+	 */
+	public void addReferences(Map<String, String[]> map) {
+		for(ClassInfo ci : m_map.values()) {
+			if(ci.refs != null)
+				map.put(ci.name, ci.refs);
+		}
+	}
+
+	private void scanDirectory(Map<String, ClassInfo> seen, File dir) throws IOException {
+		File[] far = dir.listFiles();
+		if(far == null)
+			return;
+		for(File f : far) {
+			if(f.isDirectory())
+				scanDirectory(seen, f);
+			else if(f.getName().endsWith(".class")) {
+				String key = f.getAbsolutePath();
+				ClassInfo ci = getInfo(key, f);
+				if(ci != null)
+					seen.put(key, ci);
+			}
+		}
+	}
+
+	/**
+	 * Get the info for a class file, scanning it only if it changed. Returns null if the file cannot be read.
+	 */
+	private ClassInfo getInfo(String key, File f) {
+		long size = f.length();
+		long lastModified = f.lastModified();
+		ClassInfo ci = m_map.get(key);
+		if(ci != null && ci.size == size && ci.lastModified == lastModified)
+			return ci;
+
+		try {
+			byte[] data = readFile(f, size);
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			int crcv = (int) crc.getValue();
+
+			//-- Rewritten; if the content is the same just accept the new timestamp.
+			if(ci != null && ci.size == size) {
+				m_crcChecked++;
+				if(ci.crc == crcv) {
+					ci.lastModified = lastModified;
+					m_dirty = true;
+					return ci;
+				}
+			}
+
+			TestClassScanner.Result r = TestClassScanner.scan(new DataInputStream(new ByteArrayInputStream(data)));
+			m_scanned++;
+			ci = new ClassInfo();
+			ci.size = size;
+			ci.lastModified = lastModified;
+			ci.crc = crcv;
+			ci.name = r.name;
+			ci.superName = r.superName;
+			ci.concrete = r.concrete;
+			ci.hasTests = r.hasTests;
+			ci.testMethods = r.testMethods;
+			ci.refs = r.refs;
+			m_dirty = true;
+			return ci;
+		} catch(IOException x) {
+			return null;
+		}
+	}
+
+	static private byte[] readFile(File f, long size) throws IOException {
+		if(size > Integer.MAX_VALUE)
+			throw new IOException(f + ": too large");
+		byte[] data = new byte[(int) size];
+		DataInputStream dis = new DataInputStream(new FileInputStream(f));
+		try {
+			dis.readFully(data);
+		} finally {
+			try { dis.close(); } catch(Exception x) {}
+		}
+		return data;
+	}
+
+	/**
+	 * A summary of the last {@link #scan(List)} call, for logging.
+	 */
+	public String getStatistics() {
+		return m_classCount + " class files, " + m_scanned + " scanned, " + m_crcChecked + " checked by CRC, " + m_changed.size() + " changed";
+	}
+}
@@ -0,0 +1,322 @@
+package to.etc.jenkins;
+
+import java.io.*;
+import java.net.*;
+import java.security.*;
+import java.util.*;
+
+import to.etc.prjbuilder.util.*;
+import to.etc.util.*;
+
+/**
+ * Creates the class loaders for the tests of modules. A module's classpath is split in two parts:
+ * the library jars, which do not change during a test run, and the directories with the output of
+ * the module and of the modules it depends on together with the jars made by this build. The
+ * library jars go into a chain of shared loaders, so that libraries like Hibernate or Spring are
+ * loaded, verified and compiled only once per build. The rest goes into a small loader per module,
+ * whose parent is the last shared loader. Jars are identified by the hash of their entries' names,
+ * sizes and CRC32s from the {@link JarIndex}, so copies of the same jar in different modules are
+ * loaded once too.
+ *
+ * The modules are registered with {@link #addModule(List, Set)} before they run. Each module's
+ * library jars are then ordered by the #of modules that use them, the most used first, and the
+ * ordered lists of all modules form a tree. Every run of jars in that tree that all modules share
+ * becomes one shared loader, whose parent is the loader of the jars before it. So modules whose
+ * libraries overlap share the loaders for the jars they have in common, and a jar never needs a
+ * jar of a later loader because its own dependencies are used by at least as many modules.
+ *
+ * Because the shared loaders are the parents, classes in library jars win over classes with the
+ * same name in the module's output, and static state in the libraries is shared by the tests of all
+ * modules using them. Modules for which that is a problem can be isolated: they get a single loader
+ * with their whole classpath, in classpath order.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+public class TestClassLoaders {
+	/**
+	 * A shared loader: its key identifies it together with all loaders below it.
+	 */
+	static public final class Layer {
+		private final String m_key;
+
+		private final List<URL> m_urls;
+
+		Layer(String key, List<URL> urls) {
+			m_key = key;
+			m_urls = urls;
+		}
+
+		public String getKey() {
+			return m_key;
+		}
+
+		public List<URL> getUrls() {
+			return m_urls;
+		}
+	}
+
+	/**
+	 * The classpath of a module, split in layers.
+	 */
+	static public final class Layers {
+		private final List<Layer> m_sharedLayers;
+
+		private final List<URL> m_moduleUrls;
+
+		Layers(List<Layer> sharedLayers, List<URL> moduleUrls) {
+			m_sharedLayers = sharedLayers;
+			m_moduleUrls = moduleUrls;
+		}
+
+		/**
+		 * The shared loaders, each the parent of the next; empty if the module is isolated.
+		 */
+		public List<Layer> getSharedLayers() {
+			return m_sharedLayers;
+		}
+
+		public List<URL> getModuleUrls() {
+			return m_moduleUrls;
+		}
+	}
+
+	/**
+	 * A node in the tree of the ordered library jars of all modules.
+	 */
+	static private final class Node {
+		final Map<String, Node> m_children = new HashMap<String, Node>();
+
+		/** T if the jars of a module end here. */
+		boolean m_end;
+	}
+
+	/** The index used to get the hash of jars; null to identify jars by path, size and date. */
+	private final JarIndex m_jarIndex;
+
+	/** The loader that org.junit classes come from. */
+	private final ClassLoader m_junitLoader;
+
+	private final Map<String, URLClassLoader> m_sharedMap = new HashMap<String, URLClassLoader>();
+
+	/** The library jar hashes of all registered modules. */
+	private final List<Set<String>> m_moduleList = new ArrayList<Set<String>>();
+
+	/** Maps a jar hash to the indexes of the registered modules that use it. */
+	private final Map<String, List<Integer>> m_usedByMap = new HashMap<String, List<Integer>>();
+
+	/** The tree of all registered modules' ordered jars; null until needed after a module was added. */
+	private Node m_tree;
+
+	public TestClassLoaders(JarIndex jarIndex, ClassLoader junitLoader) {
+		m_jarIndex = jarIndex;
+		m_junitLoader = junitLoader;
+	}
+
+	/**
+	 * Register the classpath of a module that is going to run, so that its library jars can be
+	 * shared with the other modules. built are the jars made by this build, which are not shared.
+	 */
+	public synchronized void addModule(List<File> classpath, Set<File> built) {
+		Set<String> hashes = new HashSet<String>(getLibraries(classpath, built).keySet());
+		Integer ix = Integer.valueOf(m_moduleList.size());
+		m_moduleList.add(hashes);
+		for(String hash : hashes) {
+			List<Integer> l = m_usedByMap.get(hash);
+			if(l == null) {
+				l = new ArrayList<Integer>();
+				m_usedByMap.put(hash, l);
+			}
+			l.add(ix);
+		}
+		m_tree = null;
+	}
+
+	/**
+	 * Split a classpath in layers. built are the jars made by this build, which go into the module's
+	 * own loader with its directories. extra are added as the lowest shared layer, or to the end of
+	 * the classpath of an isolated module.
+	 */
+	public Layers split(List<File> classpath, Set<File> built, List<URL> extra, boolean isolated) throws Exception {
+		if(isolated) {
+			List<URL> all = new ArrayList<URL>();
+			for(File f : classpath)
+				all.add(f.toURI().toURL());
+			all.addAll(extra);
+			return new Layers(new ArrayList<Layer>(), all);
+		}
+
+		List<URL> module = new ArrayList<URL>();
+		for(File f : classpath) {
+			if(!f.isFile() || built.contains(f))
+				module.add(f.toURI().toURL());
+		}
+		Map<String, File> libs = getLibraries(classpath, built);
+		List<String> order = new ArrayList<String>(libs.keySet());
+		Node node;
+		synchronized(this) {
+			sortByUse(order);
+			node = getTree();
+		}
+
+		//-- Cut the jars where the tree branches, or where another module's jars end.
+		List<Layer> shared = new ArrayList<Layer>();
+		StringBuilder key = new StringBuilder();
+		if(extra.size() > 0) {
+			for(URL u : extra)
+				key.append(u).append(',');
+			shared.add(new Layer(digest(key), new ArrayList<URL>(extra)));
+		}
+		List<URL> urls = new ArrayList<URL>();
+		for(int i = 0; i < order.size(); i++) {
+			String hash = order.get(i);
+			key.append(hash).append(',');
+			urls.add(libs.get(hash).toURI().toURL());
+			node = node == null ? null : node.m_children.get(hash);
+			boolean cut = i == order.size() - 1 || (node != null && (node.m_end || node.m_children.size() != 1));
+			if(cut) {
+				shared.add(new Layer(digest(key), urls));
+				urls = new ArrayList<URL>();
+			}
+		}
+		return new Layers(shared, module);
+	}
+
+	/**
+	 * Return the library jars of a classpath by hash, the first copy of each.
+	 */
+	private Map<String, File> getLibraries(List<File> classpath, Set<File> built) {
+		Map<String, File> res = new LinkedHashMap<String, File>();
+		for(File f : classpath) {
+			if(!f.isFile() || built.contains(f))
+				continue;
+			String hash = getHash(f);
+			if(!res.containsKey(hash))
+				res.put(hash, f);
+		}
+		return res;
+	}
+
+	/**
+	 * Order jar hashes by the #of registered modules that use them, the most used first. Jars used
+	 * by the same modules are kept together, so that no module's jars get cut between them.
+	 */
+	private void sortByUse(List<String> hashes) {
+		Collections.sort(hashes, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				List<Integer> ua = getUsers(a);
+				List<Integer> ub = getUsers(b);
+				if(ua.size() != ub.size())
+					return ub.size() - ua.size();
+				for(int i = 0; i < ua.size(); i++) {
+					int res = ua.get(i).compareTo(ub.get(i));
+					if(res != 0)
+						return res;
+				}
+				return a.compareTo(b);
+			}
+		});
+	}
+
+	private List<Integer> getUsers(String hash) {
+		List<Integer> l = m_usedByMap.get(hash);
+		return l == null ? Collections.<Integer> emptyList() : l;
+	}
+
+	private Node getTree() {
+		if(m_tree == null) {
+			Node root = new Node();
+			for(Set<String> hashes : m_moduleList) {
+				List<String> order = new ArrayList<String>(hashes);
+				sortByUse(order);
+				Node n = root;
+				for(String hash : order) {
+					Node c = n.m_children.get(hash);
+					if(c == null) {
+						c = new Node();
+						n.m_children.put(hash, c);
+					}
+					n = c;
+				}
+				n.m_end = true;
+			}
+			m_tree = root;
+		}
+		return m_tree;
+	}
+
+	static private String digest(CharSequence key) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			return StringTool.toHex(md.digest(key.toString().getBytes("utf-8")));
+		} catch(Exception x) {
+			throw WrappedException.wrap(x);
+		}
+	}
+
+	private String getHash(File f) {
+		if(m_jarIndex != null) {
+			try {
+				return m_jarIndex.getInfo(f).getEntriesHash();
+			} catch(IOException x) {
+				//-- Not a readable jar: use its identity.
+			}
+		}
+		return f.getAbsolutePath() + ":" + f.length() + ":" + f.lastModified();
+	}
+
+	/**
+	 * Create the loader for a module's tests. It must be closed after use; that leaves its shared
+	 * parents alone.
+	 */
+	public URLClassLoader createLoader(Layers layers) {
+		ClassLoader parent = null;
+		synchronized(this) {
+			for(Layer l : layers.getSharedLayers()) {
+				URLClassLoader ucl = m_sharedMap.get(l.getKey());
+				if(ucl == null) {
+					ucl = createJunitLoader(l.getUrls(), parent);
+					m_sharedMap.put(l.getKey(), ucl);
+				}
+				parent = ucl;
+			}
+		}
+		return createJunitLoader(layers.getModuleUrls(), parent);
+	}
+
+	/**
+	 * Create a loader that uses our JUnit. Without a parent it uses the system class loader.
+	 */
+	private URLClassLoader createJunitLoader(List<URL> urls, ClassLoader parent) {
+		final ClassLoader dad = m_junitLoader;
+		URL[] ar = urls.toArray(new URL[urls.size()]);
+		return new URLClassLoader(ar, parent == null ? ClassLoader.getSystemClassLoader() : parent) {
+			@Override
+			public java.lang.Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+				if(name.startsWith("org.junit")) {
+					return dad.loadClass(name);
+				}
+				return super.loadClass(name, resolve);
+			}
+		};
+	}
+
+	/**
+	 * The #of shared loaders created.
+	 */
+	public synchronized int getSharedCount() {
+		return m_sharedMap.size();
+	}
+
+	/**
+	 * Close all shared loaders; call when all tests have run.
+	 */
+	public synchronized void close() {
+		for(URLClassLoader ucl : m_sharedMap.values()) {
+			try {
+				ucl.close();
+			} catch(Exception x) {}
+		}
+		m_sharedMap.clear();
+	}
+}
@@ -0,0 +1,226 @@
+package to.etc.jenkins;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Reads just enough of a class file to know whether it is a JUnit test class: its name, its
+ * superclass, whether it can be instantiated, and which of its methods are annotated with
+ * org.junit.Test. It also returns the classes it refers to, taken from the Class entries in
+ * the constant pool, which is what test selection uses to find the tests affected by a change.
+ * Field and method bodies, debug info and all other attributes are skipped without being parsed.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+final class TestClassScanner {
+	static private final String	TEST_ANNOTATION = "Lorg/junit/Test;";
+
+	static private final String	RVA = "RuntimeVisibleAnnotations";
+
+	static private final int	ACC_INTERFACE = 0x0200;
+
+	static private final int	ACC_ABSTRACT = 0x0400;
+
+	private TestClassScanner() {}
+
+	/**
+	 * The result of a scan.
+	 */
+	static final class Result {
+		/** The class name, dotted. */
+		String	name;
+
+		/** The superclass name, dotted; null for java.lang.Object. */
+		String	superName;
+
+		/** T if the class is not abstract and not an interface. */
+		boolean	concrete;
+
+		/** T if the class itself has @Test methods. */
+		boolean	hasTests;
+
+		/** The names of the @Test methods of the class itself. */
+		List<String> testMethods = new ArrayList<String>();
+
+		/** The dotted names of the classes referred to, except java.* and the class itself. */
+		String[] refs;
+	}
+
+	static Result scan(DataInputStream dis) throws IOException {
+		if(dis.readInt() != 0xcafebabe)
+			throw new IOException("Not a class file");
+		dis.readUnsignedShort(); // minor
+		dis.readUnsignedShort(); // major
+
+		//-- Constant pool: keep the utf8 strings and the name index of all Class entries.
+		int count = dis.readUnsignedShort();
+		String[] utf = new String[count];
+		int[] classNameIx = new int[count];
+		for(int i = 1; i < count; i++) {
+			int tag = dis.readUnsignedByte();
+			switch(tag) {
+				default:
+					throw new IOException("Unknown constant pool tag " + tag);
+				case 1: // Utf8
+					utf[i] = dis.readUTF();
+					break;
+				case 7: // Class
+					classNameIx[i] = dis.readUnsignedShort();
+					break;
+				case 8: // String
+				case 16: // MethodType
+				case 19: // Module
+				case 20: // Package
+					skip(dis, 2);
+					break;
+				case 15: // MethodHandle
+					skip(dis, 3);
+					break;
+				case 3: // Integer
+				case 4: // Float
+				case 9: // Fieldref
+				case 10: // Methodref
+				case 11: // InterfaceMethodref
+				case 12: // NameAndType
+				case 17: // Dynamic
+				case 18: // InvokeDynamic
+					skip(dis, 4);
+					break;
+				case 5: // Long
+				case 6: // Double
+					skip(dis, 8);
+					i++; // These take two slots
+					break;
+			}
+		}
+
+		Result r = new Result();
+		int access = dis.readUnsignedShort();
+		r.concrete = (access & (ACC_ABSTRACT | ACC_INTERFACE)) == 0;
+		r.name = utf[classNameIx[dis.readUnsignedShort()]].replace('/', '.');
+		int superIx = dis.readUnsignedShort();
+		r.superName = superIx == 0 ? null : utf[classNameIx[superIx]].replace('/', '.');
+		if("java.lang.Object".equals(r.superName))
+			r.superName = null;
+		skip(dis, 2 * dis.readUnsignedShort()); // interfaces
+
+		//-- All classes referred to; array classes refer to their element class.
+		Set<String> refs = new HashSet<String>();
+		for(int i = 1; i < count; i++) {
+			if(classNameIx[i] == 0)
+				continue;
+			String cn = utf[classNameIx[i]];
+			if(cn.startsWith("[")) {
+				int ix = cn.indexOf('L');
+				if(ix < 0)
+					continue; // Array of primitives
+				cn = cn.substring(ix + 1, cn.length() - 1);
+			}
+			if(!cn.startsWith("java/"))
+				refs.add(cn.replace('/', '.'));
+		}
+		refs.remove(r.name);
+		r.refs = refs.toArray(new String[refs.size()]);
+
+		//-- Fields: skip all
+		int n = dis.readUnsignedShort();
+		for(int i = 0; i < n; i++) {
+			skip(dis, 6);
+			skipAttributes(dis);
+		}
+
+		//-- Methods: only look at their names and annotations
+		n = dis.readUnsignedShort();
+		for(int i = 0; i < n; i++) {
+			skip(dis, 2);
+			String mname = utf[dis.readUnsignedShort()];
+			skip(dis, 2);
+			int ac = dis.readUnsignedShort();
+			for(int j = 0; j < ac; j++) {
+				String an = utf[dis.readUnsignedShort()];
+				int len = dis.readInt();
+				if(RVA.equals(an)) {
+					if(hasTestAnnotation(dis, utf)) {
+						r.hasTests = true;
+						r.testMethods.add(mname);
+					}
+				} else
+					skip(dis, len);
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Read a RuntimeVisibleAnnotations attribute completely.
+	 */
+	static private boolean hasTestAnnotation(DataInputStream dis, String[] utf) throws IOException {
+		boolean found = false;
+		int n = dis.readUnsignedShort();
+		for(int i = 0; i < n; i++) {
+			if(TEST_ANNOTATION.equals(utf[dis.readUnsignedShort()]))
+				found = true;
+			skipPairs(dis);
+		}
+		return found;
+	}
+
+	static private void skipPairs(DataInputStream dis) throws IOException {
+		int n = dis.readUnsignedShort();
+		for(int i = 0; i < n; i++) {
+			skip(dis, 2);
+			skipElementValue(dis);
+		}
+	}
+
+	static private void skipElementValue(DataInputStream dis) throws IOException {
+		int tag = dis.readUnsignedByte();
+		switch(tag) {
+			default:
+				throw new IOException("Unknown annotation element tag " + tag);
+			case 'B':
+			case 'C':
+			case 'D':
+			case 'F':
+			case 'I':
+			case 'J':
+			case 'S':
+			case 'Z':
+			case 's':
+			case 'c':
+				skip(dis, 2);
+				break;
+			case 'e':
+				skip(dis, 4);
+				break;
+			case '@':
+				skip(dis, 2);
+				skipPairs(dis);
+				break;
+			case '[':
+				int n = dis.readUnsignedShort();
+				for(int i = 0; i < n; i++)
+					skipElementValue(dis);
+				break;
+		}
+	}
+
+	static private void skipAttributes(DataInputStream dis) throws IOException {
+		int n = dis.readUnsignedShort();
+		for(int i = 0; i < n; i++) {
+			skip(dis, 2);
+			skip(dis, dis.readInt());
+		}
+	}
+
+	static private void skip(DataInputStream dis, int len) throws IOException {
+		while(len > 0) {
+			int sz = dis.skipBytes(len);
+			if(sz <= 0) {
+				dis.readByte(); // Throws EOF at the end
+				sz = 1;
+			}
+			len -= sz;
+		}
+	}
+}
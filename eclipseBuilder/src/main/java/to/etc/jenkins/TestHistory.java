@@ -0,0 +1,110 @@
+package to.etc.jenkins;
+
+import java.io.*;
+import java.util.*;
+
+import to.etc.util.*;
+
+/**
+ * The run times of test classes in earlier test runs, used to split the tests in shards of about
+ * the same run time. Test classes are identified by their module name and class name.
+ *
+ * A shard's tests are determined by the history alone, so all shards must use the same history
+ * to get a split where every test class is run exactly once. That is why shards do not update the
+ * history themselves: {@link TestResultMerger} does that when it merges their results.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+public class TestHistory implements Serializable {
+	static private final long serialVersionUID = 1;
+
+	/** The run time used for test classes that never ran, when no other run times are known. */
+	static private final long DEFAULT_DURATION = 1000;
+
+	/** Maps module/class to the run time of the class' tests in millis. */
+	private Map<String, Long> m_durationMap = new HashMap<String, Long>();
+
+	private transient File m_file;
+
+	private transient boolean m_dirty;
+
+	/**
+	 * Load the history from the file. If that fails for whatever reason an empty history is returned.
+	 */
+	static public TestHistory load(File f) {
+		TestHistory th = null;
+		try {
+			if(f.exists())
+				th = (TestHistory) FileTool.loadSerialized(f);
+		} catch(Exception x) {}
+		if(th == null)
+			th = new TestHistory();
+		th.m_file = f;
+		return th;
+	}
+
+	/**
+	 * Save the history if it changed.
+	 */
+	public synchronized void save() throws IOException {
+		if(m_dirty && m_file != null) {
+			FileTool.saveSerialized(m_file, this);
+			m_dirty = false;
+		}
+	}
+
+	static public String key(String module, String className) {
+		return module + "/" + className;
+	}
+
+	/**
+	 * Register the run times of the test classes of a module, as class name to millis.
+	 */
+	public synchronized void setDurations(String module, Map<String, Long> durations) {
+		for(Map.Entry<String, Long> me : durations.entrySet())
+			m_durationMap.put(key(module, me.getKey()), me.getValue());
+		if(durations.size() > 0)
+			m_dirty = true;
+	}
+
+	/**
+	 * Split the test classes, as keys from {@link #key(String, String)}, in count shards of about the
+	 * same run time, and return the ones in the shard with the specified index (0-based). The longest
+	 * test class is put in the shard with the lowest run time, until all are assigned; classes without
+	 * history get the average run time. The result only depends on the keys and the history.
+	 */
+	public synchronized Set<String> getShard(Collection<String> keys, int index, int count) {
+		long total = 0;
+		for(Long l : m_durationMap.values())
+			total += l.longValue();
+		final long dflt = m_durationMap.size() == 0 ? DEFAULT_DURATION : total / m_durationMap.size();
+
+		final Map<String, Long> durations = new HashMap<String, Long>();
+		for(String key : keys) {
+			Long d = m_durationMap.get(key);
+			durations.put(key, Long.valueOf(d == null ? dflt : d.longValue()));
+		}
+		List<String> list = new ArrayList<String>(durations.keySet());
+		Collections.sort(list, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				int res = durations.get(b).compareTo(durations.get(a));
+				return res != 0 ? res : a.compareTo(b);
+			}
+		});
+
+		long[] load = new long[count];
+		Set<String> res = new HashSet<String>();
+		for(String key : list) {
+			int best = 0;
+			for(int i = 1; i < count; i++) {
+				if(load[i] < load[best])
+					best = i;
+			}
+			load[best] += durations.get(key).longValue();
+			if(best == index)
+				res.add(key);
+		}
+		return res;
+	}
+}
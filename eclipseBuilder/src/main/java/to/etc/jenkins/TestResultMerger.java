@@ -0,0 +1,180 @@
+package to.etc.jenkins;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+
+import javax.xml.parsers.*;
+
+import org.w3c.dom.*;
+
+import to.etc.xml.*;
+
+/**
+ * Merges the result files of test shards into the normal result file of each module, so that
+ * Jenkins shows a single report. The run times of the test classes are added to the test history,
+ * to be used for the split of the next sharded run, and the outcome of every test is added to the
+ * {@link ModuleTestHistory} of the module. When the shards ran on different machines
+ * their result files must first be copied into one workspace; they have different names so this
+ * does not overwrite anything.
+ *
+ * Usage: TestResultMerger [-history file] directory...
+ *
+ * All directories are searched for shard result files. The history defaults to the one in the
+ * first directory, which is where the test runner keeps it.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+public class TestResultMerger {
+	/** The name of a module's test result file. */
+	static public final String RESULT_NAME = "SUITE-testResult.xml";
+
+	/** The name of the result file of shard n is this followed by n.xml. */
+	static public final String SHARD_PREFIX = "SUITE-testResult-shard";
+
+	/** The name of the test history in the workspace. */
+	static public final String HISTORY_NAME = ".testdurations";
+
+	private int m_fileCount;
+
+	public static void main(String[] args) {
+		try {
+			System.exit(new TestResultMerger().run(args));
+		} catch(Exception x) {
+			x.printStackTrace();
+			System.exit(10);
+		}
+	}
+
+	private int run(String[] args) throws Exception {
+		File historyFile = null;
+		List<File> dirs = new ArrayList<File>();
+		for(int i = 0; i < args.length; i++) {
+			String s = args[i];
+			if("-history".equals(s) && i + 1 < args.length)
+				historyFile = new File(args[++i]);
+			else if(s.startsWith("-")) {
+				System.err.println("Usage: TestResultMerger [-history file] directory...");
+				return 1;
+			} else
+				dirs.add(new File(s));
+		}
+		if(dirs.size() == 0) {
+			System.err.println("Usage: TestResultMerger [-history file] directory...");
+			return 1;
+		}
+
+		TestHistory th = TestHistory.load(historyFile != null ? historyFile : new File(dirs.get(0), HISTORY_NAME));
+		for(File dir : dirs)
+			mergeDirectory(dir, th);
+		th.save();
+		System.out.println("Merged " + m_fileCount + " shard result files");
+		return 0;
+	}
+
+	private void mergeDirectory(File dir, TestHistory th) throws Exception {
+		File[] far = dir.listFiles();
+		if(far == null)
+			return;
+		List<File> shards = new ArrayList<File>();
+		for(File f : far) {
+			if(f.isDirectory())
+				mergeDirectory(f, th);
+			else if(f.getName().startsWith(SHARD_PREFIX) && f.getName().endsWith(".xml"))
+				shards.add(f);
+		}
+		if(shards.size() == 0)
+			return;
+		Collections.sort(shards);
+		merge(new File(dir, RESULT_NAME), shards, th);
+		m_fileCount += shards.size();
+		for(File f : shards)
+			f.delete();
+	}
+
+	/**
+	 * Merge the test cases of all shard files into one test suite, and register the run times of
+	 * the test classes in the history, and the outcome of the tests in the history of the module
+	 * in the output's directory.
+	 */
+	static public void merge(File out, List<File> shards, TestHistory th) throws Exception {
+		Document res = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+		Element root = res.createElement("testsuites");
+		res.appendChild(root);
+		Element suite = res.createElement("testsuite");
+		root.appendChild(suite);
+
+		String name = null;
+		String timestamp = null;
+		double time = 0;
+		int tests = 0, failures = 0, skipped = 0;
+		Map<String, Long> durations = new HashMap<String, Long>();
+		Map<String, Long> testDurations = new HashMap<String, Long>();
+		Set<String> failedTests = new HashSet<String>();
+		for(File f : shards) {
+			Document doc = DomTools.getDocument(f, false);
+			for(Node sn : DomTools.nodesFind(doc.getDocumentElement(), "testsuite")) {
+				if(name == null)
+					name = DomTools.strAttr(sn, "name", null);
+				String ts = DomTools.strAttr(sn, "timestamp", null);
+				if(ts != null && (timestamp == null || ts.compareTo(timestamp) < 0))
+					timestamp = ts;
+				time += getTime(sn);
+
+				for(Node tn : DomTools.nodesFind(sn, "testcase")) {
+					suite.appendChild(res.importNode(tn, true));
+					tests++;
+					if(DomTools.nodesFind(tn, "skipped").size() > 0) {
+						skipped++;
+						continue;
+					}
+					String cn = DomTools.strAttr(tn, "classname", null);
+					String tname = DomTools.strAttr(tn, "name", "unknown") + "(" + cn + ")";
+					long ms = (long) (getTime(tn) * 1000);
+					testDurations.put(tname, Long.valueOf(ms));
+					if(DomTools.nodesFind(tn, "error").size() > 0 || DomTools.nodesFind(tn, "failure").size() > 0) {
+						failures++;
+						failedTests.add(tname);
+					}
+					if(cn != null) {
+						Long l = durations.get(cn);
+						durations.put(cn, Long.valueOf(ms + (l == null ? 0 : l.longValue())));
+					}
+				}
+			}
+		}
+
+		DecimalFormat df = new DecimalFormat("0.000", DecimalFormatSymbols.getInstance(Locale.US));
+		DomTools.setAttr(suite, "name", name == null ? out.getParentFile().getName() : name);
+		DomTools.setAttr(suite, "tests", Integer.toString(tests));
+		DomTools.setAttr(suite, "failures", Integer.toString(failures));
+		DomTools.setAttr(suite, "errors", "0");
+		DomTools.setAttr(suite, "skipped", Integer.toString(skipped));
+		DomTools.setAttr(suite, "time", df.format(time));
+		if(timestamp != null)
+			DomTools.setAttr(suite, "timestamp", timestamp);
+		DomTools.saveDocument(out, res);
+
+		if(name != null)
+			th.setDurations(name, durations);
+		if(testDurations.size() > 0) {
+			ModuleTestHistory mth = ModuleTestHistory.load(new File(out.getParentFile(), ModuleTestHistory.NAME));
+			mth.addRun(testDurations, failedTests);
+			mth.save();
+		}
+	}
+
+	/**
+	 * Get the time attribute in seconds. The runner formats it in the default locale, so it may have a decimal comma.
+	 */
+	static private double getTime(Node n) {
+		String s = DomTools.strAttr(n, "time", null);
+		if(s == null)
+			return 0;
+		try {
+			return Double.parseDouble(s.trim().replace(',', '.'));
+		} catch(NumberFormatException x) {
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package to.etc.jenkins;
+
+import java.io.*;
+import java.util.*;
+
+import to.etc.prjbuilder.builder.*;
+import to.etc.util.*;
+
+/**
+ * Decides which tests are run after a build, so that a build that changed one module does not
+ * run the tests of all modules. It uses the {@link TestClassIndex} of every module, which now
+ * covers all of the module's output, to find the classes that changed since the module's tests
+ * last ran.
+ * <ul>
+ *	<li>In MODULE mode all tests of a module are run when the module was rebuilt (it has a build
+ *		reason; the build plan also gives one to all modules that depend on a rebuilt module),
+ *		when classes of the module or of one of its dependencies changed, or when its tests
+ *		failed the last time. The tests of all other modules are skipped.</li>
+ *	<li>In CLASS mode the same modules are selected, but in them only the test classes are run
+ *		that refer to a changed class, directly or through other classes, using the class
+ *		references from the bytecode. When a module was rebuilt but no class in it or its
+ *		dependencies changed, for instance because a library jar changed, all its tests are run.
+ *		Test classes that failed the last time are always run.</li>
+ * </ul>
+ * All tests are run in ALL mode, when asked for, every "runall.every" test runs, and when there is
+ * no saved state, like after a clean checkout. The indexes are only saved after all selected tests
+ * have run, so changes are not lost when a test run is aborted or stopped by fail-fast.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+public class TestSelector {
+	/** The name of the test class index in a module's output directory. */
+	static private final String INDEX_NAME = ".testclasses.idx";
+
+	/** The name of the state file in the work root. */
+	static private final String STATE_NAME = ".testselection.state";
+
+	static private final class State implements Serializable {
+		static private final long serialVersionUID = 1;
+
+		/** The #of test runs since all tests were last run. */
+		int runs;
+
+		/** Maps a module name to the names of its test classes that failed in the last run. */
+		Map<String, Set<String>> failed = new HashMap<String, Set<String>>();
+	}
+
+	private final TestSelectionMode m_mode;
+
+	private final File m_stateFile;
+
+	private final boolean m_forceAll;
+
+	private final int m_runAllEvery;
+
+	private State m_state;
+
+	/** Why all tests are run, or null if tests are selected. */
+	private String m_runAllReason;
+
+	private final Map<ModuleBuildInfo, TestClassIndex> m_indexMap = new HashMap<ModuleBuildInfo, TestClassIndex>();
+
+	/** The modules whose classes changed since their tests last ran. */
+	private final Set<ModuleBuildInfo> m_changedModules = new HashSet<ModuleBuildInfo>();
+
+	/** CLASS mode: all classes that are changed or that refer to a changed class, directly or indirectly. */
+	private Set<String> m_affected;
+
+	public TestSelector(TestSelectionMode mode, File workRoot, boolean forceAll, int runAllEvery) {
+		m_mode = mode;
+		m_stateFile = new File(workRoot, STATE_NAME);
+		m_forceAll = forceAll;
+		m_runAllEvery = runAllEvery;
+	}
+
+	/**
+	 * Update the indexes of all modules, and determine what changed.
+	 */
+	public void prepare(OrderedBuildList list, PrintStream log) throws Exception {
+		m_state = null;
+		try {
+			if(m_stateFile.exists())
+				m_state = (State) FileTool.loadSerialized(m_stateFile);
+		} catch(Exception x) {}
+
+		if(m_mode == TestSelectionMode.ALL)
+			m_runAllReason = "test selection is off";
+		else if(m_forceAll)
+			m_runAllReason = "running all tests was requested";
+		else if(m_state == null)
+			m_runAllReason = "there is no test selection state";
+		else if(m_runAllEvery > 0 && m_state.runs + 1 >= m_runAllEvery)
+			m_runAllReason = "all tests are run every " + m_runAllEvery + " test runs";
+		if(m_state == null)
+			m_state = new State();
+
+		Set<String> changed = new HashSet<String>();
+		Map<String, String[]> refs = new HashMap<String, String[]>();
+		for(ModuleBuildInfo mbi : list) {
+			TestClassIndex tci = TestClassIndex.load(new File(mbi.getOutputDir(), INDEX_NAME));
+			tci.scan(mbi.getMaker().getModuleOutputPaths(false));
+			log.println("testrunner: Class index of " + mbi.getName() + ": " + tci.getStatistics());
+			m_indexMap.put(mbi, tci);
+			if(tci.getChangedClasses().size() > 0)
+				m_changedModules.add(mbi);
+			if(m_runAllReason == null && m_mode == TestSelectionMode.CLASS) {
+				changed.addAll(tci.getChangedClasses());
+				tci.addReferences(refs);
+			}
+		}
+		if(m_runAllReason != null) {
+			log.println("testrunner: Running all tests: " + m_runAllReason);
+			return;
+		}
+		if(m_mode == TestSelectionMode.CLASS)
+			m_affected = findAffected(changed, refs);
+	}
+
+	/**
+	 * Walk the references backwards, from the changed classes to all classes that use them.
+	 */
+	static private Set<String> findAffected(Set<String> changed, Map<String, String[]> refs) {
+		Map<String, List<String>> usedBy = new HashMap<String, List<String>>();
+		for(Map.Entry<String, String[]> me : refs.entrySet()) {
+			for(String ref : me.getValue()) {
+				List<String> l = usedBy.get(ref);
+				if(l == null) {
+					l = new ArrayList<String>(2);
+					usedBy.put(ref, l);
+				}
+				l.add(me.getKey());
+			}
+		}
+
+		Set<String> res = new HashSet<String>(changed);
+		LinkedList<String> todo = new LinkedList<String>(changed);
+		while(todo.size() > 0) {
+			List<String> l = usedBy.get(todo.removeFirst());
+			if(l == null)
+				continue;
+			for(String user : l) {
+				if(res.add(user))
+					todo.add(user);
+			}
+		}
+		return res;
+	}
+
+	public TestClassIndex getIndex(ModuleBuildInfo mbi) {
+		return m_indexMap.get(mbi);
+	}
+
+	/**
+	 * Return the test classes of the module that must be run, from all of its test classes. The
+	 * reason is logged.
+	 */
+	public Set<String> select(ModuleBuildInfo mbi, Set<String> tests, PrintStream log) {
+		if(m_runAllReason != null)
+			return tests;
+		Set<String> failed = getFailed(mbi);
+		boolean changed = m_changedModules.contains(mbi);
+		for(ModuleBuildInfo dep : mbi.getFullDependencyList()) {
+			if(m_changedModules.contains(dep))
+				changed = true;
+		}
+		if(mbi.getBuildReason() == null && !changed && failed.size() == 0) {
+			log.println("testrunner: Skipping the tests of " + mbi.getName() + ": it is not affected by the changes");
+			return new TreeSet<String>();
+		}
+		if(m_mode == TestSelectionMode.MODULE)
+			return tests;
+		if(!changed && mbi.getBuildReason() != null) {
+			log.println("testrunner: Running all tests of " + mbi.getName() + ": it was rebuilt but none of its classes changed");
+			return tests;
+		}
+
+		Set<String> res = new TreeSet<String>();
+		for(String name : tests) {
+			if(failed.contains(name) || m_affected.contains(name))
+				res.add(name);
+		}
+		log.println("testrunner: Running " + res.size() + " of " + tests.size() + " test classes of " + mbi.getName() + " that are affected by the changes");
+		return res;
+	}
+
+	private synchronized Set<String> getFailed(ModuleBuildInfo mbi) {
+		Set<String> failed = m_state.failed.get(mbi.getName());
+		return failed == null ? Collections.<String> emptySet() : failed;
+	}
+
+	/**
+	 * Register the result of the tests of a module: the names of the test classes that failed. A
+	 * test class that was skipped keeps its old result.
+	 */
+	public synchronized void finished(ModuleBuildInfo mbi, Set<String> ran, Set<String> failed) {
+		Set<String> res = new HashSet<String>(getFailed(mbi));
+		res.removeAll(ran);
+		res.addAll(failed);
+		if(res.size() == 0)
+			m_state.failed.remove(mbi.getName());
+		else
+			m_state.failed.put(mbi.getName(), res);
+	}
+
+	/**
+	 * Save the state, and when all selected tests ran also the indexes; call after the test run.
+	 * When the run was stopped early only the failures are saved: the changes stay in the indexes,
+	 * so that the tests they select run again the next time, and the run is not counted.
+	 */
+	public synchronized void save(boolean complete) throws Exception {
+		if(complete) {
+			for(TestClassIndex tci : m_indexMap.values())
+				tci.save();
+			m_state.runs = m_runAllReason != null ? 0 : m_state.runs + 1;
+		}
+		FileTool.saveSerialized(m_stateFile, m_state);
+	}
+}
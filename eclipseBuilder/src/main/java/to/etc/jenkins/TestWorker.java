@@ -0,0 +1,594 @@
+package to.etc.jenkins;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.runner.*;
+import org.junit.runner.notification.*;
+import org.junit.runners.*;
+import org.junit.runners.model.*;
+
+/**
+ * The main class of a forked test JVM, started by {@link TestWorkerPool}. It runs the tests of one
+ * module at a time, each in its own class loader, and can run many modules one after another.
+ * The library jars of a module are loaded by a chain of shared loaders that are kept, and reused by
+ * all later modules that have the same shared layer keys.
+ *
+ * Commands are read from stdin, and all events are written to stdout as they happen; the output
+ * of the tests themselves is caught and sent as events too. Both streams use the same format: an
+ * int message code followed by its fields. Commands:
+ * <ul>
+ *	<li>RUN name, #shared layers, per layer its key, #urls and urls, #urls, urls, #classes, classnames,
+ *		#order, names, parallel, #threads: run the tests of a module, in the order of a {@link RankOrder}
+ *		with the names. Each shared layer is the parent of the next. Without shared layers the module is
+ *		isolated. With a parallel mode the tests run on #threads threads, see {@link ParallelComputer}.
+ *		Events are sent while the tests run, the last one is DONE.</li>
+ *	<li>DUMP: send a DUMP event with the stack traces of all threads.</li>
+ *	<li>STOP: stop the running tests after the current test.</li>
+ *	<li>QUIT: exit the JVM.</li>
+ * </ul>
+ * This class runs in a JVM that has just this class and JUnit on its classpath, so it must not use
+ * any other class of the builder.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+public class TestWorker {
+	/*--------------------------------------------------------------*/
+	/*	CODING:	Protocol.											*/
+	/*--------------------------------------------------------------*/
+	static final int	CMD_RUN = 1;
+
+	static final int	CMD_DUMP = 2;
+
+	static final int	CMD_QUIT = 3;
+
+	static final int	CMD_STOP = 4;
+
+	/** Description */
+	static final int	EV_STARTED = 10;
+
+	/** Description, message, exception class, trace, filtered trace */
+	static final int	EV_FAILURE = 11;
+
+	/** Description */
+	static final int	EV_IGNORED = 12;
+
+	/** Description */
+	static final int	EV_FINISHED = 13;
+
+	/** Text written by the tests to System.out or System.err */
+	static final int	EV_OUTPUT = 14;
+
+	/** A message from the worker itself */
+	static final int	EV_LOG = 15;
+
+	/** Thread dump text */
+	static final int	EV_DUMP = 16;
+
+	/** Run time in millis; the module is done. */
+	static final int	EV_DONE = 17;
+
+	/** Description, text written by the test to System.out or System.err */
+	static final int	EV_TEST_OUTPUT = 18;
+
+	/** The test name of the failures of classes that cannot be loaded. */
+	static final String	LOAD_ERROR = "initializationError";
+
+	/** Parallel mode: the test classes of a module run at the same time. */
+	static final String	PARALLEL_CLASSES = "classes";
+
+	/** Parallel mode: the tests of a test class run at the same time. */
+	static final String	PARALLEL_METHODS = "methods";
+
+	static void writeString(DataOutputStream dos, String s) throws IOException {
+		if(s == null) {
+			dos.writeInt(-1);
+			return;
+		}
+		byte[] data = s.getBytes("utf-8");
+		dos.writeInt(data.length);
+		dos.write(data);
+	}
+
+	static String readString(DataInputStream dis) throws IOException {
+		int len = dis.readInt();
+		if(len < 0)
+			return null;
+		byte[] data = new byte[len];
+		dis.readFully(data);
+		return new String(data, "utf-8");
+	}
+
+	/*--------------------------------------------------------------*/
+	/*	CODING:	The worker.											*/
+	/*--------------------------------------------------------------*/
+	private final DataInputStream	m_in;
+
+	private final DataOutputStream	m_out;
+
+	private Thread					m_runner;
+
+	/** The notifier of the running tests, or null. */
+	private volatile RunNotifier	m_notifier;
+
+	/** The display name of the test running on a thread, to send its output with. */
+	private final ThreadLocal<String>	m_currentTest = new ThreadLocal<String>();
+
+	/** The loaders of the shared layers, by their key. */
+	private final Map<String, URLClassLoader>	m_sharedMap = new HashMap<String, URLClassLoader>();
+
+	private TestWorker(DataInputStream in, DataOutputStream out) {
+		m_in = in;
+		m_out = out;
+	}
+
+	public static void main(String[] args) {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 8192));
+		DataInputStream in = new DataInputStream(new BufferedInputStream(System.in, 8192));
+		TestWorker w = new TestWorker(in, out);
+		System.setOut(new PrintStream(w.new EventOutputStream(), true));
+		System.setErr(new PrintStream(w.new EventOutputStream(), true));
+		try {
+			w.commandLoop();
+		} catch(EOFException x) {
+			//-- Our parent is gone: just exit.
+		} catch(Throwable x) {
+			x.printStackTrace();
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Handle commands until QUIT. The tests run on a separate thread so that a dump can be
+	 * requested while a test hangs.
+	 */
+	private void commandLoop() throws Exception {
+		for(;;) {
+			int cmd = m_in.readInt();
+			switch(cmd) {
+				default:
+					throw new IOException("Unknown command " + cmd);
+
+				case CMD_QUIT:
+					return;
+
+				case CMD_DUMP:
+					sendString(EV_DUMP, threadDump());
+					break;
+
+				case CMD_STOP:
+					RunNotifier n = m_notifier;
+					if(n != null)
+						n.pleaseStop();
+					break;
+
+				case CMD_RUN:
+					final String name = readString(m_in);
+					String[] keys = new String[m_in.readInt()];
+					URL[][] shared = new URL[keys.length][];
+					for(int l = 0; l < keys.length; l++) {
+						keys[l] = readString(m_in);
+						shared[l] = new URL[m_in.readInt()];
+						for(int i = 0; i < shared[l].length; i++)
+							shared[l][i] = new URL(readString(m_in));
+					}
+					final URL[] urls = new URL[m_in.readInt()];
+					for(int i = 0; i < urls.length; i++)
+						urls[i] = new URL(readString(m_in));
+					final String[] classes = new String[m_in.readInt()];
+					for(int i = 0; i < classes.length; i++)
+						classes[i] = readString(m_in);
+					final List<String> order = new ArrayList<String>();
+					for(int i = m_in.readInt(); --i >= 0;)
+						order.add(readString(m_in));
+					final String parallel = readString(m_in);
+					final int threads = m_in.readInt();
+					if(m_runner != null && m_runner.isAlive())
+						throw new IllegalStateException("Still running a module");
+					final ClassLoader parent = getSharedLoader(keys, shared);
+					m_runner = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							runModule(name, parent, urls, classes, order, parallel, threads);
+						}
+					}, "test-runner");
+					m_runner.start();
+					break;
+			}
+		}
+	}
+
+	private void runModule(String name, ClassLoader parent, URL[] urls, String[] classes, List<String> order, String parallel, int threads) {
+		long ts = System.currentTimeMillis();
+		URLClassLoader ucl = createLoader(urls, parent);
+		ClassLoader oldcl = Thread.currentThread().getContextClassLoader();
+		Thread.currentThread().setContextClassLoader(ucl);
+		try {
+			List<Class< ? >> testl = new ArrayList<Class< ? >>();
+			for(String cname : classes) {
+				try {
+					testl.add(ucl.loadClass(cname));
+				} catch(Throwable x) {
+					new EventListener().testFailure(loadFailure(cname, x));
+				}
+			}
+			if(testl.size() == 0)
+				sendString(EV_LOG, "testrunner: All classes of " + name + " failed to load.");
+			else {
+				ParallelComputer pc = ParallelComputer.create(parallel, threads);
+				Request rq = Request.classes(pc == null ? Computer.serial() : pc, testl.toArray(new Class< ? >[testl.size()])).sortWith(new RankOrder(order));
+				RunNotifier notifier = new RunNotifier();
+				m_notifier = notifier;
+				try {
+					run(rq, notifier, new EventListener());
+				} finally {
+					if(pc != null)
+						pc.shutdown();
+				}
+			}
+		} catch(Throwable x) {
+			StringWriter sw = new StringWriter();
+			x.printStackTrace(new PrintWriter(sw));
+			sendString(EV_LOG, "ERROR: testrunner: test run of " + name + " failed: " + sw);
+		} finally {
+			m_notifier = null;
+			Thread.currentThread().setContextClassLoader(oldcl);
+			try {
+				ucl.close();
+			} catch(Exception x) {}
+			synchronized(m_out) {
+				try {
+					m_out.writeInt(EV_DONE);
+					m_out.writeLong(System.currentTimeMillis() - ts);
+					m_out.flush();
+				} catch(IOException x) {}
+			}
+		}
+	}
+
+	/**
+	 * The failure reported for a test class that cannot be loaded. Like JUnit does for a class that
+	 * cannot be run it is a failure of the class's "initializationError" test, so that it is counted
+	 * and written to the result file like any other failed test.
+	 */
+	static Failure loadFailure(String cname, Throwable x) {
+		return new Failure(Description.createSuiteDescription(LOAD_ERROR + "(" + cname + ")"), x);
+	}
+
+	static boolean isLoadFailure(Description d) {
+		return d.getDisplayName().startsWith(LOAD_ERROR + "(");
+	}
+
+	/**
+	 * Run the tests like JUnitCore does, but using the notifier passed so that the run can be
+	 * stopped with {@link RunNotifier#pleaseStop()}.
+	 */
+	static Result run(Request rq, RunNotifier notifier, RunListener... listeners) {
+		Result result = new Result();
+		notifier.addListener(result.createListener());
+		for(RunListener l : listeners)
+			notifier.addListener(l);
+		Runner runner = rq.getRunner();
+		try {
+			notifier.fireTestRunStarted(runner.getDescription());
+			runner.run(notifier);
+			notifier.fireTestRunFinished(result);
+		} catch(StoppedByUserException x) {
+			//-- The remaining tests are not run.
+		}
+		return result;
+	}
+
+	/**
+	 * Orders test classes and tests by their position in a list of names: classes by name, tests
+	 * by display name. Anything not in the list comes last, in its original order.
+	 */
+	static final class RankOrder implements Comparator<Description> {
+		private final Map<String, Integer>	m_rankMap = new HashMap<String, Integer>();
+
+		RankOrder(List<String> order) {
+			for(int i = 0; i < order.size(); i++) {
+				if(!m_rankMap.containsKey(order.get(i)))
+					m_rankMap.put(order.get(i), Integer.valueOf(i));
+			}
+		}
+
+		private int rank(Description d) {
+			Integer r = m_rankMap.get(d.getDisplayName());
+			return r == null ? Integer.MAX_VALUE : r.intValue();
+		}
+
+		@Override
+		public int compare(Description a, Description b) {
+			int ra = rank(a);
+			int rb = rank(b);
+			return ra < rb ? -1 : ra == rb ? 0 : 1;
+		}
+	}
+
+	/**
+	 * Runs the test classes of a module, or the tests of each test class, at the same time on a
+	 * fixed number of threads. Only one of the two is parallel, so a thread never waits for tests
+	 * that need a thread too. The tests are started in the order they have after sorting, so the
+	 * slow ones start first.
+	 */
+	static final class ParallelComputer extends Computer {
+		private final boolean			m_classes;
+
+		private final ExecutorService	m_executor;
+
+		ParallelComputer(boolean classes, int threads) {
+			m_classes = classes;
+			m_executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				private int m_count;
+
+				@Override
+				public synchronized Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "test-" + ++m_count);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+
+		/**
+		 * Create the computer for a parallel mode, or return null if the tests do not run in parallel.
+		 */
+		static ParallelComputer create(String parallel, int threads) {
+			if(PARALLEL_CLASSES.equals(parallel))
+				return new ParallelComputer(true, threads);
+			if(PARALLEL_METHODS.equals(parallel))
+				return new ParallelComputer(false, threads);
+			return null;
+		}
+
+		@Override
+		public Runner getSuite(RunnerBuilder builder, Class< ? >[] classes) throws InitializationError {
+			Runner suite = super.getSuite(builder, classes);
+			return m_classes ? parallelize(suite) : suite;
+		}
+
+		@Override
+		protected Runner getRunner(RunnerBuilder builder, Class< ? > testClass) throws Throwable {
+			Runner runner = super.getRunner(builder, testClass);
+			return m_classes ? runner : parallelize(runner);
+		}
+
+		private Runner parallelize(Runner runner) {
+			if(runner instanceof ParentRunner< ? >)
+				((ParentRunner< ? >) runner).setScheduler(new Scheduler());
+			return runner;
+		}
+
+		void shutdown() {
+			m_executor.shutdownNow();
+		}
+
+		/**
+		 * Runs the children of a runner on the threads, and waits for all of them when they have
+		 * been scheduled. An exception that ends a child, like the StoppedByUserException of a run
+		 * that is asked to stop, is thrown again when all are done.
+		 */
+		private final class Scheduler implements RunnerScheduler {
+			private final List<Future< ? >>	m_futureList = new ArrayList<Future< ? >>();
+
+			@Override
+			public void schedule(Runnable childStatement) {
+				m_futureList.add(m_executor.submit(childStatement));
+			}
+
+			@Override
+			public void finished() {
+				RuntimeException rx = null;
+				for(Future< ? > f : m_futureList) {
+					try {
+						f.get();
+					} catch(ExecutionException x) {
+						Throwable t = x.getCause();
+						if(t instanceof Error)
+							throw (Error) t;
+						if(rx == null)
+							rx = t instanceof RuntimeException ? (RuntimeException) t : new RuntimeException(t);
+					} catch(InterruptedException x) {
+						Thread.currentThread().interrupt();
+						throw new RuntimeException(x);
+					}
+				}
+				m_futureList.clear();
+				if(rx != null)
+					throw rx;
+			}
+		}
+	}
+
+	/**
+	 * Get the loader for the last of the shared layers, each the parent of the next, creating them
+	 * the first time their key is used. Returns null for an isolated module.
+	 */
+	private ClassLoader getSharedLoader(String[] keys, URL[][] urls) {
+		URLClassLoader parent = null;
+		for(int i = 0; i < keys.length; i++) {
+			URLClassLoader ucl = m_sharedMap.get(keys[i]);
+			if(ucl == null) {
+				ucl = createLoader(urls[i], parent);
+				m_sharedMap.put(keys[i], ucl);
+			}
+			parent = ucl;
+		}
+		return parent;
+	}
+
+	/**
+	 * Create a loader. Without a parent nothing from this JVM's classpath leaks into the tests,
+	 * except JUnit itself which must be the one this class uses.
+	 */
+	private URLClassLoader createLoader(URL[] urls, ClassLoader parent) {
+		final ClassLoader dad = getClass().getClassLoader();
+		return new URLClassLoader(urls, parent) {
+			@Override
+			protected Class< ? > loadClass(String name, boolean resolve) throws ClassNotFoundException {
+				if(name.startsWith("org.junit"))
+					return dad.loadClass(name);
+				return super.loadClass(name, resolve);
+			}
+		};
+	}
+
+	private void sendString(int code, String s) {
+		synchronized(m_out) {
+			try {
+				m_out.writeInt(code);
+				writeString(m_out, s);
+				m_out.flush();
+			} catch(IOException x) {}
+		}
+	}
+
+	static private String threadDump() {
+		StringBuilder sb = new StringBuilder();
+		for(Map.Entry<Thread, StackTraceElement[]> me : Thread.getAllStackTraces().entrySet()) {
+			Thread t = me.getKey();
+			sb.append('"').append(t.getName()).append('"');
+			if(t.isDaemon())
+				sb.append(" daemon");
+			sb.append(' ').append(t.getState()).append('\n');
+			for(StackTraceElement se : me.getValue())
+				sb.append("        at ").append(se).append('\n');
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Remove everything below JUnit test run.
+	 * @param t
+	 * @return
+	 */
+	static String filterTrace(Throwable t) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(t.toString()).append("\n");
+		filterTrace(sb, t);
+
+		for(;;) {
+			Throwable xt = t.getCause();
+			if(xt == t || xt == null)
+				break;
+			t = xt;
+
+			sb.append("Caused by: ").append(t.toString()).append("\n");
+			filterTrace(sb, t);
+		}
+
+		return sb.toString();
+	}
+
+
+	static private void filterTrace(StringBuilder sb, Throwable t) {
+		int eix = -1;
+		StackTraceElement[] ar = t.getStackTrace();
+		for(StackTraceElement se : ar) {
+			String s = se.getClassName();
+			if(s.startsWith("org.junit.runners")) {
+				break;
+			}
+			eix++;
+		}
+
+		//-- Move back over all "reflect" thingies
+		while(eix >= 0) {
+			String s = ar[eix].getClassName();
+			if(s.startsWith("sun.reflect") || s.startsWith("java.lang.reflect")) {
+				eix--;
+			} else
+				break;
+		}
+		if(eix <= 0)
+			eix = ar.length - 1;
+
+		for(int i = 0; i <= eix; i++) {
+			sb.append("        at " + ar[i].toString()).append("\n");
+		}
+	}
+
+	/**
+	 * Sends all JUnit events.
+	 */
+	private final class EventListener extends RunListener {
+		@Override
+		public void testStarted(Description description) throws Exception {
+			m_currentTest.set(description.getDisplayName());
+			sendString(EV_STARTED, description.getDisplayName());
+		}
+
+		@Override
+		public void testFailure(Failure failure) throws Exception {
+			Throwable t = failure.getException();
+			synchronized(m_out) {
+				m_out.writeInt(EV_FAILURE);
+				writeString(m_out, failure.getDescription().getDisplayName());
+				writeString(m_out, failure.getMessage());
+				writeString(m_out, t == null ? null : t.getClass().getName());
+				writeString(m_out, failure.getTrace());
+				writeString(m_out, t == null ? failure.getTrace() : filterTrace(t));
+				m_out.flush();
+			}
+		}
+
+		@Override
+		public void testIgnored(Description description) throws Exception {
+			sendString(EV_IGNORED, description.getDisplayName());
+		}
+
+		@Override
+		public void testFinished(Description description) throws Exception {
+			//-- Send what the test wrote before it finishes.
+			System.out.flush();
+			System.err.flush();
+			m_currentTest.remove();
+			sendString(EV_FINISHED, description.getDisplayName());
+		}
+	}
+
+	/**
+	 * Sends everything written to it as output events, per line or when flushed. Every thread has
+	 * its own buffer so that tests running at the same time do not mix their lines, and the output
+	 * of a thread running a test is sent with the name of the test.
+	 */
+	private final class EventOutputStream extends OutputStream {
+		private final ThreadLocal<ByteArrayOutputStream>	m_buffer = new ThreadLocal<ByteArrayOutputStream>() {
+			@Override
+			protected ByteArrayOutputStream initialValue() {
+				return new ByteArrayOutputStream();
+			}
+		};
+
+		@Override
+		public void write(int b) throws IOException {
+			m_buffer.get().write(b);
+			if(b == '\n')
+				flush();
+		}
+
+		@Override
+		public void flush() throws IOException {
+			ByteArrayOutputStream bos = m_buffer.get();
+			if(bos.size() == 0)
+				return;
+			String s = bos.toString("utf-8");
+			bos.reset();
+			String test = m_currentTest.get();
+			if(test == null) {
+				sendString(EV_OUTPUT, s);
+				return;
+			}
+			synchronized(m_out) {
+				m_out.writeInt(EV_TEST_OUTPUT);
+				writeString(m_out, test);
+				writeString(m_out, s);
+				m_out.flush();
+			}
+		}
+	}
+}
@@ -0,0 +1,509 @@
+package to.etc.jenkins;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.runner.*;
+import org.junit.runner.notification.*;
+
+import to.etc.util.*;
+
+/**
+ * A pool of forked JVM's that run tests, each running a {@link TestWorker}. A module's tests
+ * run in an idle worker, or in a new one if none is idle. The JUnit events are passed to the
+ * listeners as they arrive from the worker.
+ *
+ * A watchdog checks the running tests. When a single test or the whole module takes longer than
+ * its timeout, a thread dump of the worker is requested and logged, after which the worker is
+ * killed. The tests that were running get a failure, and the other tests of the module are not run.
+ * The same happens when the worker dies by itself. Workers are reused for at most {@link #MAX_USES}
+ * modules, to limit what leaks from one module to the next.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+public class TestWorkerPool {
+	static private final int	MAX_USES = 20;
+
+	/** How long to wait for a thread dump before killing the worker anyway. */
+	static private final long	DUMP_WAIT = 10 * 1000;
+
+	private final List<String>	m_command = new ArrayList<String>();
+
+	/** The max run time of a single test in millis, 0 for no limit. */
+	private final long			m_testTimeout;
+
+	/** The max run time of all tests of a module in millis, 0 for no limit. */
+	private final long			m_moduleTimeout;
+
+	private final List<Worker>	m_idleList = new ArrayList<Worker>();
+
+	private final List<Worker>	m_busyList = new ArrayList<Worker>();
+
+	private Thread				m_watchdog;
+
+	private boolean				m_closed;
+
+	/**
+	 * A listener that also wants the output of tests. Without one the output is written to the
+	 * module's output as it arrives.
+	 */
+	public interface TestOutputListener {
+		/**
+		 * Called with text that the test with the display name wrote to System.out or System.err.
+		 */
+		void testOutput(String test, String text) throws Exception;
+	}
+
+	public TestWorkerPool(List<String> jvmArgs, long testTimeout, long moduleTimeout) throws Exception {
+		m_testTimeout = testTimeout;
+		m_moduleTimeout = moduleTimeout;
+
+		//-- The worker's classpath: the worker itself and JUnit.
+		Set<File> cp = new LinkedHashSet<File>();
+		cp.add(locationOf(TestWorker.class));
+		cp.add(locationOf(JUnitCore.class));
+		for(URL u : ClassUtil.findUrlsFor(getClass().getClassLoader())) {
+			if(u.getPath().contains("junit-") || u.getPath().contains("hamcrest-"))
+				cp.add(new File(u.toURI()));
+		}
+		StringBuilder sb = new StringBuilder();
+		for(File f : cp) {
+			if(sb.length() > 0)
+				sb.append(File.pathSeparatorChar);
+			sb.append(f.getAbsolutePath());
+		}
+
+		m_command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath());
+		m_command.addAll(jvmArgs);
+		m_command.add("-cp");
+		m_command.add(sb.toString());
+		m_command.add(TestWorker.class.getName());
+	}
+
+	static private File locationOf(Class< ? > clz) throws URISyntaxException {
+		return new File(clz.getProtectionDomain().getCodeSource().getLocation().toURI());
+	}
+
+	/**
+	 * Run the tests in a worker, in the order of a {@link TestWorker.RankOrder} with the names in
+	 * order, and pass all events to the listeners. The output of the tests and the worker's messages
+	 * are written to out. Returns the run time in millis. The worker keeps the loader of the shared
+	 * layer of the classpath, so that the next module with the same jars can reuse it. The parallel
+	 * mode is null, or one of the modes of {@link TestWorker.ParallelComputer}, with the #of threads
+	 * to use.
+	 */
+	public long run(String name, TestClassLoaders.Layers layers, List<String> classes, List<String> order, String parallel, int threads, PrintStream out, RunListener... listeners) throws Exception {
+		Worker w = acquire();
+		boolean reusable = false;
+		long ts = System.currentTimeMillis();
+		try {
+			reusable = w.run(name, layers, classes, order, parallel, threads, out, listeners);
+		} finally {
+			release(w, reusable);
+		}
+		return System.currentTimeMillis() - ts;
+	}
+
+	private synchronized Worker acquire() throws IOException {
+		if(m_closed)
+			throw new IllegalStateException("The test worker pool is closed");
+		Worker w;
+		if(m_idleList.size() > 0)
+			w = m_idleList.remove(m_idleList.size() - 1);
+		else
+			w = new Worker(new ProcessBuilder(m_command).start());
+		m_busyList.add(w);
+		if(m_watchdog == null && (m_testTimeout > 0 || m_moduleTimeout > 0)) {
+			m_watchdog = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					watchdog();
+				}
+			}, "test-watchdog");
+			m_watchdog.setDaemon(true);
+			m_watchdog.start();
+		}
+		return w;
+	}
+
+	private synchronized void release(Worker w, boolean reusable) {
+		m_busyList.remove(w);
+		if(reusable && !m_closed && w.getUses() < MAX_USES)
+			m_idleList.add(w);
+		else
+			w.quit();
+	}
+
+	/**
+	 * Stop all workers.
+	 */
+	public synchronized void close() {
+		m_closed = true;
+		for(Worker w : m_idleList)
+			w.quit();
+		m_idleList.clear();
+		for(Worker w : m_busyList)
+			w.kill();
+		if(m_watchdog != null)
+			m_watchdog.interrupt();
+	}
+
+	/**
+	 * Ask all workers that run tests to stop after their current test.
+	 */
+	public synchronized void stop() {
+		for(Worker w : m_busyList)
+			w.stop();
+	}
+
+	private void watchdog() {
+		for(;;) {
+			try {
+				Thread.sleep(1000);
+			} catch(InterruptedException x) {
+				return;
+			}
+			List<Worker> list;
+			synchronized(this) {
+				if(m_closed)
+					return;
+				list = new ArrayList<Worker>(m_busyList);
+			}
+			long now = System.currentTimeMillis();
+			for(Worker w : list)
+				w.checkTimeout(now);
+		}
+	}
+
+	/**
+	 * A failure that happened in a worker, or a timeout.
+	 */
+	static public final class RemoteTestFailure extends Exception {
+		private final String	m_className;
+
+		private final String	m_trace;
+
+		private final String	m_filteredTrace;
+
+		public RemoteTestFailure(String className, String message, String trace, String filteredTrace) {
+			super(message);
+			m_className = className;
+			m_trace = trace;
+			m_filteredTrace = filteredTrace;
+		}
+
+		/**
+		 * The name of the exception class in the worker.
+		 */
+		public String getClassName() {
+			return m_className;
+		}
+
+		public String getFilteredTrace() {
+			return m_filteredTrace;
+		}
+
+		@Override
+		public void printStackTrace(PrintWriter s) {
+			s.print(m_trace);
+		}
+
+		@Override
+		public void printStackTrace(PrintStream s) {
+			s.print(m_trace);
+		}
+
+		@Override
+		public String toString() {
+			String msg = getMessage();
+			return msg == null ? m_className : m_className + ": " + msg;
+		}
+	}
+
+	/**
+	 * A single worker JVM.
+	 */
+	private final class Worker {
+		private final Process			m_process;
+
+		private final DataOutputStream	m_cmd;
+
+		private final DataInputStream	m_events;
+
+		private int						m_uses;
+
+		/** The module's start time. */
+		private long					m_moduleStart;
+
+		private String					m_moduleName;
+
+		/** The start time of the running tests by display name, the longest running first. */
+		private final Map<String, Long>	m_runningMap = new LinkedHashMap<String, Long>();
+
+		/** Set when the worker is to be killed because of a timeout. */
+		private String					m_timeoutReason;
+
+		private long					m_killAt;
+
+		/** Where the worker's stderr goes: the output of the module being run, if any. */
+		private PrintStream				m_errOut;
+
+		private final Thread			m_errPump;
+
+		public Worker(Process process) {
+			m_process = process;
+			m_cmd = new DataOutputStream(new BufferedOutputStream(process.getOutputStream(), 8192));
+			m_events = new DataInputStream(new BufferedInputStream(process.getInputStream(), 65536));
+			m_errPump = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					pumpErrors();
+				}
+			}, "test-worker-stderr");
+			m_errPump.setDaemon(true);
+			m_errPump.start();
+		}
+
+		/**
+		 * Copy what the worker JVM itself writes to stderr, like JVM warnings or the reason it
+		 * crashed, to the output of the module being run. The tests' own output arrives as events.
+		 */
+		private void pumpErrors() {
+			BufferedReader br = new BufferedReader(new InputStreamReader(m_process.getErrorStream()));
+			try {
+				String line;
+				while(null != (line = br.readLine())) {
+					PrintStream out;
+					synchronized(this) {
+						out = m_errOut;
+					}
+					if(out != null)
+						out.println("testworker: " + line);
+					else
+						System.err.println(line);
+				}
+			} catch(IOException x) {
+				//-- The worker is gone.
+			} finally {
+				try {
+					br.close();
+				} catch(Exception x) {}
+			}
+		}
+
+		public int getUses() {
+			return m_uses;
+		}
+
+		/**
+		 * Run the tests; return true if the worker can be used again.
+		 */
+		public boolean run(String name, TestClassLoaders.Layers layers, List<String> classes, List<String> order, String parallel, int threads, PrintStream out, RunListener[] listeners) throws Exception {
+			m_uses++;
+			synchronized(this) {
+				m_moduleName = name;
+				m_moduleStart = System.currentTimeMillis();
+				m_runningMap.clear();
+				m_errOut = out;
+			}
+			TestOutputListener tol = null;
+			for(RunListener l : listeners) {
+				if(l instanceof TestOutputListener)
+					tol = (TestOutputListener) l;
+			}
+
+			try {
+				synchronized(m_cmd) {
+					m_cmd.writeInt(TestWorker.CMD_RUN);
+					TestWorker.writeString(m_cmd, name);
+					m_cmd.writeInt(layers.getSharedLayers().size());
+					for(TestClassLoaders.Layer l : layers.getSharedLayers()) {
+						TestWorker.writeString(m_cmd, l.getKey());
+						m_cmd.writeInt(l.getUrls().size());
+						for(URL u : l.getUrls())
+							TestWorker.writeString(m_cmd, u.toString());
+					}
+					m_cmd.writeInt(layers.getModuleUrls().size());
+					for(URL u : layers.getModuleUrls())
+						TestWorker.writeString(m_cmd, u.toString());
+					m_cmd.writeInt(classes.size());
+					for(String s : classes)
+						TestWorker.writeString(m_cmd, s);
+					m_cmd.writeInt(order.size());
+					for(String s : order)
+						TestWorker.writeString(m_cmd, s);
+					TestWorker.writeString(m_cmd, parallel);
+					m_cmd.writeInt(threads);
+					m_cmd.flush();
+				}
+
+				for(;;) {
+					int code = m_events.readInt();
+					switch(code) {
+						default:
+							throw new IOException("Unknown event " + code + " from test worker");
+
+						case TestWorker.EV_STARTED:
+							String test = TestWorker.readString(m_events);
+							synchronized(this) {
+								m_runningMap.put(test, Long.valueOf(System.currentTimeMillis()));
+							}
+							for(RunListener l : listeners)
+								l.testStarted(Description.createSuiteDescription(test));
+							break;
+
+						case TestWorker.EV_FAILURE:
+							Description d = Description.createSuiteDescription(TestWorker.readString(m_events));
+							String msg = TestWorker.readString(m_events);
+							String cn = TestWorker.readString(m_events);
+							String trace = TestWorker.readString(m_events);
+							Failure f = new Failure(d, new RemoteTestFailure(cn, msg, trace, TestWorker.readString(m_events)));
+							for(RunListener l : listeners)
+								l.testFailure(f);
+							break;
+
+						case TestWorker.EV_IGNORED:
+							d = Description.createSuiteDescription(TestWorker.readString(m_events));
+							for(RunListener l : listeners)
+								l.testIgnored(d);
+							break;
+
+						case TestWorker.EV_FINISHED:
+							d = Description.createSuiteDescription(TestWorker.readString(m_events));
+							synchronized(this) {
+								m_runningMap.remove(d.getDisplayName());
+							}
+							for(RunListener l : listeners)
+								l.testFinished(d);
+							break;
+
+						case TestWorker.EV_OUTPUT:
+							out.print(TestWorker.readString(m_events));
+							break;
+
+						case TestWorker.EV_TEST_OUTPUT:
+							test = TestWorker.readString(m_events);
+							String text = TestWorker.readString(m_events);
+							if(tol != null)
+								tol.testOutput(test, text);
+							else
+								out.print(text);
+							break;
+
+						case TestWorker.EV_LOG:
+							out.println(TestWorker.readString(m_events));
+							break;
+
+						case TestWorker.EV_DUMP:
+							out.println("testrunner: thread dump of the test JVM:");
+							out.println(TestWorker.readString(m_events));
+							synchronized(this) {
+								if(m_timeoutReason != null)
+									kill();
+							}
+							break;
+
+						case TestWorker.EV_DONE:
+							m_events.readLong();
+							synchronized(this) {
+								m_moduleName = null;
+								m_errOut = null;
+								return m_timeoutReason == null;
+							}
+					}
+				}
+			} catch(IOException x) {
+				//-- The worker died or was killed.
+				String reason;
+				List<String> running;
+				boolean timedout;
+				synchronized(this) {
+					timedout = m_timeoutReason != null;
+					reason = timedout ? m_timeoutReason : "The test JVM exited unexpectedly (" + x + ")";
+					running = new ArrayList<String>(m_runningMap.keySet());
+					m_runningMap.clear();
+					m_moduleName = null;
+				}
+				kill();
+
+				//-- Let the worker's last words on stderr go to the module's output first.
+				m_errPump.join(DUMP_WAIT);
+				synchronized(this) {
+					m_errOut = null;
+				}
+				out.println("ERROR: testrunner: " + reason);
+				String cn = timedout ? TimeoutException.class.getName() : x.getClass().getName();
+				if(running.size() == 0) {
+					Failure f = new Failure(Description.createSuiteDescription(name), new RemoteTestFailure(cn, reason, reason + "\n", reason + "\n"));
+					for(RunListener l : listeners)
+						l.testFailure(f);
+				}
+				for(String test : running) {
+					Description d = Description.createSuiteDescription(test);
+					Failure f = new Failure(d, new RemoteTestFailure(cn, reason, reason + "\n", reason + "\n"));
+					for(RunListener l : listeners)
+						l.testFailure(f);
+					for(RunListener l : listeners)
+						l.testFinished(d);
+				}
+				return false;
+			}
+		}
+
+		/**
+		 * Called by the watchdog: if a running test or the module runs too long ask for a thread dump,
+		 * and kill the worker when that does not arrive in time.
+		 */
+		public synchronized void checkTimeout(long now) {
+			if(m_moduleName == null)
+				return;
+			if(m_timeoutReason != null) {
+				if(now >= m_killAt)
+					kill();
+				return;
+			}
+			Map.Entry<String, Long> longest = m_runningMap.isEmpty() ? null : m_runningMap.entrySet().iterator().next();
+			if(m_testTimeout > 0 && longest != null && now - longest.getValue().longValue() > m_testTimeout)
+				m_timeoutReason = "Test " + longest.getKey() + " timed out after " + (m_testTimeout / 1000) + "s";
+			else if(m_moduleTimeout > 0 && now - m_moduleStart > m_moduleTimeout)
+				m_timeoutReason = "The tests of " + m_moduleName + " timed out after " + (m_moduleTimeout / 1000) + "s";
+			else
+				return;
+			m_killAt = now + DUMP_WAIT;
+			try {
+				synchronized(m_cmd) {
+					m_cmd.writeInt(TestWorker.CMD_DUMP);
+					m_cmd.flush();
+				}
+			} catch(IOException x) {
+				kill();
+			}
+		}
+
+		public void stop() {
+			try {
+				synchronized(m_cmd) {
+					m_cmd.writeInt(TestWorker.CMD_STOP);
+					m_cmd.flush();
+				}
+			} catch(IOException x) {}
+		}
+
+		public void quit() {
+			try {
+				synchronized(m_cmd) {
+					m_cmd.writeInt(TestWorker.CMD_QUIT);
+					m_cmd.close();
+				}
+			} catch(Exception x) {
+				kill();
+			}
+		}
+
+		public void kill() {
+			m_process.destroy();
+		}
+	}
+}
@@ -256,6 +256,10 @@ final public class BranchBuildHelper {
 			throw new BuildException("Unable to build " + s + " because of errors in the build method");
 		}
 
+		//-- Tell all modules whether their products get published, so the others can skip packaging them.
+		for(ModuleBuildInfo bi : getAllModules())
+			bi.setPublishArtefacts(mustPublishArtefacts(bi));
+
 		/*
 		 * All makers have initialized proper and all sources have been obtained. Now
 		 * resolve all inter-module dependencies (module Y that requires products generated
@@ -278,6 +282,23 @@ final public class BranchBuildHelper {
 		return buildorder;
 	}
 
+	/**
+	 * Returns T if the artefacts of the module are published with the current artefact mode.
+	 */
+	private boolean mustPublishArtefacts(ModuleBuildInfo bi) {
+		switch(getArtefactMode()){
+			default:
+				throw new IllegalStateException("Unknown artefactmode: " + getArtefactMode());
+
+			case NONE:
+				return false;
+			case ALL:
+				return true;
+			case TOP:
+				return bi.getName().equals(m_mainModule);
+		}
+	}
+
 	private void setCurrentModule(SourceModule sm) throws Exception {
 		if(m_listener != null)
 			m_listener.setCurrentModule(getBranch(), sm);
@@ -631,13 +652,8 @@ final public class BranchBuildHelper {
 			setCurrentModule(bi.getModuleVersion());
 			//			bi.clearPreviousBuild(); // Discard the "previous build" thingy.
 
-			//-- Create an output thingy for logging.
-			StringWriter sw = new StringWriter() {
-				@Override
-				public void close() throws IOException {
-					flushMakeLog(bi, this);
-				}
-			};
+			//-- Create an output thingy for logging; it filters the maker's output line by line as it is written.
+			Writer sw = new LineFilterWriter(bi.getMaker().getFilterChain(new FinalLogFilter()), b());
 			Writer ow = sw;
 			if(m_outputWriter != null) {
 				TeeWriter tw = new TeeWriter(m_outputWriter, sw);
@@ -676,22 +692,6 @@ final public class BranchBuildHelper {
 		}
 	}
 
-	void flushMakeLog(ModuleBuildInfo bi, StringWriter sw) throws IOException {
-		MessageFilter filter = bi.getMaker().getFilterChain(new FinalLogFilter());
-
-		//-- Get all filter chains from the maker, then let 'm filter.
-		String all = sw.toString();
-//		System.out.println(">> ");
-//		System.out.println(all);
-//		System.out.println("<<");
-
-		LineNumberReader lr = new LineNumberReader(new StringReader(all));
-		String in;
-		while(null != (in = lr.readLine())) {
-			filter.filterLine(b(), in);
-		}
-	}
-
 	//	private void saveArtefacts(ModuleBuildInfo bi) throws Exception {
 	//		switch(getArtefactMode()){
 	//			default:
@@ -781,7 +781,12 @@ final public class BranchBuildHelper {
 
 		b().header("Starting compilations");
 		Progress subp = p.createSubProgress(null, 80); // Rest of 80% divided between compilations
-		int failures = compileModules(subp);
+		int failures;
+		try {
+			failures = compileModules(subp);
+		} finally {
+			m_configuration.saveJarIndex(b());
+		}
 
 		if(failures > 0)
 			throw new BuildException(failures + " modules failed to compile");
@@ -22,6 +22,56 @@ public class BuilderConfiguration {
 
 	private String m_defaultEncoding = "UTF-8";
 
+	/** How files get copied into image directories; real copies unless the config file allows links. */
+	private FileCopyMode m_copyMode = FileCopyMode.COPY;
+
+	/** When set generated jars are reproducible: sorted entries with fixed timestamps. */
+	private boolean m_deterministicJars = true;
+
+	/** When set webapp images are synchronized with the changes since the last build instead of being rebuilt. */
+	private boolean m_incrementalWebapp = true;
+
+	/** The file holding the index of jar contents, shared by all builds on this machine. */
+	private File m_jarIndexFile = new File(System.getProperty("user.home"), ".prjbuilder.jarindex");
+
+	private JarIndex m_jarIndex;
+
+	/** When set, fix packages compare jars by the content of their entries and not just by their CRC's. */
+	private boolean m_strictDelta;
+
+	/** When set, fix packages contain binary patches for large modified files instead of the whole file. */
+	private boolean m_binaryPatches;
+
+	/** The #of modules whose JUnit tests are run at the same time. */
+	private int m_testThreads = 1;
+
+	/** When set, JUnit tests run in forked JVM's instead of in the builder's JVM. */
+	private boolean m_testFork;
+
+	/** Extra arguments for the forked test JVM's. */
+	private List<String> m_testJvmArgs = new ArrayList<String>();
+
+	/** The max #of seconds a single test may take in a forked JVM; 0 for no limit. */
+	private int m_testTimeout;
+
+	/** The max #of seconds the tests of a single module may take in a forked JVM; 0 for no limit. */
+	private int m_testModuleTimeout;
+
+	/** Which tests are run after a build; selecting only the affected tests must be switched on. */
+	private TestSelectionMode m_testSelection = TestSelectionMode.ALL;
+
+	/** When set, all tests are run regardless of the selection mode. */
+	private boolean m_testRunAll;
+
+	/** When > 0, all tests are run every this many test runs regardless of the selection mode. */
+	private int m_testRunAllEvery = 10;
+
+	/** The file with the run times of the test classes; null to keep it in the workspace. */
+	private File m_testHistoryFile;
+
+	/** When > 0, the test run stops after this many failed tests. */
+	private int m_testFailFast;
+
 	public JavaVersion getDefaultSourceVersion() {
 		return m_defaultSourceVersion;
 	}
@@ -46,6 +96,156 @@ public class BuilderConfiguration {
 		m_defaultEncoding = defaultEncoding;
 	}
 
+	public FileCopyMode getCopyMode() {
+		return m_copyMode;
+	}
+
+	public void setCopyMode(FileCopyMode copyMode) {
+		m_copyMode = copyMode;
+	}
+
+	public boolean isDeterministicJars() {
+		return m_deterministicJars;
+	}
+
+	public void setDeterministicJars(boolean deterministicJars) {
+		m_deterministicJars = deterministicJars;
+	}
+
+	public boolean isIncrementalWebapp() {
+		return m_incrementalWebapp;
+	}
+
+	public void setIncrementalWebapp(boolean incrementalWebapp) {
+		m_incrementalWebapp = incrementalWebapp;
+	}
+
+	public File getJarIndexFile() {
+		return m_jarIndexFile;
+	}
+
+	public void setJarIndexFile(File jarIndexFile) {
+		m_jarIndexFile = jarIndexFile;
+	}
+
+	public boolean isStrictDelta() {
+		return m_strictDelta;
+	}
+
+	public void setStrictDelta(boolean strictDelta) {
+		m_strictDelta = strictDelta;
+	}
+
+	public boolean isBinaryPatches() {
+		return m_binaryPatches;
+	}
+
+	public void setBinaryPatches(boolean binaryPatches) {
+		m_binaryPatches = binaryPatches;
+	}
+
+	public int getTestThreads() {
+		return m_testThreads;
+	}
+
+	public void setTestThreads(int testThreads) {
+		m_testThreads = testThreads;
+	}
+
+	public boolean isTestFork() {
+		return m_testFork;
+	}
+
+	public void setTestFork(boolean testFork) {
+		m_testFork = testFork;
+	}
+
+	public List<String> getTestJvmArgs() {
+		return m_testJvmArgs;
+	}
+
+	public void setTestJvmArgs(List<String> testJvmArgs) {
+		m_testJvmArgs = testJvmArgs;
+	}
+
+	public int getTestTimeout() {
+		return m_testTimeout;
+	}
+
+	public void setTestTimeout(int testTimeout) {
+		m_testTimeout = testTimeout;
+	}
+
+	public int getTestModuleTimeout() {
+		return m_testModuleTimeout;
+	}
+
+	public void setTestModuleTimeout(int testModuleTimeout) {
+		m_testModuleTimeout = testModuleTimeout;
+	}
+
+	public TestSelectionMode getTestSelection() {
+		return m_testSelection;
+	}
+
+	public void setTestSelection(TestSelectionMode testSelection) {
+		m_testSelection = testSelection;
+	}
+
+	public boolean isTestRunAll() {
+		return m_testRunAll;
+	}
+
+	public void setTestRunAll(boolean testRunAll) {
+		m_testRunAll = testRunAll;
+	}
+
+	public int getTestRunAllEvery() {
+		return m_testRunAllEvery;
+	}
+
+	public void setTestRunAllEvery(int testRunAllEvery) {
+		m_testRunAllEvery = testRunAllEvery;
+	}
+
+	public File getTestHistoryFile() {
+		return m_testHistoryFile;
+	}
+
+	public void setTestHistoryFile(File testHistoryFile) {
+		m_testHistoryFile = testHistoryFile;
+	}
+
+	public int getTestFailFast() {
+		return m_testFailFast;
+	}
+
+	public void setTestFailFast(int testFailFast) {
+		m_testFailFast = testFailFast;
+	}
+
+	/**
+	 * Return the jar content index, loading it the first time it is used.
+	 */
+	public synchronized JarIndex getJarIndex(Reporter r) {
+		if(m_jarIndex == null)
+			m_jarIndex = JarIndex.load(m_jarIndexFile, r);
+		return m_jarIndex;
+	}
+
+	/**
+	 * Save the jar index if it was used.
+	 */
+	public synchronized void saveJarIndex(Reporter r) {
+		if(m_jarIndex == null)
+			return;
+		try {
+			m_jarIndex.save(r);
+		} catch(Exception x) {
+			r.log("jarindex: cannot save " + m_jarIndexFile + ": " + x);
+		}
+	}
+
 	/**
 	 *
 	 * @param jdk
@@ -98,6 +298,60 @@ public class BuilderConfiguration {
 		if(s != null)
 			setDefaultTargetVersion(JavaVersion.byName(s.trim()));
 
+		//-- copy.mode=copy|link|reflink; links are opt-in because writing a linked source also changes the image.
+		s = p.getProperty("copy.mode");
+		if(s != null) {
+			try {
+				setCopyMode(FileCopyMode.valueOf(s.trim().toUpperCase()));
+			} catch(IllegalArgumentException x) {
+				throw new IllegalArgumentException("The copy.mode property in " + configFile + " must be one of copy, link or reflink, not '" + s + "'");
+			}
+		}
+
+		s = p.getProperty("jar.deterministic");
+		if(s != null)
+			setDeterministicJars(StringTool.dbGetBool(s.trim()));
+		s = p.getProperty("webapp.incremental");
+		if(s != null)
+			setIncrementalWebapp(StringTool.dbGetBool(s.trim()));
+		s = p.getProperty("delta.strict");
+		if(s != null)
+			setStrictDelta(StringTool.dbGetBool(s.trim()));
+		s = p.getProperty("delta.patches");
+		if(s != null)
+			setBinaryPatches(StringTool.dbGetBool(s.trim()));
+		s = p.getProperty("jar.index");
+		if(s != null && s.trim().length() > 0)
+			setJarIndexFile(new File(s.trim()));
+
+		setTestThreads(Math.max(1, getInt(p, configFile, "test.threads", getTestThreads())));
+		s = p.getProperty("test.fork");
+		if(s != null)
+			setTestFork(StringTool.dbGetBool(s.trim()));
+		s = p.getProperty("test.jvm.args");
+		if(s != null && s.trim().length() > 0)
+			setTestJvmArgs(Arrays.asList(s.trim().split("\\s+")));
+		setTestTimeout(getInt(p, configFile, "test.timeout", getTestTimeout()));
+		setTestModuleTimeout(getInt(p, configFile, "test.module.timeout", getTestModuleTimeout()));
+
+		//-- test.selection=all|module|class
+		s = p.getProperty("test.selection");
+		if(s != null) {
+			try {
+				setTestSelection(TestSelectionMode.valueOf(s.trim().toUpperCase()));
+			} catch(IllegalArgumentException x) {
+				throw new IllegalArgumentException("The test.selection property in " + configFile + " must be one of all, module or class, not '" + s + "'");
+			}
+		}
+		s = p.getProperty("test.runall");
+		if(s != null)
+			setTestRunAll(StringTool.dbGetBool(s.trim()));
+		setTestRunAllEvery(getInt(p, configFile, "test.runall.every", getTestRunAllEvery()));
+		s = p.getProperty("test.history");
+		if(s != null && s.trim().length() > 0)
+			setTestHistoryFile(new File(s.trim()));
+		setTestFailFast(getInt(p, configFile, "test.failfast", getTestFailFast()));
+
 		for(JavaVersion jv : JavaVersion.values()) {
 			s = p.getProperty("java." + jv);
 			if(s != null) {
@@ -110,6 +364,17 @@ public class BuilderConfiguration {
 	}
 
 
+	static private int getInt(Properties p, File configFile, String name, int dflt) {
+		String s = p.getProperty(name);
+		if(s == null || s.trim().length() == 0)
+			return dflt;
+		try {
+			return Integer.parseInt(s.trim());
+		} catch(NumberFormatException x) {
+			throw new IllegalArgumentException("The " + name + " property in " + configFile + " must be a number, not '" + s + "'");
+		}
+	}
+
 	/**
 	 * Try to create a config file by locating jdks and stuff.
 	 *
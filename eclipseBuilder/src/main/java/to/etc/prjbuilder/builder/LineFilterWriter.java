@@ -0,0 +1,108 @@
+package to.etc.prjbuilder.builder;
+
+import java.io.*;
+
+/**
+ * A Writer that splits the text written to it in lines as it arrives, and passes every line
+ * to a {@link MessageFilter} chain. Lines end with \n, \r or \r\n, like for
+ * {@link LineNumberReader#readLine()}; a last line without terminator is passed on close. Only
+ * the current line is kept in memory, and a line longer than {@link #MAX_LINE} characters is
+ * cut off there.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+public class LineFilterWriter extends Writer {
+	/** The max #of characters of a line passed to the filter. */
+	static public final int MAX_LINE = 64 * 1024;
+
+	private final MessageFilter m_filter;
+
+	private final MessageFilterSink m_sink;
+
+	private final StringBuilder m_line = new StringBuilder(256);
+
+	/** T if the last character was a \r, so that a \n directly after it does not end another line. */
+	private boolean m_lastCr;
+
+	/** T if the current line is too long, and the rest of it is skipped. */
+	private boolean m_truncated;
+
+	private boolean m_closed;
+
+	public LineFilterWriter(MessageFilter filter, MessageFilterSink sink) {
+		m_filter = filter;
+		m_sink = sink;
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		synchronized(lock) {
+			if(m_closed)
+				throw new IOException("Writer is closed");
+			int end = off + len;
+			for(int i = off; i < end; i++) {
+				char c = cbuf[i];
+				if(c == '\n') {
+					if(!m_lastCr)
+						flushLine();
+					m_lastCr = false;
+				} else if(c == '\r') {
+					flushLine();
+					m_lastCr = true;
+				} else {
+					m_lastCr = false;
+					if(m_line.length() < MAX_LINE)
+						m_line.append(c);
+					else
+						m_truncated = true;
+				}
+			}
+		}
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		write(new char[]{(char) c}, 0, 1);
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		//-- Convert in parts so that a huge string is not copied as a whole.
+		synchronized(lock) {
+			char[] buf = new char[Math.min(len, 8192)];
+			while(len > 0) {
+				int sz = Math.min(len, buf.length);
+				str.getChars(off, off + sz, buf, 0);
+				write(buf, 0, sz);
+				off += sz;
+				len -= sz;
+			}
+		}
+	}
+
+	private void flushLine() {
+		if(m_truncated)
+			m_line.append(" ...");
+		m_filter.filterLine(m_sink, m_line.toString());
+		m_line.setLength(0);
+		m_truncated = false;
+	}
+
+	@Override
+	public void flush() throws IOException {
+	}
+
+	/**
+	 * Pass the last line if it has no line terminator.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized(lock) {
+			if(m_closed)
+				return;
+			m_closed = true;
+			if(m_line.length() > 0)
+				flushLine();
+		}
+	}
+}
@@ -48,6 +48,12 @@ public class ModuleBuildInfo {
 
 	private Properties			m_moduleProperties = new Properties();
 
+	/**
+	 * When false this module's products are only used by the build itself, so they need not be
+	 * packaged for publication. Set from the ArtefactMode of the build.
+	 */
+	private boolean				m_publishArtefacts = true;
+
 	/**
 	 * A list of references to products in <i>other</i> modules that need to be resolved
 	 * when all modules have been loaded from SCM and configured.
@@ -153,6 +159,14 @@ public class ModuleBuildInfo {
 	//		m_dirty = true;
 	//	}
 
+	public boolean isPublishArtefacts() {
+		return m_publishArtefacts;
+	}
+
+	public void setPublishArtefacts(boolean publishArtefacts) {
+		m_publishArtefacts = publishArtefacts;
+	}
+
 	public ModuleBuildInfo	checkDescendentsForBuildFailures() {
 		for(ModuleBuildInfo bi : getFullDependencyList()) {
 			if(bi.getBuildError() != null)
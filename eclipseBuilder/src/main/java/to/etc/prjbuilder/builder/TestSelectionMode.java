@@ -0,0 +1,17 @@
+package to.etc.prjbuilder.builder;
+
+/**
+ * Defines which JUnit tests are run after a build.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+public enum TestSelectionMode {
+	/** Run all tests of all modules. */
+	ALL,
+
+	/** Run all tests of the modules that were rebuilt, or whose classes or dependencies changed since their tests last ran. */
+	MODULE,
+
+	/** Like MODULE, but only run the test classes that refer to a changed class, directly or through other classes. */
+	CLASS
+}
@@ -2,8 +2,10 @@ package to.etc.prjbuilder.delta;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.zip.*;
 
+import to.etc.prjbuilder.util.*;
 import to.etc.util.*;
 
 /**
@@ -28,13 +30,24 @@ public class DeltaBuilder {
 		private String		m_relpath;
 		private File		m_old;
 		private File		m_new;
+		private File		m_patch;
+		private boolean		m_directory;
 
+		/**
+		 * Create a change for files that exist; whether it is a directory is taken from the new or
+		 * the old file.
+		 */
 		public Change(String type, DeltaAction action, String relpath, File old, File nw) {
+			this(type, action, relpath, old, nw, (nw != null ? nw : old).isDirectory());
+		}
+
+		public Change(String type, DeltaAction action, String relpath, File old, File nw, boolean directory) {
 			m_type = type;
 			m_action = action;
 			m_relpath = relpath;
 			m_old = old;
 			m_new = nw;
+			m_directory = directory;
 		}
 
 		public DeltaAction getAction() {
@@ -52,92 +65,394 @@ public class DeltaBuilder {
 		public String getType() {
 			return m_type;
 		}
+
+		/**
+		 * T if the change is about a directory. Use this instead of asking the files: when the delta
+		 * was made from manifests the old file need not exist.
+		 */
+		public boolean isDirectory() {
+			return m_directory;
+		}
+
+		/**
+		 * For a MOD: a binary patch that turns the old file into the new one, if one was
+		 * created and it is smaller than the new file. Apply it with {@link BinaryPatch#apply(File, File, File)}.
+		 */
+		public File getPatch() {
+			return m_patch;
+		}
+		void setPatch(File patch) {
+			m_patch = patch;
+		}
 	}
 
 	private List<Change>		m_list = new ArrayList<Change>();
 
+	/** When set all changes are passed here instead of being collected in m_list. */
+	private IDeltaSink			m_sink;
+
+	/** Holds the central directory data of the jars compared; a persistent index if one was passed. */
+	private final JarIndex		m_jarIndex;
+
+	/** When set, jars whose entries have the same names, sizes and CRC's are also compared by content hash. */
+	private boolean				m_strict;
+
+	private int					m_threads = Runtime.getRuntime().availableProcessors();
+
+	/** When set, binary patches for modified files are written here. */
+	private File				m_patchDir;
+
+	/** Files smaller than this are always shipped whole. */
+	static private final long	MIN_PATCH_SIZE = 64 * 1024;
+
+	/** When streaming, the max #of changes and comparisons waiting to be passed to the sink. */
+	static private final int	MAX_PENDING = 1024;
+
+	public DeltaBuilder() {
+		this(null);
+	}
+
+	public DeltaBuilder(JarIndex jarIndex) {
+		m_jarIndex = jarIndex == null ? new JarIndex() : jarIndex;
+	}
+
+	public boolean isStrict() {
+		return m_strict;
+	}
+
+	public void setStrict(boolean strict) {
+		m_strict = strict;
+	}
+
+	public int getThreads() {
+		return m_threads;
+	}
+
+	/**
+	 * Set the #of threads used to compare directories and files; 1 compares on a single thread.
+	 */
+	public void setThreads(int threads) {
+		m_threads = threads;
+	}
+
+	public IDeltaSink getSink() {
+		return m_sink;
+	}
+
+	/**
+	 * Pass all changes to the sink as soon as they are known, instead of collecting them in
+	 * {@link #getList()}. The trees are then walked in order on a single thread, and only the files
+	 * in a single directory are compared in parallel, so that the memory used depends on the depth
+	 * of the trees and not on their size.
+	 */
+	public void setSink(IDeltaSink sink) {
+		m_sink = sink;
+	}
+
 	/**
 	 * Walks the directory tree and adds delta records for all files/directories that
-	 * changed.
+	 * changed. Subdirectories are compared concurrently and files that may have changed
+	 * are hashed in parallel; the resulting changes are always in the same order: per
+	 * directory the added and changed things sorted by name, then the deleted ones.
 	 * @param olddir
 	 * @param newdir
 	 * @throws Exception
 	 */
 	public void		delta(String type, File olddir, File newdir) throws Exception {
-		StringBuilder	sb = new StringBuilder(256);
-		delta(sb, olddir, newdir, type);
+		ForkJoinPool	pool = new ForkJoinPool(Math.max(1, m_threads));
+		try {
+			if(m_sink == null) {
+				for(Change c : pool.invoke(new DirDelta(type, "", olddir, newdir)))
+					emit(c);
+			} else
+				pool.invoke(new StreamDelta(type, olddir, newdir));
+		} catch(WrappedException x) {
+			throw WrappedException.unwrap(x);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	public File getPatchDir() {
+		return m_patchDir;
+	}
+
+	/**
+	 * When set, a binary patch is created in this directory for every modified file of at least 64K,
+	 * and attached to its change if it is smaller than the file.
+	 */
+	public void setPatchDir(File patchDir) {
+		m_patchDir = patchDir;
+	}
+
+	/**
+	 * Deliver a change, in order: create its binary patch if needed, then pass it to the sink or
+	 * add it to the list. Patches are created one at a time; the patcher's memory use does not
+	 * depend on the file sizes.
+	 */
+	private void	emit(Change c) throws Exception {
+		if(m_patchDir != null && c.getAction() == DeltaAction.MOD && c.getNew().length() >= MIN_PATCH_SIZE) {
+			File	pf = new File(m_patchDir, c.getType() + "/" + c.getRelpath() + ".patch");
+			pf.getParentFile().mkdirs();
+			long	size = BinaryPatch.create(c.getOld(), c.getNew(), pf);
+			if(size < c.getNew().length())
+				c.setPatch(pf);
+			else
+				pf.delete();
+		}
+		if(m_sink != null)
+			m_sink.change(c);
+		else
+			m_list.add(c);
+	}
+
+	/*--------------------------------------------------------------*/
+	/*	CODING:	Delta by scanning the directories.					*/
+	/*--------------------------------------------------------------*/
+	/**
+	 * Receives the results of comparing a directory, in order. How the results are collected
+	 * depends on whether the changes are collected or streamed.
+	 */
+	private abstract class DeltaOutput {
+		/** A change that is known right away. */
+		abstract void change(Change c) throws Exception;
+
+		/** Two directories that exist in both trees need to be compared. */
+		abstract void directory(String ty, String relpath, File olddir, File newdir) throws Exception;
+
+		/** Two files that exist in both trees might differ and need to be compared. */
+		abstract void file(String ty, String relpath, File oldf, File newf) throws Exception;
+	}
+
+	/**
+	 * Collects the results of a single directory; subdirectories and files are compared as
+	 * forked tasks, and all results are joined in order by {@link #getResult()}.
+	 */
+	private final class ForkOutput extends DeltaOutput {
+		/** Contains either a Change or a forked task. */
+		private final List<Object>	m_parts = new ArrayList<Object>();
+
+		@Override
+		void change(Change c) {
+			m_parts.add(c);
+		}
+
+		@Override
+		void directory(String ty, String relpath, File olddir, File newdir) {
+			m_parts.add(new DirDelta(ty, relpath, olddir, newdir).fork());
+		}
+
+		@Override
+		void file(String ty, String relpath, File oldf, File newf) {
+			m_parts.add(new FileDelta(ty, relpath, oldf, newf).fork());
+		}
+
+		List<Change> getResult() {
+			List<Change>	res = new ArrayList<Change>(m_parts.size());
+			for(Object o : m_parts) {
+				if(o instanceof Change)
+					res.add((Change) o);
+				else {
+					@SuppressWarnings("unchecked")
+					ForkJoinTask<List<Change>> t = (ForkJoinTask<List<Change>>) o;
+					res.addAll(t.join());
+				}
+			}
+			return res;
+		}
+	}
+
+	/**
+	 * Passes results to {@link #emit(Change)} as soon as all results before it are known. Only file
+	 * comparisons are forked; directories are walked inline after everything before them has been
+	 * emitted, so there is only one list of pending things for the whole walk.
+	 */
+	private final class StreamOutput extends DeltaOutput {
+		/** Contains either a Change or a forked FileDelta, in order. */
+		private final LinkedList<Object>	m_pending = new LinkedList<Object>();
+
+		@Override
+		void change(Change c) throws Exception {
+			if(m_pending.size() >= MAX_PENDING)
+				flush();
+			if(m_pending.size() == 0)
+				emit(c);
+			else
+				m_pending.add(c);
+		}
+
+		@Override
+		void directory(String ty, String relpath, File olddir, File newdir) throws Exception {
+			flush();
+			delta(ty, relpath, olddir, newdir, this);
+		}
+
+		@Override
+		void file(String ty, String relpath, File oldf, File newf) throws Exception {
+			if(m_pending.size() >= MAX_PENDING)
+				flush();
+			m_pending.add(new FileDelta(ty, relpath, oldf, newf).fork());
+		}
+
+		void flush() throws Exception {
+			while(m_pending.size() > 0) {
+				Object	o = m_pending.removeFirst();
+				if(o instanceof Change)
+					emit((Change) o);
+				else {
+					@SuppressWarnings("unchecked")
+					ForkJoinTask<List<Change>> t = (ForkJoinTask<List<Change>>) o;
+					for(Change c : t.join())
+						emit(c);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The root task of a streaming delta.
+	 */
+	private final class StreamDelta extends RecursiveAction {
+		private final String	m_type;
+		private final File		m_olddir;
+		private final File		m_newdir;
+
+		public StreamDelta(String type, File olddir, File newdir) {
+			m_type = type;
+			m_olddir = olddir;
+			m_newdir = newdir;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				StreamOutput	out = new StreamOutput();
+				delta(m_type, "", m_olddir, m_newdir, out);
+				out.flush();
+			} catch(Exception x) {
+				throw WrappedException.wrap(x);
+			}
+		}
 	}
 
 	/**
-	 * Compare both directories. They are supposed to exist.
-	 * @param sb
+	 * Compares two existing directories; subdirectories are compared as subtasks.
+	 */
+	private final class DirDelta extends RecursiveTask<List<Change>> {
+		private final String	m_type;
+		private final String	m_relpath;
+		private final File		m_olddir;
+		private final File		m_newdir;
+
+		public DirDelta(String type, String relpath, File olddir, File newdir) {
+			m_type = type;
+			m_relpath = relpath;
+			m_olddir = olddir;
+			m_newdir = newdir;
+		}
+
+		@Override
+		protected List<Change> compute() {
+			try {
+				ForkOutput	out = new ForkOutput();
+				delta(m_type, m_relpath, m_olddir, m_newdir, out);
+				return out.getResult();
+			} catch(Exception x) {
+				throw WrappedException.wrap(x);
+			}
+		}
+	}
+
+	/**
+	 * Compares two files that exist in both trees; returns a MOD change if they differ.
+	 */
+	private final class FileDelta extends RecursiveTask<List<Change>> {
+		private final String	m_type;
+		private final String	m_relpath;
+		private final File		m_oldf;
+		private final File		m_newf;
+
+		public FileDelta(String type, String relpath, File oldf, File newf) {
+			m_type = type;
+			m_relpath = relpath;
+			m_oldf = oldf;
+			m_newf = newf;
+		}
+
+		@Override
+		protected List<Change> compute() {
+			try {
+				if(filesEqual(m_oldf, m_newf))
+					return Collections.emptyList();
+				return Collections.singletonList(new Change(m_type, DeltaAction.MOD, m_relpath, m_oldf, m_newf));
+			} catch(Exception x) {
+				throw WrappedException.wrap(x);
+			}
+		}
+	}
+
+	static private File[] listSorted(File dir) {
+		File[] ar = dir.listFiles();
+		if(ar == null)
+			throw new IllegalStateException("??? Null array in "+dir);
+		Arrays.sort(ar);
+		return ar;
+	}
+
+	static private String relpath(String base, File f) {
+		return base.length() == 0 ? f.getName() : base + "/" + f.getName();
+	}
+
+	/**
+	 * Compare both directories. They are supposed to exist. All work that may take time is passed
+	 * to the output, which decides when it gets done.
 	 * @param olddir
 	 * @param newdir
 	 */
-	private void	delta(StringBuilder sb, File olddir, File newdir, String ty) throws Exception {
-		File[]	oar = olddir.listFiles();
-		if(oar == null)
-			throw new IllegalStateException("??? Null array in "+olddir);
-		File[]	nar	= newdir.listFiles();
-		if(nar == null)
-			throw new IllegalStateException("??? Null array in "+newdir);
+	private void	delta(String ty, String base, File olddir, File newdir, DeltaOutput out) throws Exception {
+		File[]	oar = listSorted(olddir);
+		File[]	nar	= listSorted(newdir);
 
 		//-- Create a set of all OLD names.
 		Map<String, File>		oldmap = new HashMap<String, File>();
 		for(File of : oar)
 			oldmap.put(of.getName(), of);
 
-		//-- Walk all new files && dirs.
-		int	len = sb.length();
+		//-- Walk all new files && dirs
 		for(File newf : nar) {
-			//-- Construct a relative path
-			sb.setLength(len);
-			if(len > 0)
-				sb.append('/');
-			sb.append(newf.getName());
-			String	relpath = sb.toString();
+			String	relpath = relpath(base, newf);
 
 			//-- Check old against new
-			File	oldf = oldmap.get(newf.getName());			// Thing exists with same name?
+			File	oldf = oldmap.remove(newf.getName());		// Thing exists with same name? Then drop from old set
 			if(oldf == null) {
 				//-- We have a NEW file or directory-> add all delta's pertaining to that;
 				if(newf.isDirectory())
-					handleNewDirectory(ty, newf, sb);
+					handleNewDirectory(ty, newf, relpath, out);
 				else
-					handleNewFile(ty, newf, relpath);
-			} else {
-				//-- Old and new both exist. Remove from old set always
-				oldmap.remove(newf.getName());					// Drop from old set
-
-				if(oldf.isDirectory() != newf.isDirectory())	// Changed nature? (dir-> file or file->dir?)
-					handleChangeNature(ty, oldf, newf, sb);
-				else if(newf.isDirectory()) {
-					//-- Just handle the directory recursively.
-					delta(sb, oldf, newf, ty);
-				} else {
-					//-- We have two files here.... Are they equal?
-					if(! filesEqual(oldf, newf)) {
-						m_list.add(new Change(ty, DeltaAction.MOD, relpath, oldf, newf));
-					}
-				}
+					handleNewFile(ty, newf, relpath, out);
+			} else if(oldf.isDirectory() != newf.isDirectory()) {	// Changed nature? (dir-> file or file->dir?)
+				handleChangeNature(ty, oldf, newf, relpath, out);
+			} else if(newf.isDirectory()) {
+				//-- Just handle the directory recursively.
+				out.directory(ty, relpath, oldf, newf);
+			} else if(oldf.length() != newf.length() || oldf.lastModified() != newf.lastModified()) {
+				//-- We have two files that might differ; have them compared.
+				out.file(ty, relpath, oldf, newf);
 			}
 		}
 
 		//-- Finally: all that's left in the 'oldmap' are thingies that have been deleted in NEW.
-		for(File oldf : oldmap.values()) {
-			//-- Construct a relative path
-			sb.setLength(len);
-			if(len > 0)
-				sb.append('/');
-			sb.append(oldf.getName());
-			String	relpath = sb.toString();
+		for(File oldf : oar) {
+			if(! oldmap.containsKey(oldf.getName()))
+				continue;
+			String	relpath = relpath(base, oldf);
 
 			//-- Handle the delete,
 			if(oldf.isDirectory()) {
 				//-- Delete all other crud collected below here,
-				handleDeleteDir(ty, oldf, sb);
+				handleDeleteDir(ty, oldf, relpath, out);
 			} else {
-				m_list.add(new Change(ty, DeltaAction.DEL, relpath, oldf, null));
+				out.change(new Change(ty, DeltaAction.DEL, relpath, oldf, null));
 			}
 		}
 	}
@@ -147,39 +462,29 @@ public class DeltaBuilder {
 	 * @param oldf
 	 * @param newf
 	 */
-	private void	handleChangeNature(String ty, File oldf, File newf, StringBuilder sb) {
+	private void	handleChangeNature(String ty, File oldf, File newf, String relpath, DeltaOutput out) throws Exception {
 		//-- If the old thingy is a DIR then delete the dir, then add the file
-		int	len = sb.length();
 		if(oldf.isDirectory()) {
-			handleDeleteDir(ty, oldf, sb);
-			sb.setLength(len);
-			handleNewFile(ty, newf, sb.toString());
+			handleDeleteDir(ty, oldf, relpath, out);
+			handleNewFile(ty, newf, relpath, out);
 		} else {
 			//-- Old thingy is file, new is directory
-			m_list.add(new Change(ty, DeltaAction.DEL, sb.toString(), oldf, null));
-			handleNewDirectory(ty, newf, sb);
+			out.change(new Change(ty, DeltaAction.DEL, relpath, oldf, null));
+			handleNewDirectory(ty, newf, relpath, out);
 		}
 	}
 
-	private void	handleDeleteDir(String ty, File dir, StringBuilder sb) {
-		int	len = sb.length();
-		for(File f : dir.listFiles()) {
-			//-- Construct a relative path
-			sb.setLength(len);
-			if(len > 0)
-				sb.append('/');
-			sb.append(f.getName());
+	private void	handleDeleteDir(String ty, File dir, String relpath, DeltaOutput out) throws Exception {
+		for(File f : listSorted(dir)) {
 			if(f.isFile())
-				m_list.add(new Change(ty, DeltaAction.DEL, sb.toString(), f, null));
+				out.change(new Change(ty, DeltaAction.DEL, relpath(relpath, f), f, null));
 			else
-				handleDeleteDir(ty, f, sb);
+				handleDeleteDir(ty, f, relpath(relpath, f), out);
 		}
 
 		//-- Add a delete for the directory itself
-		sb.setLength(len);
-		m_list.add(new Change(ty, DeltaAction.DEL, sb.toString(), dir, null));
+		out.change(new Change(ty, DeltaAction.DEL, relpath, dir, null));
 	}
-
 	/**
 	 * Check if these files are equal. We consider 'm equal if their size and date modified are
 	 * equal (fast path).
@@ -190,22 +495,31 @@ public class DeltaBuilder {
 	 * @throws Exception
 	 */
 	private boolean	filesEqual(File oldf, File newf) throws Exception {
-		if(oldf.length() != newf.length())					// Different lengths -> always different
+		if(oldf.length() == newf.length() && oldf.lastModified() == newf.lastModified())
+			return true;
+		if(isJar(newf))										// Jars are compared by their entries, not by their bytes
 			return checkJarEquality(oldf, newf);
+		if(oldf.length() != newf.length())					// Different lengths -> always different
+			return false;
 		if(oldf.lastModified() != newf.lastModified()) {
 			//-- Sizes are teh same, but date-modified changed... Compare file hashes
 			byte[] oldh = FileTool.hashFile(oldf);
 			byte[] newh = FileTool.hashFile(newf);
-			if(Arrays.equals(oldh, newh))
-				return true;
-			return checkJarEquality(oldf, newf);			// Assume sheet, but check jars implicitly
+			return Arrays.equals(oldh, newh);
 		}
 
 		//-- Size and last-modified are the same. Assume files are equal
 		return true;
 	}
 
+	static private boolean isJar(File f) {
+		return f.getName().toLowerCase().endsWith(".jar");
+	}
+
 	/**
+	 * Compare two jars by their central directories: they are equal if they contain the same
+	 * names, and each entry has the same size and CRC. Only in strict mode the content of the
+	 * entries is then confirmed by inflating and hashing them.
 	 *
 	 * @param oldf
 	 * @param newf
@@ -213,36 +527,48 @@ public class DeltaBuilder {
 	 * @throws Exception
 	 */
 	private boolean	checkJarEquality(File oldf, File newf) throws Exception {
-		if(! newf.getName().toLowerCase().endsWith(".jar"))	// If it's not a jar we're sure the files are not equal.
-			return false;
-//		long ts = System.nanoTime();
-		//-- For JAR files we check the contents of the jar...
-		Map<String, JarEntry> oldm = loadZip(oldf);
-		Map<String, JarEntry> newm = loadZip(newf);
-		if(oldm.size() != newm.size())
+		JarIndex.JarInfo oldi = m_jarIndex.getInfo(oldf);
+		JarIndex.JarInfo newi = m_jarIndex.getInfo(newf);
+		if(!oldi.sameEntries(newi))
 			return false;
+		if(!m_strict)
+			return true;
+		return sameContent(oldf, newf, newi);
+	}
 
-		//-- #entries in jar are equal... Compare their data
-		Set<String> oldset = new HashSet<String>(oldm.keySet()); // Old entries not found in new
-		for(String nname : newm.keySet()) { // Walk all new names
-			JarEntry olde = oldm.get(nname); // Does this exist in the old jar?
-			if(olde == null)
-				return false; // New jar has new file -> exit.
-			oldset.remove(nname);
-
-			JarEntry newe = newm.get(nname);
-			if(newe.getSize() != olde.getSize()) // Sizes have changed
-				return false;
-			if(!Arrays.equals(newe.getHash(), olde.getHash()))
-				return false;
+	/**
+	 * Hash all entries of both jars and compare. The jars are known to have the same entries.
+	 */
+	private boolean sameContent(File oldf, File newf, JarIndex.JarInfo info) throws Exception {
+		ZipFile oldz = null;
+		ZipFile newz = null;
+		try {
+			oldz = new ZipFile(oldf);
+			newz = new ZipFile(newf);
+			for(int i = 0; i < info.getEntryCount(); i++) {
+				String name = info.getName(i);
+				if(name.endsWith("/"))
+					continue;
+				if(!Arrays.equals(hashEntry(oldz, name), hashEntry(newz, name)))
+					return false;
+			}
+			return true;
+		} finally {
+			try { if(oldz != null) oldz.close(); } catch(Exception x) {}
+			try { if(newz != null) newz.close(); } catch(Exception x) {}
 		}
+	}
 
-		//-- If there's stuff left in oldset we're not equal
-		if(oldset.size() > 0)
-			return false;
-
-		return true;
-
+	static private byte[] hashEntry(ZipFile zf, String name) throws Exception {
+		ZipEntry ze = zf.getEntry(name);
+		if(ze == null)
+			return null;
+		InputStream is = zf.getInputStream(ze);
+		try {
+			return FileTool.hashFile(is);
+		} finally {
+			try { is.close(); } catch(Exception x) {}
+		}
 	}
 
 	/**
@@ -250,91 +576,197 @@ public class DeltaBuilder {
 	 * @param f
 	 * @param relpath
 	 */
-	private void	handleNewFile(String ty, File f, String relpath) {
-		m_list.add(new Change(ty, DeltaAction.ADD, relpath, null, f));
+	private void	handleNewFile(String ty, File f, String relpath, DeltaOutput out) throws Exception {
+		out.change(new Change(ty, DeltaAction.ADD, relpath, null, f));
 	}
 
 	/**
 	 * Add a change for the directory, then add all that is below there too.
 	 *
 	 * @param dir
-	 * @param sb
+	 * @param relpath
 	 */
-	private void	handleNewDirectory(String ty, File dir, StringBuilder sb) {
-		m_list.add(new Change(ty, DeltaAction.ADD, sb.toString(), null, dir));		// Add dir,
-		int len = sb.length();
-		for(File f : dir.listFiles()) {
-			sb.setLength(len);
-			if(len > 0)
-				sb.append('/');
-			sb.append(f.getName());
-
+	private void	handleNewDirectory(String ty, File dir, String relpath, DeltaOutput out) throws Exception {
+		out.change(new Change(ty, DeltaAction.ADD, relpath, null, dir));		// Add dir,
+		for(File f : listSorted(dir)) {
 			if(f.isDirectory()) {
-				handleNewDirectory(ty, f, sb);
+				handleNewDirectory(ty, f, relpath(relpath, f), out);
 			} else {
-				handleNewFile(ty, f, sb.toString());
+				handleNewFile(ty, f, relpath(relpath, f), out);
 			}
 		}
 	}
+	/*--------------------------------------------------------------*/
+	/*	CODING:	Delta from zip manifests.							*/
+	/*--------------------------------------------------------------*/
+	/**
+	 * Like {@link #delta(String, File, File)}, for directories whose content was zipped into oldzip
+	 * and newzip. When both zips have a current {@link ZipManifest} the delta is calculated from the
+	 * manifests, without scanning the directories; otherwise this falls back to a scan. The changes
+	 * are in the same order as those of a scan.
+	 */
+	public void		delta(String type, File olddir, File newdir, File oldzip, File newzip) throws Exception {
+		ZipManifest	om = ZipManifest.load(oldzip);
+		ZipManifest	nm = om == null ? null : ZipManifest.load(newzip);
+		if(om == null || nm == null) {
+			delta(type, olddir, newdir);
+			return;
+		}
+		ManifestTree	ot = new ManifestTree(om);
+		ManifestTree	nt = new ManifestTree(nm);
+		manifestDelta(type, "", olddir, newdir, ot, nt);
+	}
 
-	private static class JarEntry {
-		private String		m_name;
-		private int			m_size;
-		private long		m_lastModified;
-		private byte[]		m_hash;
-		public JarEntry(byte[] hash, long lastModified, String name, int size) {
-			m_hash = hash;
-			m_lastModified = lastModified;
-			m_name = name;
-			m_size = size;
+	/**
+	 * The directory structure described by a manifest.
+	 */
+	static private final class ManifestTree {
+		private final ZipManifest				m_manifest;
+
+		/** Maps a directory's path ("" for the root) to the sorted names in it. */
+		private final Map<String, List<String>>	m_childMap = new HashMap<String, List<String>>();
+
+		/** Maps the path of each file to its index in the manifest. */
+		private final Map<String, Integer>		m_fileMap = new HashMap<String, Integer>();
+
+		public ManifestTree(ZipManifest zm) {
+			m_manifest = zm;
+			m_childMap.put("", new ArrayList<String>());
+			for(int i = 0; i < zm.getEntryCount(); i++) {
+				String name = zm.getName(i);
+				if(zm.isDirectory(i))
+					addDirectory(name.substring(0, name.length() - 1));
+				else if(! m_fileMap.containsKey(name)) {
+					m_fileMap.put(name, Integer.valueOf(i));
+					addToParent(name);
+				}
+			}
+			for(List<String> l : m_childMap.values())
+				Collections.sort(l);
 		}
-		public String getName() {
-			return m_name;
+
+		private void addDirectory(String path) {
+			if(path.length() == 0 || m_childMap.containsKey(path))
+				return;
+			m_childMap.put(path, new ArrayList<String>());
+			addToParent(path);
 		}
-		public int getSize() {
-			return m_size;
+
+		/**
+		 * Add the path to its parent directory, creating that if the zip has no entry for it.
+		 */
+		private void addToParent(String path) {
+			int pos = path.lastIndexOf('/');
+			String parent = pos == -1 ? "" : path.substring(0, pos);
+			addDirectory(parent);
+			m_childMap.get(parent).add(path.substring(pos + 1));
 		}
-		public long getLastModified() {
-			return m_lastModified;
+
+		public List<String> getChildren(String dir) {
+			List<String> l = m_childMap.get(dir);
+			return l == null ? Collections.<String>emptyList() : l;
 		}
-		public boolean isDir() {
-			return m_hash == null;
+
+		public boolean isDirectory(String path) {
+			return m_childMap.containsKey(path);
 		}
-		public byte[] getHash() {
-			return m_hash;
+
+		public int getIndex(String path) {
+			return m_fileMap.get(path).intValue();
+		}
+
+		public ZipManifest getManifest() {
+			return m_manifest;
 		}
 	}
 
+	static private String relpath(String base, String name) {
+		return base.length() == 0 ? name : base + "/" + name;
+	}
+
 	/**
-	 * Unzips a thingy into a jar inventory.
-	 * @param src
-	 * @return
+	 * Compare a directory in both manifests, in the same way as the directory scan does.
 	 */
-	private Map<String, JarEntry>	loadZip(File src) throws IOException{
-//		long ts = System.nanoTime();
-		ZipInputStream	zis	= null;
-		Map<String, JarEntry>	map = new HashMap<String, JarEntry>();
-		try {
-			zis	= new ZipInputStream(new FileInputStream(src));
-
-			ZipEntry	ze;
-			while(null != (ze = zis.getNextEntry())) {
-				byte[] hash = null;
-				if(! ze.isDirectory()) {
-					hash = FileTool.hashFile(zis);
-				} else
-					hash = new byte[0];
-				JarEntry	je = new JarEntry(hash, ze.getTime(), ze.getName(), (int)ze.getSize());
-				map.put(ze.getName(), je);
+	private void	manifestDelta(String ty, String base, File olddir, File newdir, ManifestTree ot, ManifestTree nt) throws Exception {
+		List<String>	oldnames = ot.getChildren(base);
+		Set<String>		oldset = new HashSet<String>(oldnames);
+		for(String name : nt.getChildren(base)) {
+			String	relpath = relpath(base, name);
+			File	oldf = new File(olddir, relpath);
+			File	newf = new File(newdir, relpath);
+			if(! oldset.remove(name)) {
+				if(nt.isDirectory(relpath))
+					addManifestDirectory(ty, relpath, newdir, nt);
+				else
+					emit(new Change(ty, DeltaAction.ADD, relpath, null, newf, false));
+			} else if(ot.isDirectory(relpath) != nt.isDirectory(relpath)) {
+				if(ot.isDirectory(relpath)) {
+					deleteManifestDirectory(ty, relpath, olddir, ot);
+					emit(new Change(ty, DeltaAction.ADD, relpath, null, newf, false));
+				} else {
+					emit(new Change(ty, DeltaAction.DEL, relpath, oldf, null, false));
+					addManifestDirectory(ty, relpath, newdir, nt);
+				}
+			} else if(nt.isDirectory(relpath)) {
+				manifestDelta(ty, relpath, olddir, newdir, ot, nt);
+			} else if(! entriesEqual(ot.getManifest(), ot.getIndex(relpath), nt.getManifest(), nt.getIndex(relpath), oldf, newf)) {
+				emit(new Change(ty, DeltaAction.MOD, relpath, oldf, newf, false));
 			}
-//			ts = System.nanoTime() - ts;
-//			System.out.println("jar inventory of "+src+" took "+StringTool.strNanoTime(ts));
-			return map;
-		} finally {
-			try { if(zis != null) zis.close(); } catch(Exception x) {}
+		}
+
+		for(String name : oldnames) {
+			if(! oldset.contains(name))
+				continue;
+			String	relpath = relpath(base, name);
+			if(ot.isDirectory(relpath))
+				deleteManifestDirectory(ty, relpath, olddir, ot);
+			else
+				emit(new Change(ty, DeltaAction.DEL, relpath, new File(olddir, relpath), null, false));
 		}
 	}
 
+	private void	addManifestDirectory(String ty, String relpath, File root, ManifestTree t) throws Exception {
+		emit(new Change(ty, DeltaAction.ADD, relpath, null, new File(root, relpath), true));
+		for(String name : t.getChildren(relpath)) {
+			String	rp = relpath(relpath, name);
+			if(t.isDirectory(rp))
+				addManifestDirectory(ty, rp, root, t);
+			else
+				emit(new Change(ty, DeltaAction.ADD, rp, null, new File(root, rp), false));
+		}
+	}
+
+	private void	deleteManifestDirectory(String ty, String relpath, File root, ManifestTree t) throws Exception {
+		for(String name : t.getChildren(relpath)) {
+			String	rp = relpath(relpath, name);
+			if(t.isDirectory(rp))
+				deleteManifestDirectory(ty, rp, root, t);
+			else
+				emit(new Change(ty, DeltaAction.DEL, rp, new File(root, rp), null, false));
+		}
+		emit(new Change(ty, DeltaAction.DEL, relpath, new File(root, relpath), null, true));
+	}
+
+	/**
+	 * Compare two entries by the manifests. Jars whose bytes differ are compared by their entries,
+	 * like the scan does. In strict mode entries with the same size and CRC must also have the same
+	 * content hash; if a hash is not known the files themselves are compared.
+	 */
+	private boolean	entriesEqual(ZipManifest om, int oix, ZipManifest nm, int nix, File oldf, File newf) throws Exception {
+		if(om.getSize(oix) != nm.getSize(nix) || om.getCrc(oix) != nm.getCrc(nix))
+			return isJar(newf) && checkJarEquality(oldf, newf);
+		if(! m_strict)
+			return true;
+		byte[]	oh = om.getHash(oix);
+		byte[]	nh = nm.getHash(nix);
+		if(oh != null && nh != null)
+			return Arrays.equals(oh, nh);
+		return Arrays.equals(FileTool.hashFile(oldf), FileTool.hashFile(newf));
+	}
+
+	/**
+	 * All changes found, in order. This is empty when a sink is used.
+	 */
 	public List<Change> getList() {
 		return m_list;
 	}
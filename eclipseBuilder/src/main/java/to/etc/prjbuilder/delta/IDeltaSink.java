@@ -0,0 +1,12 @@
+package to.etc.prjbuilder.delta;
+
+/**
+ * Receives the changes found by a {@link DeltaBuilder} while it is still comparing the trees. The
+ * changes arrive one at a time on a single thread, in the same order as {@link DeltaBuilder#getList()}
+ * would contain them; a binary patch, if any, is already attached.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+public interface IDeltaSink {
+	void change(DeltaBuilder.Change c) throws Exception;
+}
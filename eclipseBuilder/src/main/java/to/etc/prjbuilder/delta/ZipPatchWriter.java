@@ -0,0 +1,129 @@
+package to.etc.prjbuilder.delta;
+
+import java.io.*;
+
+import to.etc.prjbuilder.delta.DeltaBuilder.*;
+import to.etc.util.*;
+
+/**
+ * A delta sink that writes the changes into a patch archive while the delta is being calculated.
+ * The archive contains:
+ * <ul>
+ *	<li>files/<i>type</i>/<i>relpath</i>: the content of every added or modified file, and an entry for
+ *		every added directory;</li>
+ *	<li>patches/<i>type</i>/<i>relpath</i>.patch: the binary patch for a modified file, instead of its
+ *		content, when the delta builder created one;</li>
+ *	<li>delta.list: the list of all changes in order, one per line, as the action (ADD, DEL, MOD or PATCH),
+ *		the type and the relative path separated by tabs. Directories end in a slash. It is the
+ *		last entry in the archive.</li>
+ * </ul>
+ * Files are compressed in parallel by a {@link ParallelZipWriter}, which only keeps a few entries
+ * in memory; the list is written to a temp file until the archive is closed.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+public class ZipPatchWriter implements IDeltaSink {
+	static public final String	LIST_NAME = "delta.list";
+
+	private final ParallelZipWriter	m_zw;
+
+	private final File				m_listFile;
+
+	private Writer					m_listWriter;
+
+	private int						m_count;
+
+	public ZipPatchWriter(File out, int threads) throws IOException {
+		m_zw = new ParallelZipWriter(out, threads);
+		m_listFile = File.createTempFile("delta", ".list");
+		try {
+			m_listWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(m_listFile), "utf-8"));
+		} catch(IOException x) {
+			abort();
+			throw x;
+		}
+	}
+
+	@Override
+	public void change(Change c) throws Exception {
+		String	path = c.getType().length() == 0 ? c.getRelpath() : c.getType() + "/" + c.getRelpath();
+		switch(c.getAction()) {
+			default:
+				throw new IllegalStateException("Unknown action " + c.getAction());
+
+			case ADD:
+				if(c.isDirectory()) {
+					m_zw.addDirectory("files/" + path + "/", c.getNew().lastModified());
+					line("ADD", c, "/");
+					break;
+				}
+				m_zw.addFile("files/" + path, c.getNew());
+				line("ADD", c, "");
+				break;
+
+			case DEL:
+				line("DEL", c, c.isDirectory() ? "/" : "");
+				break;
+
+			case MOD:
+				if(c.getPatch() != null) {
+					m_zw.addFile("patches/" + path + ".patch", c.getPatch());
+					line("PATCH", c, "");
+				} else {
+					m_zw.addFile("files/" + path, c.getNew());
+					line("MOD", c, "");
+				}
+				break;
+		}
+		m_count++;
+	}
+
+	private void line(String action, Change c, String suffix) throws IOException {
+		m_listWriter.write(action);
+		m_listWriter.write('\t');
+		m_listWriter.write(c.getType());
+		m_listWriter.write('\t');
+		m_listWriter.write(c.getRelpath());
+		m_listWriter.write(suffix);
+		m_listWriter.write('\n');
+	}
+
+	/**
+	 * The #of changes written.
+	 */
+	public int getCount() {
+		return m_count;
+	}
+
+	/**
+	 * Add the list of changes and finish the archive.
+	 */
+	public void close() throws IOException {
+		boolean	ok = false;
+		try {
+			m_listWriter.close();
+			m_listWriter = null;
+			m_zw.addFile(LIST_NAME, m_listFile);
+			m_zw.close();
+			ok = true;
+		} finally {
+			if(! ok)
+				abort();
+			else
+				m_listFile.delete();
+		}
+	}
+
+	/**
+	 * Discard the archive; use this when calculating the delta failed.
+	 */
+	public void abort() {
+		try {
+			if(m_listWriter != null)
+				m_listWriter.close();
+		} catch(Exception x) {}
+		m_listWriter = null;
+		m_zw.abort();
+		m_listFile.delete();
+	}
+}
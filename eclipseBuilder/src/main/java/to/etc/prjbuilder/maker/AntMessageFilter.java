@@ -1,62 +1,31 @@
 package to.etc.prjbuilder.maker;
 
-import java.util.*;
-import java.util.regex.*;
-
 import to.etc.prjbuilder.builder.*;
 import to.etc.prjbuilder.util.*;
 
 public class AntMessageFilter implements MessageFilter {
 	private final MessageFilter		m_previous;
 
-	private final List<REMatch>				m_errorlist = new ArrayList<REMatch>();
-
-	static private class REMatch {
-		private Matcher		m_matcher;
-		private LogLineType	m_type;
-		public REMatch(LogLineType type, Matcher matcher) {
-			m_type = type;
-			m_matcher = matcher;
-		}
-
-		public boolean	matches(String txt) {
-			return m_matcher.reset(txt).find();
-		}
-		public LogLineType getType() {
-			return m_type;
-		}
-		public Matcher getMatcher() {
-			return m_matcher;
-		}
-	}
+	/** Recognises the single line messages. */
+	private final LineClassifier	m_classifier = LineClassifier.createCompilerClassifier();
 
 	public AntMessageFilter(MessageFilter previous) {
 		m_previous = previous;
 
-		addMatcher(LogLineType.CER, "^\\s-*\\[[^]]*\\]\\s-*\\(.+\\):\\([0-9]+\\):\\([0-9]+\\):[0-9]+:[0-9]+:");
-		addMatcher(LogLineType.CER, "^\\s-*\\[[^]]*\\]\\s-*\\(.+\\):\\([0-9]+\\):");
-
-		addMatcher(LogLineType.CWA, "^\\s*\\[[^\\]]*\\]\\s*.*:[0-9]+:\\s*warning");
-
-		addMatcher(LogLineType.CER, "^\\s*\\[[^\\]]*\\]\\s*.*:[0-9]+:");
-		addMatcher(LogLineType.CER, "^\\s*\\[javac\\]\\s*javac:");		// [javac] javac: errormessage
-
-		addMatcher(LogLineType.CER, "^\\s*\\[jasper\\]\\s*severe:");	// jasper JSP checker/compilert.
-
-
 	}
+
+	/**
+	 * Add a single line pattern; it is matched case-insensitive, without prefilter.
+	 */
 	public void	addMatcher(LogLineType t, String s) {
-		Pattern	p = Pattern.compile(s);
-		m_errorlist.add(new REMatch(t, p.matcher("")));
+		m_classifier.add(t, s, (char) 0, null, false);
 	}
 
 	public void filterLine(MessageFilterSink r, String line) {
-		String lc = line.toLowerCase();
-		for(REMatch m : m_errorlist) {
-			if(m.matches(lc)) {
-				r.logRecord(m.getType(), line);
-				return;
-			}
+		LogLineType type = m_classifier.classify(line);
+		if(type != null) {
+			r.logRecord(type, line);
+			return;
 		}
 		m_previous.filterLine(r, line);
 	}
@@ -85,14 +54,8 @@ public class AntMessageFilter implements MessageFilter {
 
 		for(String s: t) {
 			System.out.println("input: "+s);
-			for(REMatch m : f.m_errorlist) {
-				if(m.matches(s))
-					System.out.println(m.getType()+": ----"+m.getMatcher().group()+"----");
-				else
-					System.out.println("Nomatch");
-			}
-
-
+			LogLineType type = f.m_classifier.classify(s);
+			System.out.println(type == null ? "Nomatch" : type.toString());
 		}
 
 	}
@@ -1,6 +1,5 @@
 package to.etc.prjbuilder.maker;
 
-import java.util.*;
 import java.util.regex.*;
 
 import to.etc.prjbuilder.builder.*;
@@ -9,7 +8,8 @@ import to.etc.prjbuilder.util.*;
 public class AntMultilineMessageFilter implements MessageFilter {
 	private final MessageFilter		m_previous;
 
-	private final List<REMatch>				m_errorlist = new ArrayList<REMatch>();
+	/** Recognises the single line messages. */
+	private final LineClassifier	m_classifier = LineClassifier.createCompilerClassifier();
 
 	/** Matches any [javac] line */
 	private Matcher m_mJavac;
@@ -29,60 +29,31 @@ public class AntMultilineMessageFilter implements MessageFilter {
 
 	private StringBuilder m_sb = new StringBuilder();
 
-	static private class REMatch {
-		private Matcher		m_matcher;
-		private LogLineType	m_type;
-		public REMatch(LogLineType type, Matcher matcher) {
-			m_type = type;
-			m_matcher = matcher;
-		}
-
-		public boolean	matches(String txt) {
-			return m_matcher.reset(txt).find();
-		}
-		public LogLineType getType() {
-			return m_type;
-		}
-		public Matcher getMatcher() {
-			return m_matcher;
-		}
-	}
-
 	public AntMultilineMessageFilter(MessageFilter previous) {
 		m_previous = previous;
 
-		addMatcher(LogLineType.CER, "^\\s-*\\[[^]]*\\]\\s-*\\(.+\\):\\([0-9]+\\):\\([0-9]+\\):[0-9]+:[0-9]+:");
-		addMatcher(LogLineType.CER, "^\\s-*\\[[^]]*\\]\\s-*\\(.+\\):\\([0-9]+\\):");
-
-		addMatcher(LogLineType.CWA, "^\\s*\\[[^\\]]*\\]\\s*.*:[0-9]+:\\s*warning");
-
-		addMatcher(LogLineType.CER, "^\\s*\\[[^\\]]*\\]\\s*.*:[0-9]+:");
-		addMatcher(LogLineType.CER, "^\\s*\\[javac\\]\\s*javac:"); // [javac] javac: errormessage, old style
-
-		addMatcher(LogLineType.CER, "^\\s*\\[jasper\\]\\s*severe:");	// jasper JSP checker/compilert.
-
 		//-- Multiline matcher
 		m_mJavac = Pattern.compile("^\\s*\\[[jJ][aA][vV][aA][cC]\\]\\s*(.*)").matcher(""); //
 
-		m_mDashes = Pattern.compile("^\\s*\\[javac\\]\\s*[-]+").matcher(""); // [javac] ----------
+		m_mDashes = Pattern.compile("^\\s*\\[javac\\]\\s*[-]+", Pattern.CASE_INSENSITIVE).matcher(""); // [javac] ----------
 
-		m_mCarets = Pattern.compile("^\\s*\\[javac\\]\\s*[\\^]+").matcher(""); // [javac] ----------
+		m_mCarets = Pattern.compile("^\\s*\\[javac\\]\\s*[\\^]+", Pattern.CASE_INSENSITIVE).matcher(""); // [javac] ----------
 
 		//		m_mMessage = Pattern.compile("^\\s*\\[javac\\]\\s*([0-9]+)\\.\\s*([a-z]+)\\s*in\\s*(.*)\\s*\\(at line ([0-9]+)\\)").matcher("");
 		m_mMessage = Pattern.compile("^\\s*\\[[jJ][aA][vV][aA][cC]\\]\\s*([0-9]+)\\.\\s*([a-zA-Z]+)\\s*[iI][nN]\\s*(.*)\\s*\\([aA][tT] line ([0-9]+).*").matcher("");
 	}
 
-
+	/**
+	 * Add a single line pattern; it is matched case-insensitive, without prefilter.
+	 */
 	public void	addMatcher(LogLineType t, String s) {
-		Pattern	p = Pattern.compile(s);
-		m_errorlist.add(new REMatch(t, p.matcher("")));
+		m_classifier.add(t, s, (char) 0, null, false);
 	}
 
 	public void filterLine(MessageFilterSink r, String line) {
-		String lc = line.toLowerCase();
-		if(m_mCarets.reset(lc).find()) // Return caret location lines
+		if(m_mCarets.reset(line).find()) // Return caret location lines
 			return;
-		if(m_mDashes.reset(lc).find()) { //
+		if(m_mDashes.reset(line).find()) { //
 			if(m_prevLine != null) {
 				//-- Line with dashes means next error, previous line holds error message. Idiots.
 				if(m_mJavac.reset(m_prevLine).matches() && m_sb.length() > 0) {
@@ -129,11 +100,10 @@ public class AntMultilineMessageFilter implements MessageFilter {
 			return;
 		}
 
-		for(REMatch m : m_errorlist) {
-			if(m.matches(lc)) {
-				r.logRecord(m.getType(), line);
-				return;
-			}
+		LogLineType type = m_classifier.classify(line);
+		if(type != null) {
+			r.logRecord(type, line);
+			return;
 		}
 		if(m_previous != null)
 			m_previous.filterLine(r, line);
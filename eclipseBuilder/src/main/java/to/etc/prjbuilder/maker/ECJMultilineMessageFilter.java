@@ -1,6 +1,5 @@
 package to.etc.prjbuilder.maker;
 
-import java.util.*;
 import java.util.regex.*;
 
 import to.etc.prjbuilder.builder.*;
@@ -34,15 +33,12 @@ import to.etc.prjbuilder.util.*;
 public class ECJMultilineMessageFilter implements MessageFilter {
 	private final MessageFilter		m_previous;
 
-	private final List<REMatch>				m_errorlist = new ArrayList<REMatch>();
+	/** Recognises the single line messages. */
+	private final LineClassifier	m_classifier = LineClassifier.createCompilerClassifier();
 
 	/** Matches any [javac] line */
 //	private Matcher m_mJavac;
 
-	private Matcher m_mDashes;
-
-	private Matcher m_mCarets;
-
 	private Matcher m_mMessage;
 
 	/** When != 0 we have just seen line n of a multiline crap message. */
@@ -73,45 +69,12 @@ public class ECJMultilineMessageFilter implements MessageFilter {
 
 	private Phase m_phase = Phase.NONE;
 
-	static private class REMatch {
-		private Matcher		m_matcher;
-		private LogLineType	m_type;
-		public REMatch(LogLineType type, Matcher matcher) {
-			m_type = type;
-			m_matcher = matcher;
-		}
-
-		public boolean	matches(String txt) {
-			return m_matcher.reset(txt).find();
-		}
-		public LogLineType getType() {
-			return m_type;
-		}
-		public Matcher getMatcher() {
-			return m_matcher;
-		}
-	}
-
 	public ECJMultilineMessageFilter(MessageFilter previous) {
 		m_previous = previous;
 
-		addMatcher(LogLineType.CER, "^\\s-*\\[[^]]*\\]\\s-*\\(.+\\):\\([0-9]+\\):\\([0-9]+\\):[0-9]+:[0-9]+:");
-		addMatcher(LogLineType.CER, "^\\s-*\\[[^]]*\\]\\s-*\\(.+\\):\\([0-9]+\\):");
-
-		addMatcher(LogLineType.CWA, "^\\s*\\[[^\\]]*\\]\\s*.*:[0-9]+:\\s*warning");
-
-		addMatcher(LogLineType.CER, "^\\s*\\[[^\\]]*\\]\\s*.*:[0-9]+:");
-		addMatcher(LogLineType.CER, "^\\s*\\[javac\\]\\s*javac:"); // [javac] javac: errormessage, old style
-
-		addMatcher(LogLineType.CER, "^\\s*\\[jasper\\]\\s*severe:");	// jasper JSP checker/compilert.
-
 		//-- Multiline matcher
 //		m_mJavac = Pattern.compile("^\\s*\\[[jJ][aA][vV][aA][cC]\\]\\s*(.*)").matcher(""); //
 
-		m_mDashes = Pattern.compile("^\\s*[-]+").matcher(""); // ----------
-
-		m_mCarets = Pattern.compile("^\\s*[\\^]+").matcher(""); // ^^^^^
-
 		//		m_mMessage = Pattern.compile("^\\s*\\[javac\\]\\s*([0-9]+)\\.\\s*([a-z]+)\\s*in\\s*(.*)\\s*\\(at line ([0-9]+)\\)").matcher("");
 
 		/*
@@ -123,12 +86,13 @@ public class ECJMultilineMessageFilter implements MessageFilter {
 	}
 
 
+	/**
+	 * Add a single line pattern; it is matched case-insensitive, without prefilter.
+	 */
 	public void	addMatcher(LogLineType t, String s) {
-		Pattern	p = Pattern.compile(s);
-		m_errorlist.add(new REMatch(t, p.matcher("")));
+		m_classifier.add(t, s, (char) 0, null, false);
 	}
 
-
 	/**
 	 * Main method to recognise error and warning messages. This method will use state left by
 	 * the <i>previous</i> call to decide what to do with the current line.
@@ -137,8 +101,14 @@ public class ECJMultilineMessageFilter implements MessageFilter {
 	 */
 
 	public void filterLine(MessageFilterSink r, String line) {
-		String lc = line.toLowerCase().trim();
-		if(lc.length() == 0)
+		//-- Work on the trimmed part of the line, without copying it.
+		int end = line.length();
+		while(end > 0 && line.charAt(end - 1) <= ' ')
+			end--;
+		int start = 0;
+		while(start < end && line.charAt(start) <= ' ')
+			start++;
+		if(start >= end)
 			return;
 
 		switch(m_phase){
@@ -146,15 +116,15 @@ public class ECJMultilineMessageFilter implements MessageFilter {
 				throw new IllegalStateException("Phase: " + m_phase);
 
 			case NONE:
-				handleInitialLine(r, line, lc);
+				handleInitialLine(r, line, start, end);
 				return;
 
 			case LINE:
-				handleCodeLine(r, line, lc);
+				handleCodeLine(r, line, start);
 				return;
 
 			case MSG:
-				handleMessageLine(r, line, lc);
+				handleMessageLine(r, line, start);
 				return;
 		}
 	}
@@ -163,10 +133,11 @@ public class ECJMultilineMessageFilter implements MessageFilter {
 	 * Handle the message line. If a caret line is found it is stored too.
 	 * @param r
 	 * @param line
-	 * @param lc
+	 * @param start		The index of the first non-blank character
 	 */
-	private void handleMessageLine(MessageFilterSink r, String line, String lc) {
-		if(m_mDashes.reset(lc).find()) {
+	private void handleMessageLine(MessageFilterSink r, String line, int start) {
+		char c = line.charAt(start);
+		if(c == '-') {
 			/*
 			 * Got dashes: no code line. The thing used as code line is the message.
 			 */
@@ -180,7 +151,7 @@ public class ECJMultilineMessageFilter implements MessageFilter {
 			return;
 		}
 
-		if(m_mCarets.reset(lc).find()) {
+		if(c == '^') {
 			m_caretLine = line;
 			return;
 		}
@@ -204,14 +175,15 @@ public class ECJMultilineMessageFilter implements MessageFilter {
 	 * that line is empty, dashed or careted ignore it.
 	 * @param r
 	 * @param line
-	 * @param lc
+	 * @param start		The index of the first non-blank character
 	 */
-	private void handleCodeLine(MessageFilterSink r, String line, String lc) {
-		if(m_mDashes.reset(lc).find()) { // Unexpected dashes- ignore.
+	private void handleCodeLine(MessageFilterSink r, String line, int start) {
+		char c = line.charAt(start);
+		if(c == '-') { // Unexpected dashes- ignore.
 			m_phase = Phase.NONE;
 			return;
 		}
-		if(m_mCarets.reset(lc).find())
+		if(c == '^')
 			return;
 		m_codeLine = line;
 		m_phase = Phase.MSG;
@@ -223,10 +195,14 @@ public class ECJMultilineMessageFilter implements MessageFilter {
 	 *
 	 * @param r
 	 * @param line
-	 * @param lc
+	 * @param start		The index of the first non-blank character
+	 * @param end		The index after the last non-blank character
 	 */
-	private void handleInitialLine(MessageFilterSink r, String line, String lc) {
-		if(m_mMessage.reset(line).matches()) {
+	private void handleInitialLine(MessageFilterSink r, String line, int start, int end) {
+		char c = line.charAt(start);
+
+		//-- The message starts with its number, so only try lines starting with a digit.
+		if(c >= '0' && c <= '9' && LineClassifier.skipSpace(line, 0, end) == start && m_mMessage.reset(line).matches()) {
 			//-- Error message gotten!! Get regions,
 			String type = m_mMessage.group(2).toUpperCase(); // ERROR, WARNING et al
 			String path = m_mMessage.group(3).trim(); // File name
@@ -246,19 +222,14 @@ public class ECJMultilineMessageFilter implements MessageFilter {
 			m_phase = Phase.LINE;
 			return;
 		}
-		if(m_mDashes.reset(lc).find()) { // Unexpected dashes- ignore.
+		if(c == '-' || c == '^') // Unexpected dashes or carets- ignore.
 			return;
-		}
-		if(m_mCarets.reset(lc).find())
-			return;
-
 
 		//-- Any other supported single line pattern?
-		for(REMatch m : m_errorlist) {
-			if(m.matches(lc)) {
-				r.logRecord(m.getType(), line);
-				return;
-			}
+		LogLineType type = m_classifier.classify(line, start, end);
+		if(type != null) {
+			r.logRecord(type, line);
+			return;
 		}
 //		if(null != m_previous)
 //			m_previous.filterLine(r, line);
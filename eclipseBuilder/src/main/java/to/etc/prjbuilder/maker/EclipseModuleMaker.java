@@ -60,7 +60,11 @@ public class EclipseModuleMaker extends EclipseModuleMakerBase {
 
 	}
 
-	public DeltaBuilder createDelta(File olddir, File newdir) throws Exception {
+	public DeltaBuilder createDelta(File olddir, File newdir, IDeltaSink sink) throws Exception {
+		throw new IllegalStateException("Don't know how to create a delta for common Eclipse modules");
+	}
+
+	public int createPatchArchive(File olddir, File newdir, File patchfile) throws Exception {
 		throw new IllegalStateException("Don't know how to create a delta for common Eclipse modules");
 	}
 
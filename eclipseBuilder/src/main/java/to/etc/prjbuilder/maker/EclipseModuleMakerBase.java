@@ -290,7 +290,8 @@ abstract public class EclipseModuleMakerBase implements ModuleMaker {
 		for(GeneratedProduct gp : m_generatedProductList) {
 			if(gp instanceof FileProduct) {
 				FileProduct fp = (FileProduct) gp;
-				if(! fp.getFile().exists()) {
+				File f = gp instanceof GeneratedJarProduct ? ((GeneratedJarProduct) gp).getClasspathFile() : fp.getFile();
+				if(! f.exists()) {
 					if(sb.length() > 0)
 						sb.append(',');
 					else
@@ -431,6 +432,8 @@ abstract public class EclipseModuleMakerBase implements ModuleMaker {
 	}
 
 	private File getClasspathFile(Product p) {
+		if(p instanceof GeneratedJarProduct)
+			return ((GeneratedJarProduct) p).getClasspathFile();
 		if(p instanceof JarProduct) {
 			JarProduct jp = (JarProduct) p;
 			return jp.getFile();
@@ -782,6 +785,13 @@ abstract public class EclipseModuleMakerBase implements ModuleMaker {
 		return m_bi.getConfiguration().getDefaultEncoding();
 	}
 
+	/**
+	 * The way files get copied into output directories, as configured.
+	 */
+	protected FileCopyMode getCopyMode() {
+		return m_bi.getConfiguration().getCopyMode();
+	}
+
 	private List<File> getJdkJars(JavaVersion jdk) {
 		File jdkroot = m_bi.getConfiguration().getJdkRoot(jdk);
 		File jre = new File(jdkroot, "jre/lib");
@@ -1156,7 +1166,7 @@ abstract public class EclipseModuleMakerBase implements ModuleMaker {
 						continue;
 				}
 
-				FileTool.copyFile(df, sf); // Then copy the file.
+				FileTool.copyFile(df, sf, getCopyMode()); // Then copy the file.
 			} else if(sf.isDirectory()) {
 				if(df.isFile()) // ... but target is a file now?
 					df.delete(); // then delete it...
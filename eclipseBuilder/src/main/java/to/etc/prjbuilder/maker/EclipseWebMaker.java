@@ -2,7 +2,7 @@ package to.etc.prjbuilder.maker;
 
 import java.io.*;
 import java.util.*;
-import java.util.zip.*;
+import java.util.concurrent.*;
 
 import org.w3c.dom.*;
 
@@ -72,6 +72,12 @@ public class EclipseWebMaker extends EclipseModuleMakerBase {
 	/** A list of private jars to add to the classpath while compiling .jsp's */
 	private final List<JarProduct>	m_jsplist = new ArrayList<JarProduct>();
 
+	/** Timing of the phases of the current build. */
+	private PhaseTimer				m_phaseTimer;
+
+	/** Collects the messages of the dependency selection thread, see {@link #startSelectDependencies()}. */
+	private BufferedReporter		m_depsReporter;
+
 	/** If TRUE all JSP's in the web path are translated and compiled too */
 	private final boolean m_checkJSPs = false;
 
@@ -80,20 +86,6 @@ public class EclipseWebMaker extends EclipseModuleMakerBase {
 	 */
 	private File				m_workDir;
 
-	/**
-	 * This set contains a list of filenames that, when they are present in a .jar file,
-	 * indicate that the jar cannot be included because it defines a Sun standard.
-	 */
-	static private final Set<String> DUMPSET = new HashSet<String>();
-
-	static {
-		DUMPSET.add("javax/servlet/Servlet.class");
-		DUMPSET.add("javax/servlet/http/HttpServlet.class");
-		DUMPSET.add("javax/servlet/Filter.class");
-		DUMPSET.add("oracle/jdbc/driver/OracleDriver.class");                   // Do not copy driver lib
-//		DUMPSET.add("");
-	}
-
 	public EclipseWebMaker(final File root, final String name) {
 		super(root, name);
 	}
@@ -175,9 +167,7 @@ public class EclipseWebMaker extends EclipseModuleMakerBase {
 		//-- If we've decoded everything then check if we'll produce Java builder output.
 		if(getSourcesList().size() > 0) {
 			//-- Create a classes output thing at [target]WEB-INF/classes
-			File bd = new File(new File(getImageDir(), "WEB-INF"), "classes");
-			bd.mkdirs();
-			setClassesBinDir(bd);
+			setClassesBinDir(createClassesBinDir());
 		}
 
 		/*
@@ -202,7 +192,7 @@ public class EclipseWebMaker extends EclipseModuleMakerBase {
 				//-- Project the fixes into a .fixes directory within the webapp. FIXME This is quite dirty, but fast.
 				File	out = new File(getOutputRoot(), "fixes");
 				out.mkdirs();
-				FileTool.copyDir(out, fd);
+				FileTool.copyDir(out, fd, getCopyMode());
 			}
 		}
 	}
@@ -278,9 +268,7 @@ public class EclipseWebMaker extends EclipseModuleMakerBase {
 				if(found) {
 					//-- Add classes output FIXME Should allow for >1 output path
 					if(getClassesBinDir() == null) {
-						File	bd = new File(new File(getImageDir(), "WEB-INF"), "classes");
-						bd.mkdirs();
-						setClassesBinDir(bd);
+						setClassesBinDir(createClassesBinDir());
 						m_publishPath.add(new PublishPath(PublishType.pptCLASS, "WEB-INF/classes", sp, getClassesBinDir()));
 					}
 				} else {
@@ -383,25 +371,17 @@ public class EclipseWebMaker extends EclipseModuleMakerBase {
 	 * @param p
 	 * @return
 	 */
-	private boolean allowAdding(final JarProduct p) {
-		ZipFile	zf = null;
+	private boolean allowAdding(final Reporter r, final JarProduct p) {
 		try {
-			zf = new ZipFile(p.getFile());
-			Enumeration<? extends ZipEntry> e = zf.entries();
-			while(e.hasMoreElements()) {
-				ZipEntry ze = e.nextElement();
-				String path = ze.getName();
-				if(DUMPSET.contains(path)) {
-					r().log("webapp: discarding "+p.getBaseName()+" because it contains "+path);
-					return false;
-				}
+			JarIndex.JarInfo ji = getBuildInfo().getConfiguration().getJarIndex(r).getInfo(p.getFile());
+			if(ji.isApiOnly()) {
+				r.log("webapp: discarding "+p.getBaseName()+" because it contains "+ji.getApiClass());
+				return false;
 			}
 			return true;
 		} catch(Exception x) {
-			r().exception(x, "while scanning contents of "+p.getFile());
+			r.exception(x, "while scanning contents of "+p.getFile());
 			return true;
-		} finally {
-			try { if(zf != null) zf.close(); } catch(Exception x) {}
 		}
 	}
 
@@ -462,21 +442,88 @@ public class EclipseWebMaker extends EclipseModuleMakerBase {
 	 * a webapp by creatively compiling and copying the sources.
 	 */
 	public void buildModule(final Writer buildlog) throws Exception {
+		m_phaseTimer = new PhaseTimer("webapp " + getName());
+		long ts = System.nanoTime();
 		if(!compileSources(buildlog)) // Compile all sources to WEB-INF/classes
 			return;
+		m_phaseTimer.add("compile", ts);
 
-		copyWebFiles(); // Copy all web files to their appropriate location
-		copyDependencies(); // Copy all of the build dependencies (.jar files) into WEB-INF/lib
+		//-- Scanning and selecting the dependencies runs concurrently with collecting the web files.
+		Future<List<JarProduct>> deps = startSelectDependencies();
+		boolean ok = false;
+		try {
+			if(isIncrementalImage())
+				synchronizeImage(deps); // Only apply what changed since the last build to the image
+			else {
+				copyWebFiles(); // Copy all web files to their appropriate location
+				copyDependencies(deps); // Copy all of the build dependencies (.jar files) into WEB-INF/lib
+			}
+			ok = true;
+		} finally {
+			if(!ok) {
+				//-- Do not leave the selection running on the module's files after we failed; its own failure is less important.
+				try {
+					waitFor(deps);
+				} catch(Exception x) {}
+			}
+		}
 
 		//-- The webapp has been constructed completely.
 		//		if(m_checkJSPs)
 		//			checkJSPs(buildlog);
 
 		if(getGeneratedProductList().size() > 0) {
-			long ts = System.nanoTime();
+			ts = System.nanoTime();
 			generateProducts(); // Finally: create the .war
-			ts = System.nanoTime() - ts;
-			System.out.println("War file generated in " + StringTool.strNanoTime(ts));
+			m_phaseTimer.add("war", ts);
+		}
+		r().detail(m_phaseTimer.getReport());
+	}
+
+	/**
+	 * Start determining the dependencies to publish on a separate thread. Its messages are collected
+	 * in m_depsReporter, and reported by {@link #waitFor(Future)}.
+	 */
+	private Future<List<JarProduct>> startSelectDependencies() {
+		final BufferedReporter br = m_depsReporter = new BufferedReporter();
+		ExecutorService es = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "webapp-deps");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			return es.submit(new Callable<List<JarProduct>>() {
+				@Override
+				public List<JarProduct> call() throws Exception {
+					long ts = System.nanoTime();
+					List<JarProduct> res = selectDependencies(br);
+					m_phaseTimer.add("dependencies", ts);
+					return res;
+				}
+			});
+		} finally {
+			es.shutdown(); // Lets the thread end after the task
+		}
+	}
+
+	/**
+	 * Wait for the dependency selection to complete, and report its messages.
+	 */
+	private List<JarProduct> waitFor(Future<List<JarProduct>> f) throws Exception {
+		try {
+			return f.get();
+		} catch(ExecutionException x) {
+			Throwable t = x.getCause();
+			if(t instanceof Exception)
+				throw (Exception) t;
+			if(t instanceof Error)
+				throw (Error) t;
+			throw x;
+		} finally {
+			m_depsReporter.replay(r());
 		}
 	}
 
@@ -492,11 +539,10 @@ public class EclipseWebMaker extends EclipseModuleMakerBase {
 				//-- Push this into the appropriate target location.
 				File target = new File(getImageDir(), p.getRelTargetPath());
 				target.mkdirs();
-				FileTool.copyDir(target, p.getSource());
+				FileTool.copyDir(target, p.getSource(), getCopyMode());
 			}
 		}
-		ts = System.nanoTime() - ts;
-		System.out.println("WebApp's files copied to image directory in " + StringTool.strNanoTime(ts));
+		m_phaseTimer.add("web files", ts);
 	}
 
 	/**
@@ -506,8 +552,27 @@ public class EclipseWebMaker extends EclipseModuleMakerBase {
 	 * etc). In addition we resolve duplicate jars and select only one (and always the
 	 * same one) to be present in the result.
 	 */
-	private void	copyDependencies() throws Exception {
+	private void	copyDependencies(Future<List<JarProduct>> deps) throws Exception {
+		List<JarProduct> resl = waitFor(deps);
+
+		/*
+		 * Publish all files to the WEB-INF/lib dir. This is done after the web files were copied
+		 * because the jars replace those with the same name in the web files' WEB-INF/lib.
+		 */
 		long ts = System.nanoTime();
+		File	libf = new File(new File(getImageDir(), "WEB-INF"), "lib");
+		libf.mkdirs();
+		for(JarProduct jp : resl) {
+			FileTool.copyFile(new File(libf, jp.getNameWithoutPath()), jp.getFile(), getCopyMode());
+		}
+		m_phaseTimer.add("WEB-INF/lib", ts);
+	}
+
+	/**
+	 * Determine the .jar files that must be in WEB-INF/lib. This runs on a separate thread, so it
+	 * reports to the reporter passed and not to r().
+	 */
+	private List<JarProduct> selectDependencies(final Reporter r) throws Exception {
 
 		/*
 		 * Preparation phase: determine all that has to be included by dropping all
@@ -520,14 +585,14 @@ public class EclipseWebMaker extends EclipseModuleMakerBase {
 		Map<String, List<Res>>	map = new HashMap<String, List<Res>>();
 		for(ModuleBuildInfo bi : root.getFullDependencyList()) {
 //		    System.out.println("WebApp: checking products for "+bi.getName());
-			addProducts(map, r(), bi, bi.getMaker().getGeneratedProductList());
-			addProducts(map, r(), bi, bi.getMaker().getExportedProductList());
+			addProducts(map, r, bi, bi.getMaker().getGeneratedProductList());
+			addProducts(map, r, bi, bi.getMaker().getExportedProductList());
 
 			//-- Handle all external references. These get translated to a JarProduct then added
 //			addExternalReferences(map, r, root, bi);
 		}
 //		addExternalReferences(map, r, root, root);					// Add xrefs in root project because that is not part of the dependencies
-		addProducts(map, r(), root, root.getMaker().getExportedProductList());
+		addProducts(map, r, root, root.getMaker().getExportedProductList());
 
 		//-- Now check for duplicate jars, scanning for version or date patters in the jar filenames.
 		List<JarProduct>	resl = new ArrayList<JarProduct>(map.size()+2);		// Result list after illegal jar removal
@@ -536,7 +601,7 @@ public class EclipseWebMaker extends EclipseModuleMakerBase {
 			List<Res>	refs = map.get(base);
 			if(refs.size() == 1) {
 				// Easy
-				r().detail("webapp: including library "+refs.get(0).product.getName()+" from module "+refs.get(0).buildInfo);
+				r.detail("webapp: including library "+refs.get(0).product.getName()+" from module "+refs.get(0).buildInfo);
 				resl.add(refs.get(0).product);
 				continue;
 			}
@@ -556,14 +621,14 @@ public class EclipseWebMaker extends EclipseModuleMakerBase {
 					} else if(cv > 0) {
 						//-- Current is better than last; report all skipped libs
 						for(Res tr : work) {
-							r().detail("webapp: ignoring duplicate library "+tr.product.getName()+" from module "+tr.buildInfo);
+							r.detail("webapp: ignoring duplicate library "+tr.product.getName()+" from module "+tr.buildInfo);
 						}
 						work.clear();
 						work.add(res);
 						best = res;
 					} else {
 						//-- We already have a better one..
-						r().detail("webapp: ignoring duplicate library "+res.product.getName()+" from module "+res.buildInfo);
+						r.detail("webapp: ignoring duplicate library "+res.product.getName()+" from module "+res.buildInfo);
 					}
 				}
 			}
@@ -571,18 +636,24 @@ public class EclipseWebMaker extends EclipseModuleMakerBase {
 			//-- Must have a single choice now
 			if(work.size() > 1) {
 				Res res= work.get(work.size()-1);
-				r().log(work.size() + " copies of library " + base + " with same version - including the last one from " + res.buildInfo);
+				r.log(work.size() + " copies of library " + base + " with same version - including the last one from " + res.buildInfo);
 				resl.add(res.product);
 				for(int i = work.size()-1; --i >= 0;) {
 					res = work.get(i);
-					r().detail("webapp: ignoring duplicate library "+res.product.getName()+" from module "+res.buildInfo);
+					r.detail("webapp: ignoring duplicate library "+res.product.getName()+" from module "+res.buildInfo);
 				}
 			} else {
-				r().detail("webapp: including library "+best.product.getName()+" from module "+best.buildInfo);
+				r.detail("webapp: including library "+best.product.getName()+" from module "+best.buildInfo);
 				resl.add(best.product);
 			}
 		}
 
+		//-- Jars of modules that are not published are generated only when needed, like now; compressed if our war gets published.
+		for(JarProduct jp : resl) {
+			if(jp instanceof GeneratedJarProduct)
+				((GeneratedJarProduct) jp).ensureGenerated(r, getBuildInfo().isPublishArtefacts());
+		}
+
 		/*
 		 * In the generated list we may have .jars that only define standards. These are necessary for
 		 * compiling but may not be published to a server (the server has it's own implementation of
@@ -591,22 +662,124 @@ public class EclipseWebMaker extends EclipseModuleMakerBase {
 		 */
 		for(int i = resl.size(); --i >= 0;) {
 			JarProduct jp = resl.get(i);
-			if(! allowAdding(jp)) {
+			if(! allowAdding(r, jp)) {
 				resl.remove(i);
 				m_jsplist.add(jp);					// Do add it to the list of thingies needed for the JSP check.
 			}
 		}
+		return resl;
+	}
 
-		/*
-		 * Publish all files to the WEB-INF/lib dir.
-		 */
-		File	libf = new File(new File(getImageDir(), "WEB-INF"), "lib");
-		libf.mkdirs();
-		for(JarProduct jp : resl) {
-			FileTool.copyFile(new File(libf, jp.getNameWithoutPath()), jp.getFile());
+	/*--------------------------------------------------------------*/
+	/*	CODING:	Incremental image maintenance.						*/
+	/*--------------------------------------------------------------*/
+	/**
+	 * When T the image is not rebuilt from scratch but synchronized with what changed since the last build.
+	 */
+	private boolean isIncrementalImage() {
+		return getBuildInfo().getConfiguration().isIncrementalWebapp();
+	}
+
+	/**
+	 * The files of all products generated from the image.
+	 */
+	private List<File> getWarFiles() {
+		List<File> res = new ArrayList<File>();
+		for(GeneratedJarProduct jp : getWarProducts())
+			res.add(jp.getFile());
+		return res;
+	}
+
+	/**
+	 * All products generated from the image.
+	 */
+	private List<GeneratedJarProduct> getWarProducts() {
+		List<GeneratedJarProduct> res = new ArrayList<GeneratedJarProduct>();
+		for(GeneratedProduct gp : getGeneratedProductList()) {
+			if(gp instanceof GeneratedJarProduct && getImageDir().equals(((GeneratedJarProduct) gp).getSourceDir()))
+				res.add((GeneratedJarProduct) gp);
 		}
-		ts = System.nanoTime() - ts;
-		System.out.println("WebApp's dependencies copied to image directory in " + StringTool.strNanoTime(ts));
+		return res;
+	}
+
+	private File getManifestFile() {
+		return new File(getOutputRoot(), ".image.manifest");
+	}
+
+	/**
+	 * Create the directory the module's classes get compiled to. In incremental mode this is a
+	 * staging directory outside the image, which gets synchronized into WEB-INF/classes.
+	 */
+	private File createClassesBinDir() {
+		File bd = isIncrementalImage() ? new File(getOutputRoot(), "classes") : new File(new File(getImageDir(), "WEB-INF"), "classes");
+		bd.mkdirs();
+		return bd;
+	}
+
+	/**
+	 * In incremental mode the image is kept if we have a manifest for it; only the compiler's output
+	 * directories get cleaned, so that classes of deleted sources disappear.
+	 */
+	@Override
+	protected void cleanPrevious() {
+		File mf = getManifestFile();
+		if(!isIncrementalImage() || !mf.exists() || !getImageDir().exists()) {
+			mf.delete();
+			for(File war : getWarFiles())
+				ZipManifest.delete(war);			// The image is wiped, so the war's manifest no longer describes it
+			super.cleanPrevious();
+			if(!isIncrementalImage())
+				return;
+		}
+		if(getClassesBinDir() != null)
+			FileTool.deleteDir(getClassesBinDir());
+		for(SourcePath sp : getSourcesList()) {
+			if(sp.outputPath != null)
+				FileTool.deleteDir(sp.outputPath);
+		}
+	}
+
+	/**
+	 * Determine all files that should be in the image, then apply only the differences with
+	 * the last build's image: changed classes, web resources and jars get copied, files no
+	 * longer present get deleted.
+	 */
+	private void synchronizeImage(Future<List<JarProduct>> deps) throws Exception {
+		long ts = System.nanoTime();
+		Map<String, File> wanted = new LinkedHashMap<String, File>();
+		if(getClassesBinDir() != null)
+			WebImageManifest.addWanted(wanted, "WEB-INF/classes", getClassesBinDir());
+		for(PublishPath p : m_publishPath) {
+			if(p.getType() == PublishType.pptWEB)
+				WebImageManifest.addWanted(wanted, p.getRelTargetPath(), p.getSource());
+		}
+		m_phaseTimer.add("web files", ts);
+		for(JarProduct jp : waitFor(deps))
+			wanted.put("WEB-INF/lib/" + jp.getNameWithoutPath(), jp.getFile());
+
+		ts = System.nanoTime();
+		File mf = getManifestFile();
+		WebImageManifest old = WebImageManifest.load(mf);
+		mf.delete(); // Invalid while the image changes
+		getImageDir().mkdirs();
+
+		//-- The war manifests are invalid as description of the image while it changes, but remain valid if nothing changes.
+		Map<GeneratedJarProduct, ZipManifest> warmap = new HashMap<GeneratedJarProduct, ZipManifest>();
+		for(GeneratedJarProduct war : getWarProducts()) {
+			ZipManifest zm = ZipManifest.load(war.getFile());
+			if(zm != null)
+				warmap.put(war, zm);
+			ZipManifest.delete(war.getFile());
+		}
+		WebImageManifest nm = WebImageManifest.synchronize(r(), getImageDir(), old, wanted, getCopyMode());
+		nm.save(mf);
+		for(Map.Entry<GeneratedJarProduct, ZipManifest> me : warmap.entrySet()) {
+			if(nm.getChangeCount() == 0)
+				me.getValue().save(me.getKey().getFile());
+			else
+				me.getKey().setPreviousManifest(me.getValue()); // Still describes the old war, for reusing its entries
+		}
+		m_phaseTimer.add("synchronize", ts);
 	}
 
 	/*--------------------------------------------------------------*/
@@ -848,11 +1021,32 @@ public class EclipseWebMaker extends EclipseModuleMakerBase {
 	/*--------------------------------------------------------------*/
 
 
-	public DeltaBuilder	createDelta(final File olddir, final File newdir) throws Exception {
-		DeltaBuilder	db = new DeltaBuilder();
+	/**
+	 * Binary patches, if enabled, are written to newdir/patches where the changes refer to them.
+	 */
+	public DeltaBuilder	createDelta(final File olddir, final File newdir, final IDeltaSink sink) throws Exception {
+		File pd = null;
+		if(getBuildInfo().getConfiguration().isBinaryPatches()) {
+			pd = new File(newdir, "patches");
+			FileTool.deleteDir(pd);
+		}
+		return createDelta(olddir, newdir, sink, pd);
+	}
+
+	private DeltaBuilder	createDelta(final File olddir, final File newdir, final IDeltaSink sink, final File patchdir) throws Exception {
+		DeltaBuilder	db = new DeltaBuilder(getBuildInfo().getConfiguration().getJarIndex(r()));
+		db.setSink(sink);
+		db.setStrict(getBuildInfo().getConfiguration().isStrictDelta());
+		db.setPatchDir(patchdir);
 		File	oldimg = new File(olddir, "image");
 		File	newimg = new File(newdir, "image");
-		db.delta("image", oldimg, newimg);
+		List<File> wars = getWarFiles();
+		if(wars.size() > 0) {
+			//-- Use the war's manifests when both builds have them.
+			String name = wars.get(0).getName();
+			db.delta("image", oldimg, newimg, new File(olddir, name), new File(newdir, name));
+		} else
+			db.delta("image", oldimg, newimg);
 
 		//-- Compare the fix directories too, and add those as fix delta's
 		File	oldfixes	= new File(olddir, "fixes");
@@ -860,4 +1054,27 @@ public class EclipseWebMaker extends EclipseModuleMakerBase {
 		db.delta("fixes", oldfixes, newfixes);
 		return db;
 	}
+
+	/**
+	 * Stream the delta straight into the archive, so that the changes are never all in memory. Binary
+	 * patches are written to a temp directory first, copied into the archive from there and deleted
+	 * when the archive is complete.
+	 */
+	public int createPatchArchive(final File olddir, final File newdir, final File patchfile) throws Exception {
+		File			pd = getBuildInfo().getConfiguration().isBinaryPatches() ? FileTool.newDir(newdir) : null;
+		ZipPatchWriter	zpw = new ZipPatchWriter(patchfile, Runtime.getRuntime().availableProcessors());
+		boolean			ok = false;
+		try {
+			createDelta(olddir, newdir, zpw, pd);
+			zpw.close();
+			ok = true;
+			r().detail("Delta for " + getBuildInfo().getName() + ": " + zpw.getCount() + " changes written to " + patchfile);
+			return zpw.getCount();
+		} finally {
+			if(! ok)
+				zpw.abort();
+			if(pd != null)
+				FileTool.deleteDir(pd);
+		}
+	}
 }
@@ -10,21 +10,86 @@ public class GeneratedJarProduct extends JarProduct implements GeneratedProduct
 	/** The inventory of files that construct this product, if applicable. Only present for products created by the build. */
 	private File			m_sourceDir;
 
+	/** Set as soon as the jar has been written by this build. */
+	private boolean			m_generated;
+
+	/** T if the jar written by this build is compressed. */
+	private boolean			m_compressed;
+
+	/** The manifest of the existing jar, kept by the maker while its sidecar file is invalid. */
+	private ZipManifest		m_previousManifest;
+
 	public GeneratedJarProduct(ModuleBuildInfo source, File targetjar, String name, File srcdir) {
 		super(source, targetjar, name);
 		m_sourceDir = srcdir;
 	}
 
+	public File getSourceDir() {
+		return m_sourceDir;
+	}
+
+	/**
+	 * Pass the manifest of the existing jar when its sidecar file had to be deleted because the source
+	 * changed, so that the jar's unchanged entries can still be proven equal and reused.
+	 */
+	public void setPreviousManifest(ZipManifest previousManifest) {
+		m_previousManifest = previousManifest;
+	}
+
 	/**
 	 * Actually generate the product after the build. This creates the actual .jar file from
 	 * the path passed as source, and it creates the inventory for the jar for use by the file
-	 * patcher.
+	 * patcher. Products of modules whose artefacts are not published are not created here: their
+	 * source directory is used on classpaths, and {@link #ensureGenerated(Reporter, boolean)} creates the
+	 * jar only when something needs the actual file.
 	 *
 	 * @see to.etc.saram.bld.maker.GeneratedProduct#generate()
 	 */
 	@Override
 	public void generate(ModuleBuildInfo root, Reporter r) throws Exception {
-		FileTool.zip(getFile(), m_sourceDir);
+		if(!getBuildInfo().isPublishArtefacts()) {
+			//-- Any jar from an earlier build is stale now: remove it so nobody mistakes it for this build's.
+			m_generated = false;
+			if(getFile().exists() && !getFile().delete())
+				throw new IOException("Cannot delete the stale jar " + getFile());
+			ZipManifest.delete(getFile());
+			return;
+		}
+		writeJar(r, true);
 		//		PuzzlerUtil.zip(getFile(), m_sourceDir, 1, "Build " + root.getCurrBuild().getBuildRun().getBuildNr() + " at " + root.getCurrBuild().getBuildRun().getStartTime() + " of " + root);
 	}
+
+	/**
+	 * Make sure the jar file exists and is current, for users that need the actual file. Pass
+	 * compress=false when the jar is only read by the build itself, so it gets stored uncompressed.
+	 */
+	public File ensureGenerated(Reporter r, boolean compress) throws Exception {
+		if(!m_generated || (compress && !m_compressed))
+			writeJar(r, compress);
+		return getFile();
+	}
+
+	/**
+	 * The file to use on the classpath of modules that depend on this: the jar if it is published,
+	 * else the directory it would be made from.
+	 */
+	public File getClasspathFile() {
+		return getBuildInfo().isPublishArtefacts() ? getFile() : m_sourceDir;
+	}
+
+	/**
+	 * Write the jar, together with its {@link ZipManifest} which is used to calculate deltas between builds.
+	 */
+	private void writeJar(Reporter r, boolean compress) throws Exception {
+		int threads = Runtime.getRuntime().availableProcessors();
+		if(!compress || getBuildInfo().getConfiguration().isDeterministicJars()) {
+			ZipManifest pm = m_previousManifest;
+			m_previousManifest = null;
+			if(!ParallelZipWriter.zip(getFile(), m_sourceDir, threads, true, !compress, true, pm))
+				r.detail(getFile().getName() + ": content unchanged, not rewritten");
+		} else
+			ParallelZipWriter.zip(getFile(), m_sourceDir, threads, false, false, true);
+		m_generated = true;
+		m_compressed = compress;
+	}
 }
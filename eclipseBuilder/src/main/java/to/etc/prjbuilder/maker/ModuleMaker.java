@@ -109,7 +109,18 @@ public interface ModuleMaker {
 	 */
 	public void				addResolvedExternal(ModuleFileRef r, Product p) throws Exception;
 
-	public DeltaBuilder		createDelta(File olddir, File newdir) throws Exception;
+	/**
+	 * Calculate the delta between two builds of this module. When a sink is passed every change is
+	 * passed to it as soon as it is found, and the builder's list stays empty; with null the changes
+	 * are collected in {@link DeltaBuilder#getList()}.
+	 */
+	public DeltaBuilder		createDelta(File olddir, File newdir, IDeltaSink sink) throws Exception;
+
+	/**
+	 * Calculate the delta between two builds of this module and write it as a patch archive, see
+	 * {@link ZipPatchWriter}. Returns the #of changes.
+	 */
+	public int				createPatchArchive(File olddir, File newdir, File patchfile) throws Exception;
 
 	List<File> getModuleOutputPaths(boolean testonly);
 
@@ -0,0 +1,186 @@
+package to.etc.prjbuilder.maker;
+
+import java.io.*;
+import java.util.*;
+
+import to.etc.prjbuilder.util.*;
+import to.etc.util.*;
+
+/**
+ * The inventory of an exploded webapp image: for every file that was copied into the image it
+ * records the source it came from, and that source's size and timestamp at the time of the copy.
+ * A next build compares the files it wants in the image with this inventory and only copies
+ * files whose source changed, and deletes the files that are no longer wanted. A source with a
+ * new timestamp but the same size is compared with the file in the image first: a recompiled
+ * class usually has the same content, and leaving the image file alone keeps its timestamp so
+ * that caches keyed on size and timestamp, like the war's CRC cache, stay valid.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+public class WebImageManifest implements Serializable {
+	static private final long serialVersionUID = 1;
+
+	static private final class ImageEntry implements Serializable {
+		static private final long serialVersionUID = 1;
+
+		public String	source;
+
+		public long		size;
+
+		public long		lastModified;
+
+		public ImageEntry(String source, long size, long lastModified) {
+			this.source = source;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+	}
+
+	/** Maps the image-relative path to the source it came from. */
+	private Map<String, ImageEntry>	m_map = new HashMap<String, ImageEntry>();
+
+	/** The #of files copied or deleted by the synchronize that created this. */
+	private transient int			m_changeCount;
+
+	/**
+	 * Load a manifest; return null on any failure.
+	 */
+	static public WebImageManifest load(File f) {
+		try {
+			return (WebImageManifest) FileTool.loadSerialized(f);
+		} catch(Exception x) {
+			return null;
+		}
+	}
+
+	public void save(File f) throws IOException {
+		FileTool.saveSerialized(f, this);
+	}
+
+	/*--------------------------------------------------------------*/
+	/*	CODING:	Synchronizing the image.							*/
+	/*--------------------------------------------------------------*/
+	/**
+	 * Make the image contain the files in the wanted map (image-relative path to source file),
+	 * assuming that it was last built as described by old. Returns the manifest for the new image.
+	 * Files that are in the image but were never put there through a manifest (like classes compiled
+	 * directly into the image) are left alone.
+	 */
+	static public WebImageManifest synchronize(Reporter r, File imagedir, WebImageManifest old, Map<String, File> wanted, FileCopyMode mode) throws IOException {
+		long ts = System.nanoTime();
+		WebImageManifest nm = new WebImageManifest();
+		int deleted = 0, copied = 0, same = 0;
+
+		//-- 1. Delete all files no longer wanted
+		if(old != null) {
+			for(String rel : old.m_map.keySet()) {
+				if(!wanted.containsKey(rel)) {
+					File f = new File(imagedir, rel);
+					f.delete();
+					deleted++;
+
+					//-- Remove directories that became empty
+					for(File d = f.getParentFile(); d != null && !d.equals(imagedir) && d.delete(); d = d.getParentFile())
+						;
+				}
+			}
+		}
+
+		//-- 2. Copy all that is new or changed.
+		for(Map.Entry<String, File> me : wanted.entrySet()) {
+			String rel = me.getKey();
+			File src = me.getValue();
+			long size = src.length();
+			long lastModified = src.lastModified();
+			ImageEntry ie = new ImageEntry(src.getAbsolutePath(), size, lastModified);
+			nm.m_map.put(rel, ie);
+
+			File target = new File(imagedir, rel);
+			ImageEntry oe = old == null ? null : old.m_map.get(rel);
+			if(oe != null && oe.size == size && oe.source.equals(ie.source) && target.isFile() && target.length() == size) {
+				if(oe.lastModified == lastModified)
+					continue;
+				if(sameContent(src, target)) {
+					same++;
+					continue;
+				}
+			}
+			if(target.isDirectory())
+				FileTool.deleteDir(target);
+			target.getParentFile().mkdirs();
+			FileTool.copyFile(target, src, mode);
+			copied++;
+		}
+		nm.m_changeCount = copied + deleted;
+		ts = System.nanoTime() - ts;
+		r.detail("webapp: image synchronized in " + StringTool.strNanoTime(ts) + ": " + copied + " copied, " + deleted + " deleted, " + (wanted.size() - copied) + " unchanged (" + same + " rebuilt with the same content)");
+		return nm;
+	}
+
+	/**
+	 * T if both files have the same content; they must have the same size.
+	 */
+	static private boolean sameContent(File a, File b) throws IOException {
+		InputStream ia = new FileInputStream(a);
+		InputStream ib = null;
+		try {
+			ib = new FileInputStream(b);
+			byte[] ba = new byte[8192];
+			byte[] bb = new byte[8192];
+			for(;;) {
+				int len = ia.read(ba);
+				if(len <= 0)
+					return ib.read() == -1;
+				int off = 0;
+				while(off < len) {
+					int n = ib.read(bb, off, len - off);
+					if(n <= 0)
+						return false;
+					off += n;
+				}
+				for(int i = 0; i < len; i++) {
+					if(ba[i] != bb[i])
+						return false;
+				}
+			}
+		} finally {
+			try {
+				ia.close();
+			} catch(Exception x) {}
+			try {
+				if(ib != null)
+					ib.close();
+			} catch(Exception x) {}
+		}
+	}
+
+	/**
+	 * The #of files that were copied or deleted to create the image this describes.
+	 */
+	public int getChangeCount() {
+		return m_changeCount;
+	}
+
+	/**
+	 * Add all files in src to the wanted map, with image-relative paths starting at base. If
+	 * src is a file it gets added as base itself.
+	 */
+	static public void addWanted(Map<String, File> wanted, String base, File src) {
+		while(base.endsWith("/"))
+			base = base.substring(0, base.length() - 1);
+		if(src.isFile()) {
+			wanted.put(base, src);
+			return;
+		}
+		File[] far = src.listFiles();
+		if(far == null)
+			return;
+		for(File f : far) {
+			String rel = base.length() == 0 ? f.getName() : base + "/" + f.getName();
+			if(f.isDirectory())
+				addWanted(wanted, rel, f);
+			else
+				wanted.put(rel, f);
+		}
+	}
+}
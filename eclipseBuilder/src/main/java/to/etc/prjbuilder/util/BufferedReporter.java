@@ -0,0 +1,99 @@
+package to.etc.prjbuilder.util;
+
+import java.util.*;
+
+/**
+ * A Reporter for work done on another thread: it collects all messages, and the thread that owns
+ * the real reporter passes them on with {@link #replay(Reporter)} when the work is done. Reporters
+ * like the Jenkins one are not thread-safe, so they may not be called from another thread directly.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+public class BufferedReporter implements Reporter {
+	static private final class Message {
+		final LogLineType	m_type;
+
+		final String		m_text;
+
+		final Throwable		m_exception;
+
+		Message(LogLineType type, String text, Throwable exception) {
+			m_type = type;
+			m_text = text;
+			m_exception = exception;
+		}
+	}
+
+	private final List<Message> m_list = new ArrayList<Message>();
+
+	private void add(LogLineType type, String text, Throwable exception) {
+		synchronized(m_list) {
+			m_list.add(new Message(type, text, exception));
+		}
+	}
+
+	public void header(String s) {
+		add(LogLineType.HDR, s, null);
+	}
+
+	public void important(String s) {
+		add(LogLineType.IMP, s, null);
+	}
+
+	public void error(String s) {
+		add(LogLineType.ERR, s, null);
+	}
+
+	public void log(String s) {
+		add(LogLineType.LOG, s, null);
+	}
+
+	public void detail(String s) {
+		add(LogLineType.DET, s, null);
+	}
+
+	public void exception(Throwable t, String where) {
+		add(null, where, t);
+	}
+
+	public void logRecord(LogLineType t, String line) {
+		add(t, line, null);
+	}
+
+	/**
+	 * Pass all messages collected so far on to the reporter, in order, and forget them.
+	 */
+	public void replay(Reporter r) {
+		List<Message> list;
+		synchronized(m_list) {
+			list = new ArrayList<Message>(m_list);
+			m_list.clear();
+		}
+		for(Message m : list) {
+			if(m.m_exception != null) {
+				r.exception(m.m_exception, m.m_text);
+				continue;
+			}
+			switch(m.m_type){
+				default:
+					r.logRecord(m.m_type, m.m_text);
+					break;
+				case HDR:
+					r.header(m.m_text);
+					break;
+				case IMP:
+					r.important(m.m_text);
+					break;
+				case ERR:
+					r.error(m.m_text);
+					break;
+				case LOG:
+					r.log(m.m_text);
+					break;
+				case DET:
+					r.detail(m.m_text);
+					break;
+			}
+		}
+	}
+}
@@ -0,0 +1,272 @@
+package to.etc.prjbuilder.util;
+
+import java.io.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+import to.etc.util.*;
+
+/**
+ * A persistent index of the contents of .jar files, keyed by the jar's path, size and timestamp. For
+ * each jar it holds the entry names with their sizes and CRC's as found in the central directory, and
+ * whether the jar contains one of the {@link #API_CLASSES}. Most jars used by a build are third-party
+ * jars that never change, so after the first build all scans of those jars are just lookups here.
+ *
+ * <p>The index file is shared by all builds on the machine, so it is replaced atomically when saved,
+ * and entries saved by other builds in the meantime are kept.</p>
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+public class JarIndex implements Serializable {
+	static private final long serialVersionUID = 1;
+
+	/**
+	 * This set contains a list of filenames that, when they are present in a .jar file,
+	 * indicate that the jar defines a Sun standard API or a container-provided library.
+	 */
+	static public final Set<String> API_CLASSES;
+
+	static {
+		Set<String> s = new HashSet<String>();
+		s.add("javax/servlet/Servlet.class");
+		s.add("javax/servlet/http/HttpServlet.class");
+		s.add("javax/servlet/Filter.class");
+		s.add("oracle/jdbc/driver/OracleDriver.class"); // Do not copy driver lib
+		API_CLASSES = Collections.unmodifiableSet(s);
+	}
+
+	/**
+	 * The contents of a single jar.
+	 */
+	static public final class JarInfo implements Serializable {
+		static private final long serialVersionUID = 1;
+
+		private final long		m_size;
+
+		private final long		m_lastModified;
+
+		private final String[]	m_names;
+
+		private final long[]	m_sizes;
+
+		private final int[]		m_crcs;
+
+		/** The first API class found in the jar, or null if it has none. */
+		private final String	m_apiClass;
+
+		private transient String	m_entriesHash;
+
+		JarInfo(long size, long lastModified, String[] names, long[] sizes, int[] crcs, String apiClass) {
+			m_size = size;
+			m_lastModified = lastModified;
+			m_names = names;
+			m_sizes = sizes;
+			m_crcs = crcs;
+			m_apiClass = apiClass;
+		}
+
+		boolean isCurrent(File f) {
+			return f.length() == m_size && f.lastModified() == m_lastModified;
+		}
+
+		public int getEntryCount() {
+			return m_names.length;
+		}
+
+		public String getName(int ix) {
+			return m_names[ix];
+		}
+
+		public long getSize(int ix) {
+			return m_sizes[ix];
+		}
+
+		public long getCrc(int ix) {
+			return m_crcs[ix] & 0xffffffffL;
+		}
+
+		/**
+		 * Returns the index of the named entry, or -1 if the jar does not contain it.
+		 */
+		public int indexOf(String name) {
+			return Arrays.binarySearch(m_names, name);
+		}
+
+		public boolean isApiOnly() {
+			return m_apiClass != null;
+		}
+
+		public String getApiClass() {
+			return m_apiClass;
+		}
+
+		/**
+		 * Return a hex MD5 hash over the names, sizes and CRC32s of all entries. This is not a hash
+		 * of the content: it identifies the jar's entries at CRC32 level, without reading them.
+		 */
+		public synchronized String getEntriesHash() {
+			if(m_entriesHash == null) {
+				try {
+					MessageDigest md = MessageDigest.getInstance("MD5");
+					DataOutputStream dos = new DataOutputStream(new DigestOutputStream(new OutputStream() {
+						@Override
+						public void write(int b) {}
+					}, md));
+					for(int i = 0; i < m_names.length; i++) {
+						dos.writeUTF(m_names[i]);
+						dos.writeLong(m_sizes[i]);
+						dos.writeInt(m_crcs[i]);
+					}
+					dos.flush();
+					m_entriesHash = StringTool.toHex(md.digest());
+				} catch(Exception x) {
+					throw WrappedException.wrap(x);
+				}
+			}
+			return m_entriesHash;
+		}
+
+		/**
+		 * T if both jars contain the same names, and all entries have the same size and CRC.
+		 */
+		public boolean sameEntries(JarInfo o) {
+			return Arrays.equals(m_names, o.m_names) && Arrays.equals(m_sizes, o.m_sizes) && Arrays.equals(m_crcs, o.m_crcs);
+		}
+	}
+
+	/** The API classes this index was built with; when that set changes the index is discarded. */
+	private Set<String>				m_apiClasses = new HashSet<String>(API_CLASSES);
+
+	/** Maps the jar's absolute path to its contents. */
+	private Map<String, JarInfo>	m_map = new HashMap<String, JarInfo>();
+
+	private transient File			m_file;
+
+	private transient boolean		m_dirty;
+
+	private transient int			m_hits;
+
+	private transient int			m_misses;
+
+	/**
+	 * Load the index from the file. If that fails for whatever reason an empty index is returned.
+	 */
+	static public JarIndex load(File f, Reporter r) {
+		JarIndex ji = null;
+		try {
+			ji = read(f);
+		} catch(Exception x) {
+			r.log("jarindex: cannot load " + f + ", starting with an empty index: " + x);
+		}
+		if(ji == null)
+			ji = new JarIndex();
+		ji.m_file = f;
+		return ji;
+	}
+
+	/**
+	 * Read the index file, or return null if there is none or if it was made for other API classes.
+	 */
+	static private JarIndex read(File f) throws Exception {
+		if(!f.exists())
+			return null;
+		JarIndex ji = (JarIndex) FileTool.loadSerialized(f);
+		return ji.m_apiClasses.equals(API_CLASSES) ? ji : null;
+	}
+
+	/**
+	 * Save the index if it changed. Entries that other builds saved since we loaded it are added, and
+	 * jars that no longer exist are removed. The file is written under a temp name and then renamed,
+	 * so that builds reading it concurrently never see a partial file.
+	 */
+	public synchronized void save(Reporter r) throws IOException {
+		if(m_dirty && m_file != null) {
+			try {
+				JarIndex other = read(m_file);
+				if(other != null) {
+					for(Map.Entry<String, JarInfo> me : other.m_map.entrySet()) {
+						if(!m_map.containsKey(me.getKey()))
+							m_map.put(me.getKey(), me.getValue());
+					}
+				}
+			} catch(Exception x) {
+				//-- Unreadable: it gets replaced by ours.
+			}
+		}
+		for(Iterator<String> it = m_map.keySet().iterator(); it.hasNext();) {
+			if(!new File(it.next()).exists()) {
+				it.remove();
+				m_dirty = true;
+			}
+		}
+		if(m_dirty && m_file != null) {
+			File dir = m_file.getAbsoluteFile().getParentFile();
+			File tmp = File.createTempFile(m_file.getName(), ".tmp", dir);
+			try {
+				FileTool.saveSerialized(tmp, this);
+				Files.move(tmp.toPath(), m_file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				tmp.delete();
+			}
+			m_dirty = false;
+		}
+		r.detail("jarindex: " + m_hits + " lookups, " + m_misses + " jars scanned, " + m_map.size() + " jars in index");
+	}
+
+	/**
+	 * Return the contents of the jar, scanning it only if it is not in the index or if it
+	 * changed since it was last scanned.
+	 */
+	public JarInfo getInfo(File jar) throws IOException {
+		String key = jar.getAbsolutePath();
+		synchronized(this) {
+			JarInfo ji = m_map.get(key);
+			if(ji != null && ji.isCurrent(jar)) {
+				m_hits++;
+				return ji;
+			}
+		}
+
+		JarInfo ji = scan(jar); // Do this unlocked; other threads can scan other jars
+		synchronized(this) {
+			m_misses++;
+			m_map.put(key, ji);
+			m_dirty = true;
+		}
+		return ji;
+	}
+
+	/**
+	 * Read the jar's central directory; entries are sorted by name.
+	 */
+	static private JarInfo scan(File jar) throws IOException {
+		long size = jar.length();
+		long lastModified = jar.lastModified();
+		ZipDirectory zd = new ZipDirectory(jar);
+		try {
+			List<ZipDirectory.Entry> list = new ArrayList<ZipDirectory.Entry>(zd.getEntryList());
+			Collections.sort(list, new Comparator<ZipDirectory.Entry>() {
+				@Override
+				public int compare(ZipDirectory.Entry a, ZipDirectory.Entry b) {
+					return a.getName().compareTo(b.getName());
+				}
+			});
+			String[] names = new String[list.size()];
+			long[] sizes = new long[list.size()];
+			int[] crcs = new int[list.size()];
+			String api = null;
+			for(int i = 0; i < list.size(); i++) {
+				ZipDirectory.Entry e = list.get(i);
+				names[i] = e.getName();
+				sizes[i] = e.getSize();
+				crcs[i] = (int) e.getCrc();
+				if(api == null && API_CLASSES.contains(names[i]))
+					api = names[i];
+			}
+			return new JarInfo(size, lastModified, names, sizes, crcs, api);
+		} finally {
+			zd.close();
+		}
+	}
+}
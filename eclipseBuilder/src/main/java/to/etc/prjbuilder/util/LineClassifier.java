@@ -0,0 +1,158 @@
+package to.etc.prjbuilder.util;
+
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Recognises single-line compiler messages in build output, for the message filters. Every rule
+ * is a case-insensitive regex that is searched for in the line, with a cheap prefilter: the first
+ * character after leading whitespace and dashes, a keyword that must occur in the line, and
+ * whether the line needs a ":123:" line number. The regex only runs when the prefilter passes,
+ * and a line is never copied or lowercased, so most lines of a build log are rejected without
+ * allocating anything.
+ *
+ * Like a Matcher an instance is not thread safe; every filter has its own.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+final public class LineClassifier {
+	static private final class Rule {
+		private final LogLineType	m_type;
+
+		private final Matcher		m_matcher;
+
+		/** The first character after leading whitespace and dashes, or 0 if any is allowed. */
+		private final char			m_first;
+
+		/** A lowercase keyword that must occur in the line, or null. */
+		private final String		m_keyword;
+
+		/** T if the line must contain a line number, as :digits:. */
+		private final boolean		m_lineNumber;
+
+		Rule(LogLineType type, String regex, char first, String keyword, boolean lineNumber) {
+			m_type = type;
+			m_matcher = Pattern.compile(regex, Pattern.CASE_INSENSITIVE).matcher("");
+			m_first = first;
+			m_keyword = keyword;
+			m_lineNumber = lineNumber;
+		}
+	}
+
+	private final List<Rule>	m_ruleList = new ArrayList<Rule>();
+
+	/**
+	 * Create a classifier for the messages of javac, ECJ and jasper as logged by Ant.
+	 */
+	static public LineClassifier createCompilerClassifier() {
+		LineClassifier lc = new LineClassifier();
+		lc.add(LogLineType.CER, "^\\s-*\\[[^]]*\\]\\s-*\\(.+\\):\\([0-9]+\\):\\([0-9]+\\):[0-9]+:[0-9]+:", '[', "):(", false);
+		lc.add(LogLineType.CER, "^\\s-*\\[[^]]*\\]\\s-*\\(.+\\):\\([0-9]+\\):", '[', "):(", false);
+
+		lc.add(LogLineType.CWA, "^\\s*\\[[^\\]]*\\]\\s*.*:[0-9]+:\\s*warning", '[', "warning", true);
+
+		lc.add(LogLineType.CER, "^\\s*\\[[^\\]]*\\]\\s*.*:[0-9]+:", '[', null, true);
+		lc.add(LogLineType.CER, "^\\s*\\[javac\\]\\s*javac:", '[', "javac:", false); // [javac] javac: errormessage, old style
+
+		lc.add(LogLineType.CER, "^\\s*\\[jasper\\]\\s*severe:", '[', "severe:", false); // jasper JSP checker/compilert.
+		return lc;
+	}
+
+	/**
+	 * Add a rule. The prefilter must hold for every line that the regex finds a match in: first is
+	 * the first character after leading whitespace and dashes, or 0; keyword is lowercase text that
+	 * the line must contain, or null; lineNumber means the line must contain a :digits: line number.
+	 */
+	public void add(LogLineType type, String regex, char first, String keyword, boolean lineNumber) {
+		m_ruleList.add(new Rule(type, regex, first, keyword, lineNumber));
+	}
+
+	/**
+	 * Return the type of the first rule that matches the line, or null if none does.
+	 */
+	public LogLineType classify(CharSequence line) {
+		return classify(line, 0, line.length());
+	}
+
+	/**
+	 * Return the type of the first rule that matches the part start..end of the line, or null if
+	 * none does. The part is matched as if it were the whole line.
+	 */
+	public LogLineType classify(CharSequence line, int start, int end) {
+		int ix = start;
+		while(ix < end && (isSpace(line.charAt(ix)) || line.charAt(ix) == '-'))
+			ix++;
+		char first = ix < end ? line.charAt(ix) : 0;
+		int lineNumber = -1;								// Unknown yet
+
+		for(Rule r : m_ruleList) {
+			if(r.m_first != 0 && r.m_first != first)
+				continue;
+			if(r.m_lineNumber) {
+				if(lineNumber < 0)
+					lineNumber = hasLineNumber(line, start, end) ? 1 : 0;
+				if(lineNumber == 0)
+					continue;
+			}
+			if(r.m_keyword != null && !contains(line, start, end, r.m_keyword))
+				continue;
+			if(r.m_matcher.reset(line).region(start, end).find())
+				return r.m_type;
+		}
+		return null;
+	}
+
+	/**
+	 * T for the characters matched by \s.
+	 */
+	static public boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == 0x0b || c == '\f' || c == '\r';
+	}
+
+	/**
+	 * Return the index of the first character in start..end that is not matched by \s, or end.
+	 */
+	static public int skipSpace(CharSequence cs, int start, int end) {
+		while(start < end && isSpace(cs.charAt(start)))
+			start++;
+		return start;
+	}
+
+	/**
+	 * T if the text contains the lowercase keyword, in any case.
+	 */
+	static public boolean contains(CharSequence cs, int start, int end, String keyword) {
+		int len = keyword.length();
+		char c0 = keyword.charAt(0);
+		for(int i = start, last = end - len; i <= last; i++) {
+			if(Character.toLowerCase(cs.charAt(i)) != c0)
+				continue;
+			int j = 1;
+			while(j < len && Character.toLowerCase(cs.charAt(i + j)) == keyword.charAt(j))
+				j++;
+			if(j == len)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * T if the text contains a colon, one or more digits and a colon.
+	 */
+	static private boolean hasLineNumber(CharSequence cs, int start, int end) {
+		int digits = -1;									// -1: no colon before
+		for(int i = start; i < end; i++) {
+			char c = cs.charAt(i);
+			if(c == ':') {
+				if(digits > 0)
+					return true;
+				digits = 0;
+			} else if(c >= '0' && c <= '9') {
+				if(digits >= 0)
+					digits++;
+			} else
+				digits = -1;
+		}
+		return false;
+	}
+}
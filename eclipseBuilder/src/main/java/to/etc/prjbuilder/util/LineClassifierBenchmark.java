@@ -0,0 +1,148 @@
+package to.etc.prjbuilder.util;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Compares the speed of the {@link LineClassifier} with the way the message filters classified
+ * lines before: lowercase every line and search for every pattern in it. It also checks that both
+ * classify every line the same way.
+ *
+ * Usage: LineClassifierBenchmark [logfile...]
+ *
+ * Pass recorded ECJ and Ant build logs; without files a log is generated from typical lines.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+public class LineClassifierBenchmark {
+	static private final String[] PATTERNS = {
+		"^\\s-*\\[[^]]*\\]\\s-*\\(.+\\):\\([0-9]+\\):\\([0-9]+\\):[0-9]+:[0-9]+:",
+		"^\\s-*\\[[^]]*\\]\\s-*\\(.+\\):\\([0-9]+\\):",
+		"^\\s*\\[[^\\]]*\\]\\s*.*:[0-9]+:\\s*warning",
+		"^\\s*\\[[^\\]]*\\]\\s*.*:[0-9]+:",
+		"^\\s*\\[javac\\]\\s*javac:",
+		"^\\s*\\[jasper\\]\\s*severe:",
+	};
+
+	static private final LogLineType[] TYPES = {LogLineType.CER, LogLineType.CER, LogLineType.CWA, LogLineType.CER, LogLineType.CER, LogLineType.CER};
+
+	static private final String[] SAMPLE = {
+		"    [javac] Compiling 312 source files to /home/jal/buildfiles/VP/output/to.etc.server/bin",
+		"   [javac] /tmp/buildfiles/PONG/sources/to.etc.ponger/src/to/mumble/ponger/BetweenDeliveryMethod.java:20: cannot find symbol",
+		"[javac] /home/jal/buildfiles/VP/sources/bin-hibernate-3.2.3/src/org/hibernate/util/GetGeneratedKeysHelper.java:38: warning: non-varargs call of varargs method with inexact argument type for last parameter;",
+		"    [javac] Note: Some input files use unchecked or unsafe operations.",
+		"    [javac] Note: Recompile with -Xlint:unchecked for details.",
+		"----------",
+		"543. ERROR in /home/jal/buildfiles/vp-3.1-hot/branch-work/to.etc.server/src/to/etc/server/vfs/VfsSegmentResolver.java (at line 26)",
+		"\tPathSplitter ps = new PathSplitter(rpath);",
+		"\t^^^^^^^^^^^^",
+		"PathSplitter cannot be resolved to a type",
+		"12. WARNING in /home/jal/buildfiles/vp-3.1-hot/branch-work/to.etc.domui/src/to/etc/domui/dom/html/NodeBase.java (at line 1210)",
+		"\tprivate List list = new ArrayList();",
+		"The type List is a raw type. References to generic type List<E> should be parameterized",
+		"     [copy] Copying 14 files to /home/jal/buildfiles/VP/output/to.etc.server/bin",
+		"      [jar] Building jar: /home/jal/buildfiles/VP/output/to.etc.server.jar",
+		"   [jasper] SEVERE: Error in /WEB-INF/pages/index.jsp: unterminated tag",
+		"BUILD SUCCESSFUL",
+		"Total time: 12 seconds",
+	};
+
+	public static void main(String[] args) throws Exception {
+		List<String> lines = new ArrayList<String>();
+		for(String name : args)
+			readLines(lines, new File(name));
+		if(lines.size() == 0) {
+			for(int i = 0; i < 20000; i++)
+				lines.add(SAMPLE[i % SAMPLE.length]);
+		}
+		String[] ar = lines.toArray(new String[lines.size()]);
+
+		//-- Both must give the same answer.
+		Matcher[] old = createOld();
+		LineClassifier lc = LineClassifier.createCompilerClassifier();
+		int diff = 0;
+		int found = 0;
+		for(String s : ar) {
+			LogLineType a = classifyOld(old, s);
+			LogLineType b = lc.classify(s);
+			if(a != b) {
+				if(diff++ < 10)
+					System.out.println("DIFFERENT: old=" + a + ", new=" + b + ": " + s);
+			}
+			if(b != null)
+				found++;
+		}
+		System.out.println(ar.length + " lines, " + found + " messages, " + diff + " differences");
+
+		//-- Warm up, then measure.
+		for(int i = 0; i < 5; i++) {
+			runOld(old, ar);
+			runNew(lc, ar);
+		}
+		long total = 0;
+		for(int i = 0; i < 10; i++) {
+			long ts = System.nanoTime();
+			total += runOld(old, ar);
+			long told = System.nanoTime() - ts;
+
+			ts = System.nanoTime();
+			total += runNew(lc, ar);
+			long tnew = System.nanoTime() - ts;
+			System.out.println("run " + i + ": old " + rate(ar.length, told) + " lines/s, new " + rate(ar.length, tnew) + " lines/s, " + (told / Math.max(1, tnew)) + "x");
+		}
+		if(total == 42)
+			System.out.println();							// Use the result so that the runs cannot be optimized away
+	}
+
+	static private void readLines(List<String> lines, File f) throws IOException {
+		LineNumberReader lr = new LineNumberReader(new InputStreamReader(new FileInputStream(f), "utf-8"));
+		try {
+			String line;
+			while(null != (line = lr.readLine()))
+				lines.add(line);
+		} finally {
+			try {
+				lr.close();
+			} catch(Exception x) {}
+		}
+	}
+
+	static private Matcher[] createOld() {
+		Matcher[] ar = new Matcher[PATTERNS.length];
+		for(int i = 0; i < ar.length; i++)
+			ar[i] = Pattern.compile(PATTERNS[i]).matcher("");
+		return ar;
+	}
+
+	static private LogLineType classifyOld(Matcher[] old, String line) {
+		String lc = line.toLowerCase();
+		for(int i = 0; i < old.length; i++) {
+			if(old[i].reset(lc).find())
+				return TYPES[i];
+		}
+		return null;
+	}
+
+	static private long runOld(Matcher[] old, String[] ar) {
+		long n = 0;
+		for(String s : ar) {
+			if(classifyOld(old, s) != null)
+				n++;
+		}
+		return n;
+	}
+
+	static private long runNew(LineClassifier lc, String[] ar) {
+		long n = 0;
+		for(String s : ar) {
+			if(lc.classify(s) != null)
+				n++;
+		}
+		return n;
+	}
+
+	static private long rate(int lines, long nanos) {
+		return nanos == 0 ? 0 : lines * 1000000000L / nanos;
+	}
+}
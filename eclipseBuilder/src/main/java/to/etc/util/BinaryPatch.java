@@ -0,0 +1,522 @@
+package to.etc.util;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Creates and applies binary patches: a patch turns an old version of a file into the new version by
+ * copying ranges from the old file and inserting literal data.
+ *
+ * <p>For ordinary files the patch is found the rsync way: the old file is indexed by a rolling checksum
+ * per fixed-size block, and the new file is streamed through a window that looks up every position in
+ * that index. Only the index (a few ints per block) and a small window are in memory, regardless of the
+ * file sizes. Zip files (jars, wars) are diffed per entry instead, because a change in one class changes
+ * nothing in the compressed data of the other entries: the compressed data of every entry that is the
+ * same in the old zip becomes a copy, and only headers, changed entries and the central directory are
+ * included literally.</p>
+ *
+ * <p>The patch format is a header containing the length and MD5 of the new file, followed by a deflated
+ * stream of COPY (offset, length) and DATA (length, bytes) operations. Applying verifies the result
+ * against length and MD5.</p>
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+public class BinaryPatch {
+	static private final int MAGIC = 0x45544450; // "ETDP"
+
+	static private final int VERSION = 1;
+
+	static private final int OP_END = 0;
+
+	static private final int OP_COPY = 1;
+
+	static private final int OP_DATA = 2;
+
+	/** Max size of a single literal DATA operation. */
+	static private final int MAX_DATA = 65536;
+
+	/** The smallest block size used to index the old file. */
+	static private final int MIN_BLOCK = 512;
+
+	/** The block size gets increased so that the index never has more blocks than this. */
+	static private final int MAX_BLOCKS = 1 << 20;
+
+	/** The max #of blocks with the same weak checksum that are compared at one position. */
+	static private final int MAX_CANDIDATES = 8;
+
+	private final File m_oldFile;
+
+	private final RandomAccessFile m_old;
+
+	private final DataOutputStream m_out;
+
+	/** A COPY that is not yet written because the next one may extend it. */
+	private long m_copyOffset;
+
+	private long m_copyLength;
+
+	private BinaryPatch(File oldFile, RandomAccessFile old, DataOutputStream out) {
+		m_oldFile = oldFile;
+		m_old = old;
+		m_out = out;
+	}
+
+	/*--------------------------------------------------------------*/
+	/*	CODING:	Creating a patch.									*/
+	/*--------------------------------------------------------------*/
+	/**
+	 * Create a patch that turns oldf into newf, and write it to patchf. Returns the size of the patch.
+	 */
+	static public long create(File oldf, File newf, File patchf) throws IOException {
+		byte[] md5 = FileTool.hashFile(newf);
+		RandomAccessFile old = new RandomAccessFile(oldf, "r");
+		OutputStream os = null;
+		boolean ok = false;
+		try {
+			os = new BufferedOutputStream(new FileOutputStream(patchf), 65536);
+			DataOutputStream hdr = new DataOutputStream(os);
+			hdr.writeInt(MAGIC);
+			hdr.writeInt(VERSION);
+			hdr.writeLong(newf.length());
+			hdr.write(md5);
+			DeflaterOutputStream dos = new DeflaterOutputStream(os, new Deflater(Deflater.BEST_SPEED), 65536);
+			DataOutputStream out = new DataOutputStream(dos);
+
+			BinaryPatch bp = new BinaryPatch(oldf, old, out);
+			if(!bp.diffZip(newf))
+				bp.diffStream(newf);
+			bp.flushCopy();
+			out.writeByte(OP_END);
+			dos.finish();
+			os.close();
+			os = null;
+			ok = true;
+		} finally {
+			try {
+				old.close();
+			} catch(Exception x) {}
+			try {
+				if(os != null)
+					os.close();
+			} catch(Exception x) {}
+			if(!ok)
+				patchf.delete();
+		}
+		return patchf.length();
+	}
+
+	private void copy(long offset, long length) throws IOException {
+		if(m_copyLength > 0 && m_copyOffset + m_copyLength == offset) {
+			m_copyLength += length;
+			return;
+		}
+		flushCopy();
+		m_copyOffset = offset;
+		m_copyLength = length;
+	}
+
+	private void flushCopy() throws IOException {
+		while(m_copyLength > 0) {
+			int len = (int) Math.min(m_copyLength, Integer.MAX_VALUE);
+			m_out.writeByte(OP_COPY);
+			m_out.writeLong(m_copyOffset);
+			m_out.writeInt(len);
+			m_copyOffset += len;
+			m_copyLength -= len;
+		}
+	}
+
+	private void data(byte[] buf, int off, int len) throws IOException {
+		flushCopy();
+		while(len > 0) {
+			int sz = Math.min(len, MAX_DATA);
+			m_out.writeByte(OP_DATA);
+			m_out.writeInt(sz);
+			m_out.write(buf, off, sz);
+			off += sz;
+			len -= sz;
+		}
+	}
+
+	/**
+	 * Add the range of the new file as literal data.
+	 */
+	private void data(RandomAccessFile nf, long start, long end, byte[] buf) throws IOException {
+		nf.seek(start);
+		while(start < end) {
+			int sz = (int) Math.min(buf.length, end - start);
+			nf.readFully(buf, 0, sz);
+			data(buf, 0, sz);
+			start += sz;
+		}
+	}
+
+	/*--------------------------------------------------------------*/
+	/*	CODING:	Zip files: per entry.								*/
+	/*--------------------------------------------------------------*/
+	/**
+	 * If both files are zips, create the patch per entry and return true. The compressed
+	 * data of entries that did not change is copied, all else is literal data.
+	 */
+	private boolean diffZip(File newf) throws IOException {
+		ZipDirectory olddir;
+		ZipDirectory newdir;
+		try {
+			olddir = new ZipDirectory(m_oldFile);
+		} catch(IOException x) {
+			return false;
+		}
+		try {
+			try {
+				newdir = new ZipDirectory(newf);
+			} catch(IOException x) {
+				return false;
+			}
+			try {
+				List<long[]> copies = findCopies(olddir, newdir, newf);
+				if(copies == null)
+					return false;
+				writeZipPatch(newf, copies);
+			} finally {
+				newdir.close();
+			}
+			return true;
+		} finally {
+			olddir.close();
+		}
+	}
+
+	/**
+	 * Find the compressed data in the new zip that is the same as some entry's data in the old one.
+	 * Returns a list of [new offset, old offset, length] in file order, or null if the new zip's
+	 * layout is not something we can handle.
+	 */
+	private List<long[]> findCopies(ZipDirectory olddir, ZipDirectory newdir, File newf) throws IOException {
+		List<ZipDirectory.Entry> list = new ArrayList<ZipDirectory.Entry>(newdir.getEntryList());
+		Collections.sort(list, new Comparator<ZipDirectory.Entry>() {
+			@Override
+			public int compare(ZipDirectory.Entry a, ZipDirectory.Entry b) {
+				return a.getLocalOffset() < b.getLocalOffset() ? -1 : a.getLocalOffset() == b.getLocalOffset() ? 0 : 1;
+			}
+		});
+
+		byte[] buf = new byte[65536];
+		byte[] obuf = new byte[65536];
+		List<long[]> res = new ArrayList<long[]>();
+		RandomAccessFile nf = new RandomAccessFile(newf, "r");
+		try {
+			long pos = 0;
+			for(ZipDirectory.Entry ne : list) {
+				if(ne.getLocalOffset() < pos) // Overlapping entries: not something we write ourselves.
+					return null;
+				long dataStart = newdir.getDataOffset(ne);
+				long dataEnd = dataStart + ne.getCompressedSize();
+				if(dataEnd > nf.length())
+					return null;
+				ZipDirectory.Entry oe = olddir.getEntry(ne.getName());
+				if(oe == null || oe.getCrc() != ne.getCrc() || oe.getSize() != ne.getSize() || oe.getCompressedSize() != ne.getCompressedSize() || oe.getMethod() != ne.getMethod()
+					|| ne.getCompressedSize() == 0)
+					continue; // Data becomes part of the literal run
+				long oldStart = olddir.getDataOffset(oe);
+				if(!sameRange(nf, dataStart, oldStart, ne.getCompressedSize(), buf, obuf))
+					continue;
+				res.add(new long[]{dataStart, oldStart, ne.getCompressedSize()});
+				pos = dataEnd;
+			}
+			return res;
+		} finally {
+			try {
+				nf.close();
+			} catch(Exception x) {}
+		}
+	}
+
+	/**
+	 * Write the patch for the zip: literal data up to each copied range, then the copy.
+	 */
+	private void writeZipPatch(File newf, List<long[]> copies) throws IOException {
+		byte[] buf = new byte[65536];
+		RandomAccessFile nf = new RandomAccessFile(newf, "r");
+		try {
+			long pos = 0;
+			for(long[] c : copies) {
+				data(nf, pos, c[0], buf);
+				copy(c[1], c[2]);
+				pos = c[0] + c[2];
+			}
+			data(nf, pos, nf.length(), buf); // Remaining entries, descriptors and the central directory
+		} finally {
+			try {
+				nf.close();
+			} catch(Exception x) {}
+		}
+	}
+
+	private boolean sameRange(RandomAccessFile nf, long newStart, long oldStart, long len, byte[] nbuf, byte[] obuf) throws IOException {
+		nf.seek(newStart);
+		m_old.seek(oldStart);
+		while(len > 0) {
+			int sz = (int) Math.min(len, nbuf.length);
+			nf.readFully(nbuf, 0, sz);
+			m_old.readFully(obuf, 0, sz);
+			for(int i = 0; i < sz; i++) {
+				if(nbuf[i] != obuf[i])
+					return false;
+			}
+			len -= sz;
+		}
+		return true;
+	}
+
+	/*--------------------------------------------------------------*/
+	/*	CODING:	Other files: rolling checksum.						*/
+	/*--------------------------------------------------------------*/
+	/** The block size used for the index. */
+	private int m_blockSize;
+
+	/** Hash table: weak checksum bucket to 1 + first block index, 0 for empty. */
+	private int[] m_table;
+
+	/** Next block in the same bucket, as 1 + block index, 0 at the end. */
+	private int[] m_next;
+
+	/** The weak checksum per block. */
+	private int[] m_weak;
+
+	private void buildIndex() throws IOException {
+		long len = m_old.length();
+		int bs = MIN_BLOCK;
+		while(len / bs > MAX_BLOCKS)
+			bs *= 2;
+		m_blockSize = bs;
+		int blocks = (int) (len / bs);
+		int tsize = Integer.highestOneBit(Math.max(blocks, 1) * 2);
+		m_table = new int[tsize];
+		m_next = new int[blocks];
+		m_weak = new int[blocks];
+
+		byte[] buf = new byte[bs * Math.max(1, 65536 / bs)];
+		m_old.seek(0);
+		int bix = 0;
+		while(bix < blocks) {
+			int nb = Math.min(blocks - bix, buf.length / bs);
+			m_old.readFully(buf, 0, nb * bs);
+			for(int i = 0; i < nb; i++) {
+				int w = weak(buf, i * bs, bs);
+				m_weak[bix] = w;
+				int slot = w & (tsize - 1);
+				m_next[bix] = m_table[slot];
+				m_table[slot] = bix + 1;
+				bix++;
+			}
+		}
+	}
+
+	static private int weak(byte[] buf, int off, int len) {
+		int a = 0, b = 0;
+		for(int i = 0; i < len; i++) {
+			int v = buf[off + i] & 0xff;
+			a += v;
+			b += (len - i) * v;
+		}
+		return (a & 0xffff) | (b << 16);
+	}
+
+	/**
+	 * Stream the new file through a window and look every position up in the index of the old file.
+	 */
+	private void diffStream(File newf) throws IOException {
+		buildIndex();
+		int bs = m_blockSize;
+		int mask = m_table.length - 1;
+		byte[] buf = new byte[Math.max(4 * bs, 4 * MAX_DATA)];
+		byte[] oldblock = new byte[bs];
+		InputStream is = new FileInputStream(newf);
+		try {
+			int filled = 0; // Bytes in buf
+			int lit = 0; // Start of the pending literal
+			int pos = 0; // Start of the window
+			boolean eof = false;
+			boolean valid = false; // T if a and b describe the window at pos
+			int a = 0, b = 0;
+			for(;;) {
+				//-- Make sure the window is in the buffer.
+				if(pos + bs > filled && !eof) {
+					if(lit < pos) // Never move a literal: write it
+						data(buf, lit, pos - lit);
+					System.arraycopy(buf, pos, buf, 0, filled - pos);
+					filled -= pos;
+					pos = 0;
+					lit = 0;
+					while(filled < buf.length) {
+						int sz = is.read(buf, filled, buf.length - filled);
+						if(sz <= 0) {
+							eof = true;
+							break;
+						}
+						filled += sz;
+					}
+				}
+				if(pos + bs > filled || m_next.length == 0)
+					break; // Not enough data left for a block
+
+				if(!valid) {
+					a = 0;
+					b = 0;
+					for(int i = 0; i < bs; i++) {
+						int v = buf[pos + i] & 0xff;
+						a += v;
+						b += (bs - i) * v;
+					}
+					valid = true;
+				}
+				int w = (a & 0xffff) | (b << 16);
+				int match = -1;
+				int tries = 0;
+				for(int c = m_table[w & mask]; c != 0 && tries < MAX_CANDIDATES; c = m_next[c - 1]) {
+					if(m_weak[c - 1] != w)
+						continue;
+					tries++;
+					m_old.seek((long) (c - 1) * bs);
+					m_old.readFully(oldblock);
+					if(equal(buf, pos, oldblock, bs)) {
+						match = c - 1;
+						break;
+					}
+				}
+
+				if(match != -1) {
+					if(lit < pos)
+						data(buf, lit, pos - lit);
+					copy((long) match * bs, bs);
+					pos += bs;
+					lit = pos;
+					valid = false;
+					continue;
+				}
+
+				//-- No match: roll one byte.
+				if(pos + bs >= filled) {
+					if(eof)
+						break;
+					pos++;
+					valid = false; // Window gets recalculated after the refill
+				} else {
+					int out = buf[pos] & 0xff;
+					int in = buf[pos + bs] & 0xff;
+					a += in - out;
+					b += a - bs * out;
+					pos++;
+				}
+				if(pos - lit >= MAX_DATA) {
+					data(buf, lit, pos - lit);
+					lit = pos;
+				}
+			}
+
+			//-- Whatever is left is literal.
+			if(lit < filled)
+				data(buf, lit, filled - lit);
+			int sz;
+			while(0 < (sz = is.read(buf)))
+				data(buf, 0, sz);
+		} finally {
+			try {
+				is.close();
+			} catch(Exception x) {}
+		}
+	}
+
+	static private boolean equal(byte[] a, int off, byte[] b, int len) {
+		for(int i = 0; i < len; i++) {
+			if(a[off + i] != b[i])
+				return false;
+		}
+		return true;
+	}
+
+	/*--------------------------------------------------------------*/
+	/*	CODING:	Applying a patch.									*/
+	/*--------------------------------------------------------------*/
+	/**
+	 * Apply the patch to oldf, writing the result to newf. The result is checked against the
+	 * length and MD5 in the patch; if they do not match newf is deleted and this throws an
+	 * IOException.
+	 */
+	static public void apply(File oldf, File patchf, File newf) throws IOException {
+		RandomAccessFile old = new RandomAccessFile(oldf, "r");
+		InputStream is = null;
+		OutputStream os = null;
+		boolean ok = false;
+		try {
+			is = new BufferedInputStream(new FileInputStream(patchf), 65536);
+			DataInputStream hdr = new DataInputStream(is);
+			if(hdr.readInt() != MAGIC)
+				throw new IOException(patchf + ": not a binary patch");
+			int version = hdr.readInt();
+			if(version != VERSION)
+				throw new IOException(patchf + ": unsupported patch version " + version);
+			long length = hdr.readLong();
+			byte[] md5 = new byte[16];
+			hdr.readFully(md5);
+			DataInputStream in = new DataInputStream(new InflaterInputStream(is, new Inflater(), 65536));
+
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			os = new BufferedOutputStream(new FileOutputStream(newf), 65536);
+			byte[] buf = new byte[65536];
+			long total = 0;
+			for(;;) {
+				int op = in.readUnsignedByte();
+				if(op == OP_END)
+					break;
+				if(op == OP_COPY) {
+					long off = in.readLong();
+					long len = in.readInt() & 0xffffffffL;
+					if(off < 0 || off + len > old.length())
+						throw new IOException(patchf + ": patch does not fit " + oldf + " (wrong old file?)");
+					old.seek(off);
+					while(len > 0) {
+						int sz = (int) Math.min(len, buf.length);
+						old.readFully(buf, 0, sz);
+						os.write(buf, 0, sz);
+						md.update(buf, 0, sz);
+						len -= sz;
+						total += sz;
+					}
+				} else if(op == OP_DATA) {
+					int len = in.readInt();
+					if(len > buf.length)
+						throw new IOException(patchf + ": bad data length " + len);
+					in.readFully(buf, 0, len);
+					os.write(buf, 0, len);
+					md.update(buf, 0, len);
+					total += len;
+				} else
+					throw new IOException(patchf + ": bad operation " + op);
+			}
+			os.close();
+			os = null;
+			if(total != length || !Arrays.equals(md5, md.digest()))
+				throw new IOException(patchf + ": patch result does not match (wrong old file?)");
+			ok = true;
+		} catch(NoSuchAlgorithmException x) {
+			throw new WrappedException(x);
+		} finally {
+			try {
+				old.close();
+			} catch(Exception x) {}
+			try {
+				if(is != null)
+					is.close();
+			} catch(Exception x) {}
+			try {
+				if(os != null)
+					os.close();
+			} catch(Exception x) {}
+			if(!ok)
+				newf.delete();
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package to.etc.util;
+
+/**
+ * Defines how {@link FileTool#copyFile(java.io.File, java.io.File, FileCopyMode)} and
+ * {@link FileTool#copyDir(java.io.File, java.io.File, FileCopyMode)} put a file's data
+ * at the target location. All modes except COPY fall back to a real copy when the
+ * requested operation is not possible, for instance because source and target are
+ * on different file systems.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+public enum FileCopyMode {
+	/** Always make a real copy of the data, using the kernel to move the bytes (FileChannel.transferTo). */
+	COPY,
+
+	/** Create a hard link to the source if both are on the same file system, else copy. */
+	LINK,
+
+	/** Create a copy-on-write clone (reflink) where the OS and file system support it, else copy. */
+	REFLINK
+}
@@ -27,9 +27,13 @@ package to.etc.util;
 import java.io.*;
 import java.lang.reflect.*;
 import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
 import java.security.*;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
 import java.util.zip.*;
 
@@ -266,20 +270,126 @@ public class FileTool {
 	}
 
 	/**
-	 * Copies a file.
+	 * Copies a file. This always makes a real copy of the data; use {@link #copyFile(File, File, FileCopyMode)}
+	 * to allow hard links or reflinks.
 	 *
 	 * @param destf		the destination
 	 * @param srcf		the source
 	 * @throws IOException	the error
 	 */
 	static public void copyFile(final File destf, final File srcf) throws IOException {
-		InputStream is = null;
-		OutputStream os = null;
+		copyFile(destf, srcf, FileCopyMode.COPY);
+	}
+
+	/**
+	 * The [source, target] file store pairs for which a reflink copy failed, so that we do not keep
+	 * on forking cp processes that fail there.
+	 */
+	static private final Set<List<Object>> m_reflinkUnsupported = Collections.synchronizedSet(new HashSet<List<Object>>());
+
+	/** Files smaller than this are copied instead of reflinked: forking cp costs more than copying them. */
+	static private final long REFLINK_MINSIZE = 64 * 1024;
+
+	/**
+	 * Puts a copy of srcf at destf using the specified mode. An existing target file is
+	 * always deleted first, so that we never write "through" a hard link into the file
+	 * it is linked to. When the mode's preferred operation is impossible (different file
+	 * systems, no OS support) this falls back to a real copy.
+	 *
+	 * @param destf		the destination
+	 * @param srcf		the source
+	 * @param mode		how to copy
+	 * @throws IOException	the error
+	 */
+	static public void copyFile(final File destf, final File srcf, final FileCopyMode mode) throws IOException {
+		if(destf.isFile() && !destf.delete())
+			throw new IOException("Cannot delete the existing target file " + destf);
+		switch(mode){
+			default:
+				break;
+
+			case LINK:
+				if(linkFile(destf, srcf))
+					return;
+				break;
+
+			case REFLINK:
+				if(reflinkFile(destf, srcf))
+					return;
+				break;
+		}
+		channelCopy(destf, srcf);
+		destf.setLastModified(srcf.lastModified());
+	}
+
+	/**
+	 * Try to create destf as a hard link to srcf. Returns false if that fails for whatever
+	 * reason; the most common reason is that both are on a different file system.
+	 */
+	static private boolean linkFile(final File destf, final File srcf) {
+		try {
+			java.nio.file.Files.createLink(destf.toPath(), srcf.toPath());
+			return true;
+		} catch(Exception x) {
+			return false;
+		}
+	}
+
+	/**
+	 * Try to create a copy-on-write clone using cp --reflink. A failure disables reflinks
+	 * between the file systems of source and target; other file systems are still tried.
+	 */
+	static private boolean reflinkFile(final File destf, final File srcf) {
+		if(File.separatorChar != '/' || srcf.length() < REFLINK_MINSIZE)
+			return false;
+		List<Object> stores = getFileStores(destf, srcf);
+		if(stores != null && m_reflinkUnsupported.contains(stores))
+			return false;
+		ProcessBuilder pb = new ProcessBuilder("cp", "--reflink=always", "--preserve=timestamps", srcf.getAbsolutePath(), destf.getAbsolutePath());
+		StringBuilder sb = new StringBuilder();
+		try {
+			if(ProcessTools.runProcess(pb, sb) == 0)
+				return true;
+		} catch(Exception x) {}
+		if(stores != null)
+			m_reflinkUnsupported.add(stores);
+		destf.delete(); // cp can leave an empty target behind
+		return false;
+	}
+
+	/**
+	 * Return the file stores of the source and the target's directory, or null if they cannot be
+	 * determined; a failure is then only remembered for this call.
+	 */
+	static private List<Object> getFileStores(final File destf, final File srcf) {
+		try {
+			File dir = destf.getAbsoluteFile().getParentFile();
+			return Arrays.asList((Object) java.nio.file.Files.getFileStore(srcf.toPath()), java.nio.file.Files.getFileStore(dir.toPath()));
+		} catch(Exception x) {
+			return null;
+		}
+	}
+
+	/**
+	 * Copies the data using FileChannel.transferTo, which lets the kernel move the data
+	 * without copying it through a user-space buffer.
+	 */
+	static private void channelCopy(final File destf, final File srcf) throws IOException {
+		FileInputStream is = null;
+		FileOutputStream os = null;
 		try {
 			is = new FileInputStream(srcf);
 			os = new FileOutputStream(destf);
-			copyFile(os, is);
-			destf.setLastModified(srcf.lastModified());
+			FileChannel ic = is.getChannel();
+			FileChannel oc = os.getChannel();
+			long size = ic.size();
+			long pos = 0;
+			while(pos < size) {
+				long sz = ic.transferTo(pos, size - pos, oc);
+				if(sz <= 0) // Source got truncated while copying
+					break;
+				pos += sz;
+			}
 		} finally {
 			try {
 				if(is != null)
@@ -328,10 +438,22 @@ public class FileTool {
 	 * @throws IOException
 	 */
 	static public void copyDir(final File destd, final File srcd) throws IOException {
+		copyDir(destd, srcd, FileCopyMode.COPY);
+	}
+
+	/**
+	 * Copies an entire directory structure from src to dest, using the specified mode
+	 * for all files.
+	 * @param destd
+	 * @param srcd
+	 * @param mode
+	 * @throws IOException
+	 */
+	static public void copyDir(final File destd, final File srcd, final FileCopyMode mode) throws IOException {
 		if(!srcd.exists())
 			return;
 		if(srcd.isFile()) {
-			copyFile(destd, srcd);
+			copyFile(destd, srcd, mode);
 			return;
 		}
 		if(destd.exists() && destd.isFile())
@@ -346,12 +468,12 @@ public class FileTool {
 			{
 				if(df.isDirectory()) // But target is a directory?
 					deleteDir(df); // Delete it,
-				copyFile(df, sf); // Then copy the file.
+				copyFile(df, sf, mode); // Then copy the file.
 			} else if(sf.isDirectory()) // Source is a directory
 			{
 				if(df.isFile()) // ... but target is a file now?
 					df.delete(); // then delete it...
-				copyDir(df, sf); // ..before copying
+				copyDir(df, sf, mode); // ..before copying
 			}
 		}
 	}
@@ -883,86 +1005,19 @@ public class FileTool {
 	/*--------------------------------------------------------------*/
 	/**
 	 * Zip the contents of dir or file to the zipfile. The zipfile
-	 * is deleted before the new contents are added to it.
+	 * is deleted before the new contents are added to it. The entries
+	 * are compressed in parallel on all available processors.
 	 */
 	public static void zip(final File zipfile, final File dir) throws Exception {
-		if(zipfile.exists())
-			if(!zipfile.delete())
-				throw new IOException("Unable to delete zipfile: " + zipfile);
-
-		ZipOutputStream zos = null;
-		InputStream is = null;
-		byte[] buf = new byte[8192]; // Copy buffer
-		try {
-			//-- Create the output stream
-			zos = new ZipOutputStream(new FileOutputStream(zipfile));
-			if(dir.isFile())
-				zipFile(zos, "", dir, buf);
-			else
-				zipDir(zos, "", dir, buf); // Zip the entry passed
-		} finally {
-			if(zos != null)
-				try {
-					zos.close();
-				} catch(Exception x) {}
-			if(is != null)
-				try {
-					is.close();
-				} catch(Exception x) {}
-		}
-	}
-
-	static private void zipDir(final ZipOutputStream zos, final String base, File f, final byte[] buf) throws IOException {
-		if(!f.isDirectory())
-			throw new IllegalStateException("Must be a directory");
-
-		//-- Write a directory entry if there's something
-		if(base.length() > 0) {
-			ZipEntry ze = new ZipEntry(base); // The dir ending in /
-			zos.putNextEntry(ze);
-			ze.setTime(f.lastModified());
-		}
-
-		//-- Now recursively copy the rest.
-		File[] far = f.listFiles(); // All files in the dir
-		for(int i = 0; i < far.length; i++) {
-			f = far[i];
-			if(f.isFile())
-				zipFile(zos, base, f, buf); // just zip the file,
-			else
-				zipDir(zos, base + f.getName() + "/", f, buf);
-		}
+		zip(zipfile, dir, Runtime.getRuntime().availableProcessors());
 	}
 
 	/**
-	 * Recursive workhorse for zipping the entry passed, be it file or directory.
-	 * @param zos
-	 * @param base
-	 * @param f
-	 * @throws IOException
+	 * Zip the contents of dir or file to the zipfile, compressing with the
+	 * specified number of threads.
 	 */
-	static private void zipFile(final ZipOutputStream zos, final String base, final File f, final byte[] buf) throws IOException {
-		//-- Create a relative name for this entry
-		if(!f.isFile())
-			throw new IllegalStateException(f + ": must be file");
-		InputStream is = null;
-		try {
-			//-- Write this file.
-			ZipEntry ze = new ZipEntry(base + f.getName());
-			ze.setTime(f.lastModified());
-			zos.putNextEntry(ze);
-
-			//-- Copy
-			is = new FileInputStream(f);
-			int sz;
-			while(0 <= (sz = is.read(buf)))
-				zos.write(buf, 0, sz);
-		} finally {
-			if(is != null)
-				try {
-					is.close();
-				} catch(Exception x) {}
-		}
+	public static void zip(final File zipfile, final File dir, final int threads) throws Exception {
+		ParallelZipWriter.zip(zipfile, dir, threads);
 	}
 
 	public static void unzip(File dest, InputStream is) throws Exception {
@@ -1545,159 +1600,261 @@ public class FileTool {
 
 	/**
 	 * Compare the content of two directories, and callback methods on changes. The
-	 * callbacks define what needs to be done to change "a" (old) into "b" (new).
+	 * callbacks define what needs to be done to change "a" (old) into "b" (new). The
+	 * entries of each directory are reported sorted by name; if the delta is an
+	 * {@link IAttributedDirectoryDelta} the file callbacks also receive the attributes
+	 * that were read during the walk.
 	 *
 	 * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
 	 * Created on Nov 29, 2010
 	 */
 	static public void compareDirectories(IDirectoryDelta delta, File a, File b) throws Exception {
-		StringBuilder sb = new StringBuilder();
-		compare(delta, sb, a, b);
+		compare(delta, createRoot(a, b));
 	}
 
-	static private void compare(IDirectoryDelta delta, StringBuilder sb, File a, File b) throws Exception {
-		int clen = sb.length();
+	/**
+	 * Like {@link #compareDirectories(IDirectoryDelta, File, File)}, but both trees are scanned
+	 * by multiple threads first. After that the callbacks are called on the calling thread, in the
+	 * same order as the single-threaded compare. The scan always covers the entire trees, even the
+	 * parts the callbacks then decide to skip.
+	 */
+	static public void compareDirectories(IDirectoryDelta delta, File a, File b, int threads) throws Exception {
+		ScanNode root = createRoot(a, b);
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
 		try {
+			pool.invoke(new ScanTask(root));
+		} catch(WrappedException x) {
+			throw WrappedException.unwrap(x);
+		} finally {
+			pool.shutdown();
+		}
+		compare(delta, root);
+	}
 
-			//-- Create the relative path.
-			if(clen != 0)
-				sb.append(File.separator);
-			sb.append(a.getName());
-			String relpath = sb.toString();
+	/**
+	 * The state of a path in both trees. The attributes are null if the path does not exist
+	 * on that side; they are read once, when the parent directory is listed.
+	 */
+	static private final class ScanNode {
+		final Path					a;
 
-			//-- Compare the two thingies.
-			if(!a.exists()) {
-				if(!b.exists())
-					return; // Silly, cannot happen.
+		final Path					b;
 
-				//-- b exists but A does not: file/directory added
-				if(b.isFile())
-					delta.fileAdded(b, a, relpath); // File a
-				else {
-					//-- Directory added: mark the directory b as added, then add it's content fully.
-					if(delta.directoryAdded(b, a, relpath)) // File a dir delta
-						addDirectoryContents(delta, sb, a, b); // Walk the entire "b" structure, and add everything..
-				}
-			} else if(!b.exists()) {
-				//-- Path exists in a but not in b -> it was deleted.
-				if(a.isFile())
-					delta.fileDeleted(b, a, relpath);
-				else {
-					//-- Directory deleted: mark b as deleted, then delete it's contents if that is needed.
-					if(delta.directoryDeleted(b, a, relpath))
-						deleteDirectoryContents(delta, sb, a, b);
-				}
-			} else {
-				//-- Both a and b exist. Compare types 1st.
-				if(a.isFile()) {
-					if(b.isDirectory()) {
-						//-- Disjoint: file changed to directory in B. This is a "deleted" file in b, then an added directory in b,
-						delta.fileDeleted(b, a, relpath); // b as a FILE was deleted
-						if(delta.directoryAdded(b, a, relpath)) // b as DIRECTORY was added
-							addDirectoryContents(delta, sb, a, b); // Walk the entire "b" structure, and add everything..
-					} else {
-						//-- Both a and b are files. Ask the delta thing to decide whether they are equal and dont bother with the result.
-						delta.compareFiles(b, a, relpath);
-					}
-				} else {
-					//-- a is a directory.
-					if(b.isFile()) {
-						//-- Disjoint: directory a changed to file b. This is a "delete directory" in b followed by an "add file".
-						if(delta.directoryDeleted(b, a, relpath)) // b as a DIR was deleted
-							deleteDirectoryContents(delta, sb, a, b);
-						delta.fileAdded(b, a, relpath);
-					} else {
-						//-- Both A and B are existing directories. We need to compare their contents.
-						compareDirectories(delta, sb, a, b);
-					}
-				}
-			}
-		} finally {
-			sb.setLength(clen);
+		final String				relpath;
+
+		final BasicFileAttributes	aAttr;
+
+		final BasicFileAttributes	bAttr;
+
+		/** The nodes below this one in callback order, when scanned in advance. */
+		ScanNode[]					children;
+
+		ScanNode(Path a, BasicFileAttributes aAttr, Path b, BasicFileAttributes bAttr, String relpath) {
+			this.a = a;
+			this.aAttr = aAttr;
+			this.b = b;
+			this.bAttr = bAttr;
+			this.relpath = relpath;
+		}
+
+		boolean isADir() {
+			return aAttr != null && aAttr.isDirectory();
+		}
+
+		boolean isBDir() {
+			return bAttr != null && bAttr.isDirectory();
 		}
 	}
 
 	/**
-	 * Compare the contents of both existing directories.
-	 * @param sb
-	 * @param a
-	 * @param b
-	 * @throws Exception
+	 * A directory entry with its attributes.
 	 */
-	static private void compareDirectories(IDirectoryDelta delta, StringBuilder sb, File a, File b) throws Exception {
-		File[] aar = a.listFiles();
-		File[] bar = b.listFiles();
-		Set<String> bset = new HashSet<String>(); // Set containing all 'b' files.
-		for(File bf : bar)
-			bset.add(bf.getName());
-
-		for(File af : aar) {
-			File bf = new File(b, af.getName()); // Get how the name would be in "a"
-			bset.remove(af.getName());
-			compare(delta, sb, af, bf);
+	static private final class DirEntry implements Comparable<DirEntry> {
+		final String				name;
+
+		final Path					path;
+
+		final BasicFileAttributes	attr;
+
+		DirEntry(String name, Path path, BasicFileAttributes attr) {
+			this.name = name;
+			this.path = path;
+			this.attr = attr;
 		}
 
-		//-- Everything left in bset was added in b....
-		for(String name : bset) {
-			File bf = new File(b, name);
-			File af = new File(a, name);
-			compare(delta, sb, af, bf);
+		@Override
+		public int compareTo(DirEntry o) {
+			return name.compareTo(o.name);
 		}
 	}
 
+	static private final DirEntry[] NO_ENTRIES = new DirEntry[0];
+
+	static private ScanNode createRoot(File a, File b) throws IOException {
+		Path pa = a.toPath();
+		Path pb = b.toPath();
+		return new ScanNode(pa, readAttributes(pa), pb, readAttributes(pb), a.getName());
+	}
+
 	/**
-	 * Called when directory "b" does not exist while "a" does. It means the
-	 * directory was deleted from "b". Send delete events for all items below
-	 * "a".
-	 *
-	 * @param sb
-	 * @param a
-	 * @param b
-	 */
-	static private void deleteDirectoryContents(IDirectoryDelta delta, StringBuilder sb, File a, File b) throws Exception {
-		File[] aar = a.listFiles(); // Everything in a
-		int clen = sb.length();
-		for(File af : aar) {
-			File bf = new File(b, af.getName()); // Get how the name would be in "a"
-			if(clen == 0)
-				sb.append(File.separator);
-			sb.append(af.getName());
-			String relpath = sb.toString();
-			if(bf.isFile())
-				delta.fileDeleted(bf, af, relpath);
-			else {
-				//-- Directory added: mark the directory b as added, then add it's content fully.
-				if(delta.directoryDeleted(bf, af, relpath)) // File a dir delta
-					deleteDirectoryContents(delta, sb, af, bf); // Walk the entire "a" structure, and delete everything from "b"
+	 * Return the attributes of the path, following links, or null if it does not exist.
+	 */
+	static private BasicFileAttributes readAttributes(Path p) throws IOException {
+		try {
+			return Files.readAttributes(p, BasicFileAttributes.class);
+		} catch(NoSuchFileException x) {
+			return null;
+		}
+	}
+
+	/**
+	 * List the directory's entries sorted by name, with their attributes. Entries that vanish
+	 * while listing, or that are links to nothing, are skipped.
+	 */
+	static private DirEntry[] listSorted(Path dir) throws IOException {
+		List<DirEntry> list = new ArrayList<DirEntry>();
+		DirectoryStream<Path> ds = Files.newDirectoryStream(dir);
+		try {
+			for(Path p : ds) {
+				BasicFileAttributes attr = readAttributes(p);
+				if(attr != null)
+					list.add(new DirEntry(p.getFileName().toString(), p, attr));
+			}
+		} finally {
+			try { ds.close(); } catch(Exception x) {}
+		}
+		DirEntry[] ar = list.toArray(new DirEntry[list.size()]);
+		Arrays.sort(ar);
+		return ar;
+	}
+
+	/**
+	 * Determine the children of a node by merging the sorted listings of both sides in one pass. A
+	 * side that is not a directory counts as empty, so the children of an added or deleted directory
+	 * are the paths that exist on one side only.
+	 */
+	static private ScanNode[] listChildren(ScanNode n) throws IOException {
+		DirEntry[] aar = n.isADir() ? listSorted(n.a) : NO_ENTRIES;
+		DirEntry[] bar = n.isBDir() ? listSorted(n.b) : NO_ENTRIES;
+		List<ScanNode> list = new ArrayList<ScanNode>(Math.max(aar.length, bar.length));
+		int ai = 0;
+		int bi = 0;
+		while(ai < aar.length || bi < bar.length) {
+			int res;
+			if(ai >= aar.length)
+				res = 1;
+			else if(bi >= bar.length)
+				res = -1;
+			else
+				res = aar[ai].name.compareTo(bar[bi].name);
+
+			if(res == 0) {
+				DirEntry ae = aar[ai++];
+				DirEntry be = bar[bi++];
+				list.add(new ScanNode(ae.path, ae.attr, be.path, be.attr, n.relpath + File.separatorChar + ae.name));
+			} else if(res < 0) {
+				DirEntry ae = aar[ai++];
+				list.add(new ScanNode(ae.path, ae.attr, n.b.resolve(ae.name), null, n.relpath + File.separatorChar + ae.name));
+			} else {
+				DirEntry be = bar[bi++];
+				list.add(new ScanNode(n.a.resolve(be.name), null, be.path, be.attr, n.relpath + File.separatorChar + be.name));
+			}
+		}
+		return list.toArray(new ScanNode[list.size()]);
+	}
+
+	static private final class ScanTask extends RecursiveAction {
+		private final ScanNode m_node;
+
+		ScanTask(ScanNode node) {
+			m_node = node;
+		}
+
+		@Override
+		protected void compute() {
+			ScanNode n = m_node;
+			if(!n.isADir() && !n.isBDir())
+				return;
+			try {
+				n.children = listChildren(n);
+			} catch(IOException x) {
+				throw WrappedException.wrap(x);
+			}
+			List<ScanTask> tasks = new ArrayList<ScanTask>(n.children.length);
+			for(ScanNode c : n.children) {
+				if(c.isADir() || c.isBDir())
+					tasks.add(new ScanTask(c));
 			}
-			sb.setLength(clen);
+			invokeAll(tasks);
 		}
 	}
 
 	/**
-	 * Called when a new directory "b" is discovered that was not present as "a". This walks
-	 * the content of "b", and calls add events for files/directories in "a".
-	 * @param sb
-	 * @param a		The nonexisting directory in a
-	 * @param b		The existing directory in b.
-	 */
-	static private void addDirectoryContents(IDirectoryDelta delta, StringBuilder sb, File a, File b) throws Exception {
-		File[] bar = b.listFiles(); // Everything in b
-		int clen = sb.length();
-		for(File bf : bar) {
-			File af = new File(a, bf.getName()); // Get how the name would be in "a"
-			if(clen == 0)
-				sb.append(File.separator);
-			sb.append(bf.getName());
-			String relpath = sb.toString();
-			if(bf.isFile())
-				delta.fileAdded(bf, af, relpath);
-			else {
-				//-- Directory added: mark the directory b as added, then add it's content fully.
-				if(delta.directoryAdded(bf, af, relpath)) // File a dir delta
-					addDirectoryContents(delta, sb, af, bf); // Walk the entire "b" structure, and add everything..
+	 * Call the delta's callbacks for the node, and walk its children when needed.
+	 */
+	static private void compare(IDirectoryDelta delta, ScanNode n) throws Exception {
+		if(n.aAttr == null) {
+			if(n.bAttr == null)
+				return; // Silly, cannot happen.
+
+			//-- b exists but A does not: file/directory added
+			if(!n.isBDir())
+				fileAdded(delta, n);
+			else if(delta.directoryAdded(n.b.toFile(), n.a.toFile(), n.relpath)) // Directory added: add it's content fully if wanted.
+				compareChildren(delta, n);
+		} else if(n.bAttr == null) {
+			//-- Path exists in a but not in b -> it was deleted.
+			if(!n.isADir())
+				fileDeleted(delta, n);
+			else if(delta.directoryDeleted(n.b.toFile(), n.a.toFile(), n.relpath))
+				compareChildren(delta, n);
+		} else if(!n.isADir()) {
+			if(n.isBDir()) {
+				//-- Disjoint: file changed to directory in B. This is a "deleted" file in b, then an added directory in b,
+				fileDeleted(delta, n);
+				if(delta.directoryAdded(n.b.toFile(), n.a.toFile(), n.relpath))
+					compareChildren(delta, n);
+			} else {
+				//-- Both a and b are files. Ask the delta thing to decide whether they are equal.
+				if(delta instanceof IAttributedDirectoryDelta)
+					((IAttributedDirectoryDelta) delta).compareFiles(n.b.toFile(), n.a.toFile(), n.relpath, n.bAttr, n.aAttr);
+				else
+					delta.compareFiles(n.b.toFile(), n.a.toFile(), n.relpath);
 			}
-			sb.setLength(clen);
+		} else if(!n.isBDir()) {
+			//-- Disjoint: directory a changed to file b. This is a "delete directory" in b followed by an "add file".
+			if(delta.directoryDeleted(n.b.toFile(), n.a.toFile(), n.relpath))
+				compareChildren(delta, n);
+			fileAdded(delta, n);
+		} else {
+			//-- Both A and B are existing directories. We need to compare their contents.
+			compareChildren(delta, n);
 		}
 	}
+
+	/**
+	 * Compare the children of the node. A directory that changed nature only has the children of
+	 * its directory side; those are then all added or deleted.
+	 */
+	static private void compareChildren(IDirectoryDelta delta, ScanNode n) throws Exception {
+		ScanNode[] children = n.children;
+		if(children == null)
+			children = listChildren(n);
+		for(ScanNode c : children)
+			compare(delta, c);
+	}
+
+	static private void fileAdded(IDirectoryDelta delta, ScanNode n) throws Exception {
+		if(delta instanceof IAttributedDirectoryDelta)
+			((IAttributedDirectoryDelta) delta).fileAdded(n.b.toFile(), n.a.toFile(), n.relpath, n.bAttr);
+		else
+			delta.fileAdded(n.b.toFile(), n.a.toFile(), n.relpath);
+	}
+
+	static private void fileDeleted(IDirectoryDelta delta, ScanNode n) throws Exception {
+		if(delta instanceof IAttributedDirectoryDelta)
+			((IAttributedDirectoryDelta) delta).fileDeleted(n.b.toFile(), n.a.toFile(), n.relpath, n.aAttr);
+		else
+			delta.fileDeleted(n.b.toFile(), n.a.toFile(), n.relpath);
+	}
 }
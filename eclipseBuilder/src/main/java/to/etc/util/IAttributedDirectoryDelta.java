@@ -0,0 +1,29 @@
+package to.etc.util;
+
+import java.io.*;
+import java.nio.file.attribute.*;
+
+/**
+ * An {@link IDirectoryDelta} whose file callbacks also receive the attributes that
+ * {@link FileTool#compareDirectories(IDirectoryDelta, File, File)} read while walking the
+ * trees, so that sizes and timestamps need not be read again. When the delta implements this
+ * interface only these variants of the file callbacks are called.
+ */
+public interface IAttributedDirectoryDelta extends IDirectoryDelta {
+	/**
+	 * The file "b" was added.
+	 * @param battr	The attributes of "b".
+	 */
+	void fileAdded(File b, File a, String relpath, BasicFileAttributes battr) throws Exception;
+
+	/**
+	 * The file "a" was deleted.
+	 * @param aattr	The attributes of "a".
+	 */
+	void fileDeleted(File b, File a, String relpath, BasicFileAttributes aattr) throws Exception;
+
+	/**
+	 * Both a and b contain the same-named file.
+	 */
+	void compareFiles(File b, File a, String relpath, BasicFileAttributes battr, BasicFileAttributes aattr) throws Exception;
+}
@@ -0,0 +1,1065 @@
+package to.etc.util;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Writes a zip (jar, war) file while compressing the entries concurrently on worker threads. Entries
+ * are compressed in memory by the workers and written to the output by the calling thread in the
+ * exact order in which they were added, so the resulting file does not depend on thread timing. The
+ * number of entries being compressed at the same time is bounded, to bound memory use. Compressed data
+ * of at most {@link #MAX_MEMORY_ENTRY} bytes is kept in memory; bigger entries are compressed into a
+ * temp file next to the output and copied from there.
+ *
+ * <p>Entries whose content is already compressed (nested jars, images, archives) are stored without
+ * compression, as are entries that do not get smaller by deflating them. Stored data is not kept in
+ * memory but copied from the source file when the entry gets written.</p>
+ *
+ * <p>In deterministic mode all entries get the same fixed timestamp, and {@link #zip(File, File, int, boolean)}
+ * adds the entries of a directory sorted by name. A digest of such a zip is stored as the zip comment,
+ * so that an unchanged zip can be recognised without rewriting it. That digest is an MD5 over the names
+ * and the MD5 of the content of all entries; calculating it reads all files, which is way cheaper than
+ * compressing them. When a deterministic zip did change, all entries with the
+ * same size and CRC32 as in the previous version get their compressed data copied raw from that previous
+ * version, so only changed and new entries get compressed; when the previous version has a
+ * {@link ZipManifest} the MD5 of the content must match too. As the previous version was written by this
+ * same code the result is byte-identical to a full rebuild.</p>
+ *
+ * <p>Because java.util.zip.ZipOutputStream cannot accept data that was compressed elsewhere this
+ * class writes the zip format itself, including the zip64 extensions needed for huge files or more
+ * than 65535 entries.</p>
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+public class ParallelZipWriter {
+	/** Extensions of files whose content is already compressed. */
+	static private final Set<String> STORED_EXTENSIONS = new HashSet<String>(Arrays.asList("jar", "war", "ear", "zip", "gz", "tgz", "bz2", "xz", "7z", "png", "jpg", "jpeg", "gif", "mp3", "mp4", "avi", "mov", "woff", "woff2"));
+
+	static private final int LOCSIG = 0x04034b50;
+
+	static private final int CENSIG = 0x02014b50;
+
+	static private final int ENDSIG = 0x06054b50;
+
+	static private final int ZIP64_ENDSIG = 0x06064b50;
+
+	static private final int ZIP64_LOCSIG = 0x07064b50;
+
+	/** General purpose flag: names are encoded in UTF-8. */
+	static private final int FLAG_UTF8 = 0x800;
+
+	static private final long ZIP64_MAGIC = 0xffffffffL;
+
+	/** The DOS time used for all entries in deterministic mode: 1980-01-01 00:00:00. */
+	static private final int DETERMINISTIC_DOSTIME = (1 << 21) | (1 << 16);
+
+	/** The max size of the compressed data of an entry that is kept in memory until it is written. */
+	static public final int MAX_MEMORY_ENTRY = 1024 * 1024;
+
+	/** Prefix for the zip comment containing the digest of the entries' names and content. */
+	static private final String DIGEST_PREFIX = "content-md5:";
+
+	/** Prefix for the content digest of a zip without compression. */
+	static private final String STORED_DIGEST_PREFIX = "stored-content-md5:";
+
+	private final File m_file;
+
+	private final OutputStream m_os;
+
+	/** The current write position in the output. */
+	private long m_offset;
+
+	private final ExecutorService m_executor;
+
+	/** The max #of entries that may be in the compression queue. */
+	private final int m_maxPending;
+
+	/** The entries waiting to be written, in the order they were added. */
+	private final LinkedList<Future<ZipItem>> m_pendingList = new LinkedList<Future<ZipItem>>();
+
+	/** All entries written, for the central directory. */
+	private final List<ZipItem> m_writtenList = new ArrayList<ZipItem>();
+
+	private final byte[] m_buffer = new byte[65536];
+
+	private boolean m_closed;
+
+	/** When set all entries get a fixed timestamp. */
+	private boolean m_deterministic;
+
+	private String m_comment;
+
+	/** When set nothing gets compressed. */
+	private boolean m_storeOnly;
+
+	/** When set the MD5 of every file entry gets calculated, for the manifest. */
+	private boolean m_hashing;
+
+	/**
+	 * Create a writer for the specified file, which gets overwritten. With threads &lt;= 1
+	 * all compression is done inline by the calling thread.
+	 */
+	public ParallelZipWriter(File out, int threads) throws IOException {
+		m_file = out;
+		m_os = new BufferedOutputStream(new FileOutputStream(out), 65536);
+		if(threads > 1) {
+			m_executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "zipper");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			m_maxPending = threads * 4;
+		} else {
+			m_executor = null;
+			m_maxPending = 1;
+		}
+	}
+
+	/**
+	 * When set all entries added after this get the same fixed timestamp instead of
+	 * the file's timestamp.
+	 */
+	public void setDeterministic(boolean deterministic) {
+		m_deterministic = deterministic;
+	}
+
+	/**
+	 * When set all entries added after this are stored without compression. Use this
+	 * for zips that are only read by the build itself.
+	 */
+	public void setStoreOnly(boolean storeOnly) {
+		m_storeOnly = storeOnly;
+	}
+
+	/**
+	 * When set the MD5 hash of the content of all file entries added after this is calculated
+	 * while compressing them, so that {@link #createManifest()} includes them.
+	 */
+	public void setHashing(boolean hashing) {
+		m_hashing = hashing;
+	}
+
+	/**
+	 * Set the zip file's comment.
+	 */
+	public void setComment(String comment) {
+		m_comment = comment;
+	}
+
+	/*--------------------------------------------------------------*/
+	/*	CODING:	Adding entries.										*/
+	/*--------------------------------------------------------------*/
+	/**
+	 * Add a directory entry. The name must end in a slash.
+	 */
+	public void addDirectory(String name, long time) throws IOException {
+		ZipItem zi = new ZipItem(name, dosTime(time));
+		zi.m_method = ZipEntry.STORED;
+		queue(new CompletedFuture(zi));
+	}
+
+	/**
+	 * Add an entry by copying its raw compressed data from another zip file. The entry
+	 * gets written with the name, timestamp and compression of the original.
+	 */
+	public void addCopy(ZipDirectory zd, ZipDirectory.Entry e) throws IOException {
+		addCopy(zd, e, null);
+	}
+
+	/**
+	 * Add a raw copy of an entry whose content hash is known (or null if it is not).
+	 */
+	public void addCopy(ZipDirectory zd, ZipDirectory.Entry e, byte[] hash) throws IOException {
+		ZipItem zi = new ZipItem(e.getName(), e.getDosTime());
+		zi.m_method = e.getMethod();
+		zi.m_crc = e.getCrc();
+		zi.m_size = e.getSize();
+		zi.m_csize = e.getCompressedSize();
+		zi.m_copyFrom = zd;
+		zi.m_copyEntry = e;
+		zi.m_hash = hash;
+		queue(new CompletedFuture(zi));
+	}
+
+	/**
+	 * Add the file as the entry with the specified name. Its compression is started
+	 * immediately, but the entry gets written only after all earlier entries.
+	 */
+	public void addFile(String name, File f) throws IOException {
+		final ZipItem zi = new ZipItem(name, dosTime(f.lastModified()));
+		zi.m_source = f;
+		zi.m_size = f.length();
+		final boolean store = m_storeOnly;
+		final boolean hash = m_hashing;
+		final File spillDir = m_file.getAbsoluteFile().getParentFile();
+		Callable<ZipItem> c = new Callable<ZipItem>() {
+			@Override
+			public ZipItem call() throws Exception {
+				prepare(zi, store, hash, spillDir);
+				return zi;
+			}
+		};
+		if(m_executor == null) {
+			try {
+				queue(new CompletedFuture(c.call()));
+			} catch(IOException x) {
+				throw x;
+			} catch(Exception x) {
+				throw new WrappedException(x);
+			}
+		} else
+			queue(m_executor.submit(c));
+	}
+
+	private int dosTime(long time) {
+		return m_deterministic ? DETERMINISTIC_DOSTIME : javaToDosTime(time);
+	}
+
+	private void queue(Future<ZipItem> f) throws IOException {
+		if(m_closed)
+			throw new IllegalStateException("Writer is closed");
+		m_pendingList.add(f);
+		while(m_pendingList.size() > m_maxPending)
+			writeNext();
+	}
+
+	/**
+	 * Wait for the oldest pending entry to be compressed, then write it.
+	 */
+	private void writeNext() throws IOException {
+		Future<ZipItem> f = m_pendingList.removeFirst();
+		ZipItem zi;
+		try {
+			zi = f.get();
+		} catch(InterruptedException x) {
+			throw new InterruptedIOException("Interrupted while waiting for compression");
+		} catch(ExecutionException x) {
+			Throwable t = x.getCause();
+			if(t instanceof IOException)
+				throw (IOException) t;
+			if(t instanceof RuntimeException)
+				throw (RuntimeException) t;
+			if(t instanceof Error)
+				throw (Error) t;
+			throw new WrappedException((Exception) t);
+		}
+		writeItem(zi);
+	}
+
+	/*--------------------------------------------------------------*/
+	/*	CODING:	Compression (runs on the worker threads).			*/
+	/*--------------------------------------------------------------*/
+	/** Deflaters get reused per thread to prevent native allocation per entry. */
+	static private final ThreadLocal<Deflater> m_deflater = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+	};
+
+	static private final ThreadLocal<MessageDigest> m_md5 = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("MD5");
+			} catch(NoSuchAlgorithmException x) {
+				throw new WrappedException(x);
+			}
+		}
+	};
+
+	/**
+	 * Determine CRC and compressed data for a file entry. If the data is stored the
+	 * file is only read to calculate the CRC. When hash is set the content's MD5 is
+	 * calculated too. Compressed data that gets bigger than {@link #MAX_MEMORY_ENTRY}
+	 * is moved to a temp file in spillDir.
+	 */
+	static void prepare(ZipItem zi, boolean store, boolean hash, File spillDir) throws IOException {
+		MessageDigest md = null;
+		if(hash) {
+			md = m_md5.get();
+			md.reset();
+		}
+		String ext = FileTool.getFileExtension(zi.m_name).toLowerCase();
+		if(store || STORED_EXTENSIONS.contains(ext) || zi.m_size == 0) {
+			prepareStored(zi, md);
+			return;
+		}
+
+		CRC32 crc = new CRC32();
+		Deflater d = m_deflater.get();
+		d.reset();
+		SpillOutput bo = new SpillOutput((int) Math.min(zi.m_size / 2 + 64, MAX_MEMORY_ENTRY), spillDir);
+		byte[] in = new byte[65536];
+		byte[] out = new byte[65536];
+		InputStream is = new FileInputStream(zi.m_source);
+		long total = 0;
+		boolean ok = false;
+		try {
+			int sz;
+			while(0 < (sz = is.read(in))) {
+				crc.update(in, 0, sz);
+				if(md != null)
+					md.update(in, 0, sz);
+				total += sz;
+				d.setInput(in, 0, sz);
+				while(!d.needsInput()) {
+					int len = d.deflate(out);
+					bo.write(out, 0, len);
+				}
+			}
+			d.finish();
+			while(!d.finished()) {
+				int len = d.deflate(out);
+				bo.write(out, 0, len);
+			}
+			bo.close();
+			ok = true;
+		} finally {
+			try {
+				is.close();
+			} catch(Exception x) {}
+			if(!ok)
+				bo.discard();
+		}
+		zi.m_size = total;
+		zi.m_crc = crc.getValue();
+		if(md != null)
+			zi.m_hash = md.digest();
+		if(bo.size() >= total) {
+			//-- Deflate made it bigger: store instead.
+			bo.discard();
+			zi.m_method = ZipEntry.STORED;
+			zi.m_csize = total;
+			return;
+		}
+		zi.m_method = ZipEntry.DEFLATED;
+		zi.m_data = bo.getBuffer();
+		zi.m_spill = bo.getFile();
+		zi.m_csize = bo.size();
+	}
+
+	static private void prepareStored(ZipItem zi, MessageDigest md) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] in = new byte[65536];
+		InputStream is = new FileInputStream(zi.m_source);
+		long total = 0;
+		try {
+			int sz;
+			while(0 < (sz = is.read(in))) {
+				crc.update(in, 0, sz);
+				if(md != null)
+					md.update(in, 0, sz);
+				total += sz;
+			}
+		} finally {
+			try {
+				is.close();
+			} catch(Exception x) {}
+		}
+		zi.m_method = ZipEntry.STORED;
+		zi.m_size = total;
+		zi.m_csize = total;
+		zi.m_crc = crc.getValue();
+		if(md != null)
+			zi.m_hash = md.digest();
+	}
+
+	/*--------------------------------------------------------------*/
+	/*	CODING:	Writing the zip format.								*/
+	/*--------------------------------------------------------------*/
+	private void writeItem(ZipItem zi) throws IOException {
+		zi.m_offset = m_offset;
+		boolean z64 = zi.m_size >= ZIP64_MAGIC || zi.m_csize >= ZIP64_MAGIC;
+		byte[] name = zi.getNameBytes();
+
+		writeInt(LOCSIG);
+		writeShort(versionNeeded(zi, z64));
+		writeShort(FLAG_UTF8);
+		writeShort(zi.m_method);
+		writeInt(zi.m_dosTime);
+		writeInt(zi.m_crc);
+		writeInt(z64 ? ZIP64_MAGIC : zi.m_csize);
+		writeInt(z64 ? ZIP64_MAGIC : zi.m_size);
+		writeShort(name.length);
+		writeShort(z64 ? 20 : 0);
+		writeBytes(name, 0, name.length);
+		if(z64) {
+			writeShort(1);
+			writeShort(16);
+			writeLong(zi.m_size);
+			writeLong(zi.m_csize);
+		}
+
+		//-- Data
+		if(zi.m_data != null) {
+			writeBytes(zi.m_data, 0, (int) zi.m_csize);
+			zi.m_data = null; // Release memory asap
+		} else if(zi.m_spill != null) {
+			try {
+				copyFile(zi.m_spill, zi.m_csize);
+			} finally {
+				zi.m_spill.delete();
+				zi.m_spill = null;
+			}
+		} else if(zi.m_copyFrom != null) {
+			zi.m_copyFrom.copyRawData(zi.m_copyEntry, m_os, m_buffer);
+			m_offset += zi.m_csize;
+			zi.m_copyFrom = null;
+			zi.m_copyEntry = null;
+		} else if(zi.m_source != null)
+			copySource(zi);
+		m_writtenList.add(zi);
+	}
+
+	/**
+	 * Copy the stored data for the entry from its source file.
+	 */
+	private void copySource(ZipItem zi) throws IOException {
+		InputStream is = new FileInputStream(zi.m_source);
+		long total = 0;
+		try {
+			int sz;
+			while(0 < (sz = is.read(m_buffer))) {
+				total += sz;
+				if(total > zi.m_size)
+					break;
+				writeBytes(m_buffer, 0, sz);
+			}
+		} finally {
+			try {
+				is.close();
+			} catch(Exception x) {}
+		}
+		if(total != zi.m_size)
+			throw new IOException(zi.m_source + ": file changed while being zipped");
+	}
+
+	/**
+	 * Copy the compressed data for an entry from its temp file.
+	 */
+	private void copyFile(File f, long size) throws IOException {
+		InputStream is = new FileInputStream(f);
+		long total = 0;
+		try {
+			int sz;
+			while(0 < (sz = is.read(m_buffer))) {
+				total += sz;
+				writeBytes(m_buffer, 0, sz);
+			}
+		} finally {
+			try {
+				is.close();
+			} catch(Exception x) {}
+		}
+		if(total != size)
+			throw new IOException(f + ": temp file has the wrong size");
+	}
+
+	private void writeCentralDirectory() throws IOException {
+		long cdstart = m_offset;
+		for(ZipItem zi : m_writtenList) {
+			boolean bigsize = zi.m_size >= ZIP64_MAGIC || zi.m_csize >= ZIP64_MAGIC;
+			boolean bigoffset = zi.m_offset >= ZIP64_MAGIC;
+			int extra = (bigsize ? 16 : 0) + (bigoffset ? 8 : 0);
+			byte[] name = zi.getNameBytes();
+
+			writeInt(CENSIG);
+			writeShort(versionNeeded(zi, bigsize || bigoffset)); // Made by
+			writeShort(versionNeeded(zi, bigsize || bigoffset));
+			writeShort(FLAG_UTF8);
+			writeShort(zi.m_method);
+			writeInt(zi.m_dosTime);
+			writeInt(zi.m_crc);
+			writeInt(bigsize ? ZIP64_MAGIC : zi.m_csize);
+			writeInt(bigsize ? ZIP64_MAGIC : zi.m_size);
+			writeShort(name.length);
+			writeShort(extra == 0 ? 0 : extra + 4);
+			writeShort(0); // Comment length
+			writeShort(0); // Disk number
+			writeShort(0); // Internal attributes
+			writeInt(0); // External attributes
+			writeInt(bigoffset ? ZIP64_MAGIC : zi.m_offset);
+			writeBytes(name, 0, name.length);
+			if(extra != 0) {
+				writeShort(1);
+				writeShort(extra);
+				if(bigsize) {
+					writeLong(zi.m_size);
+					writeLong(zi.m_csize);
+				}
+				if(bigoffset)
+					writeLong(zi.m_offset);
+			}
+		}
+		long cdsize = m_offset - cdstart;
+		int count = m_writtenList.size();
+
+		if(count >= 0xffff || cdstart >= ZIP64_MAGIC || cdsize >= ZIP64_MAGIC) {
+			long z64start = m_offset;
+			writeInt(ZIP64_ENDSIG);
+			writeLong(44); // Size of the rest of the record
+			writeShort(45);
+			writeShort(45);
+			writeInt(0); // This disk
+			writeInt(0); // Disk with the central directory
+			writeLong(count);
+			writeLong(count);
+			writeLong(cdsize);
+			writeLong(cdstart);
+
+			writeInt(ZIP64_LOCSIG);
+			writeInt(0);
+			writeLong(z64start);
+			writeInt(1); // Total #of disks
+		}
+
+		writeInt(ENDSIG);
+		writeShort(0);
+		writeShort(0);
+		writeShort(Math.min(count, 0xffff));
+		writeShort(Math.min(count, 0xffff));
+		writeInt(Math.min(cdsize, ZIP64_MAGIC));
+		writeInt(Math.min(cdstart, ZIP64_MAGIC));
+		byte[] comment = m_comment == null ? new byte[0] : m_comment.getBytes("UTF-8");
+		writeShort(comment.length);
+		writeBytes(comment, 0, comment.length);
+	}
+
+	static private int versionNeeded(ZipItem zi, boolean z64) {
+		if(z64)
+			return 45;
+		return zi.m_method == ZipEntry.DEFLATED ? 20 : 10;
+	}
+
+	private void writeBytes(byte[] data, int off, int len) throws IOException {
+		m_os.write(data, off, len);
+		m_offset += len;
+	}
+
+	private void writeShort(int v) throws IOException {
+		m_os.write(v & 0xff);
+		m_os.write((v >>> 8) & 0xff);
+		m_offset += 2;
+	}
+
+	private void writeInt(long v) throws IOException {
+		writeShort((int) (v & 0xffff));
+		writeShort((int) ((v >>> 16) & 0xffff));
+	}
+
+	private void writeLong(long v) throws IOException {
+		writeInt(v & 0xffffffffL);
+		writeInt(v >>> 32);
+	}
+
+	/*--------------------------------------------------------------*/
+	/*	CODING:	Closing.											*/
+	/*--------------------------------------------------------------*/
+	/**
+	 * Writes all pending entries and the central directory, then closes the file.
+	 */
+	public void close() throws IOException {
+		if(m_closed)
+			return;
+		try {
+			while(m_pendingList.size() > 0)
+				writeNext();
+			writeCentralDirectory();
+			m_closed = true;
+			m_os.close();
+		} finally {
+			if(!m_closed)
+				abort();
+			else
+				shutdown();
+		}
+	}
+
+	/**
+	 * Stop all work, close and delete the output file. Use this when adding failed.
+	 */
+	public void abort() {
+		if(m_executor != null) {
+			for(Runnable r : m_executor.shutdownNow()) {
+				if(r instanceof Future< ? >)
+					((Future< ? >) r).cancel(false);
+			}
+		}
+
+		//-- Wait for the entries still being compressed, and remove their temp files.
+		for(Future<ZipItem> f : m_pendingList) {
+			try {
+				if(!f.isCancelled()) {
+					ZipItem zi = f.get();
+					if(zi.m_spill != null)
+						zi.m_spill.delete();
+				}
+			} catch(Exception x) {}
+		}
+		m_pendingList.clear();
+		m_closed = true;
+		try {
+			m_os.close();
+		} catch(Exception x) {}
+		m_file.delete();
+	}
+
+	/**
+	 * Create the manifest of all entries written; call after {@link #close()}.
+	 */
+	public ZipManifest createManifest() {
+		int n = m_writtenList.size();
+		String[] names = new String[n];
+		long[] sizes = new long[n];
+		int[] crcs = new int[n];
+		byte[][] hashes = new byte[n][];
+		for(int i = 0; i < n; i++) {
+			ZipItem zi = m_writtenList.get(i);
+			names[i] = zi.m_name;
+			sizes[i] = zi.m_size;
+			crcs[i] = (int) zi.m_crc;
+			hashes[i] = zi.m_hash;
+		}
+		return new ZipManifest(names, sizes, crcs, hashes);
+	}
+
+	private void shutdown() {
+		if(m_executor != null)
+			m_executor.shutdown();
+	}
+
+	/**
+	 * Zip the contents of dir (or the file dir) into zipfile, using the specified #of threads.
+	 */
+	static public void zip(File zipfile, File dir, int threads) throws Exception {
+		zip(zipfile, dir, threads, false, false);
+	}
+
+	/**
+	 * Zip the contents of dir (or the file dir) into zipfile, using the specified #of threads. In
+	 * deterministic mode the entries are sorted by name and get a fixed timestamp, so that the
+	 * same content always creates the same bytes. If the existing zipfile was created from the
+	 * same content it is left alone, so that it keeps its timestamp; this then returns false.
+	 * With storeOnly set no entry gets compressed.
+	 */
+	static public boolean zip(File zipfile, File dir, int threads, boolean deterministic, boolean storeOnly) throws Exception {
+		return zip(zipfile, dir, threads, deterministic, storeOnly, false);
+	}
+
+	/**
+	 * Like {@link #zip(File, File, int, boolean, boolean)}; when manifest is set this also writes a
+	 * {@link ZipManifest} next to the zip, including the content hash of all entries.
+	 */
+	static public boolean zip(File zipfile, File dir, int threads, boolean deterministic, boolean storeOnly, boolean manifest) throws Exception {
+		return zip(zipfile, dir, threads, deterministic, storeOnly, manifest, null);
+	}
+
+	/**
+	 * Like {@link #zip(File, File, int, boolean, boolean, boolean)}, where previousManifest is the manifest of
+	 * the existing zipfile when the caller kept it while its sidecar file was deleted, or null to use
+	 * the sidecar file. The manifest's hashes prove that an entry of the existing zip can be reused;
+	 * entries without a hash get their old content hashed instead.
+	 */
+	static public boolean zip(File zipfile, File dir, int threads, boolean deterministic, boolean storeOnly, boolean manifest, ZipManifest previousManifest) throws Exception {
+		ZipManifest current = ZipManifest.load(zipfile);
+		ZipManifest oldManifest = previousManifest != null ? previousManifest : current;
+		List<ZipSource> list = new ArrayList<ZipSource>();
+		if(dir.isFile())
+			list.add(new ZipSource(dir.getName(), dir));
+		else
+			collectSources(list, "", dir, deterministic);
+
+		String digest = null;
+		File previous = null;
+		if(deterministic) {
+			String prefix = storeOnly ? STORED_DIGEST_PREFIX : DIGEST_PREFIX;
+			digest = prefix + calculateDigest(list);
+			String comment = readComment(zipfile);
+			if(digest.equals(comment)) {
+				if(manifest && current == null)
+					createManifest(list).save(zipfile);
+				return false;
+			}
+
+			//-- If the previous version is ours and compressed the same way we can reuse its unchanged entries.
+			if(comment != null && comment.startsWith(prefix)) {
+				previous = new File(zipfile.getParentFile(), zipfile.getName() + ".previous");
+				previous.delete();
+				if(!zipfile.renameTo(previous))
+					previous = null;
+			}
+		}
+
+		if(zipfile.exists())
+			if(!zipfile.delete())
+				throw new IOException("Unable to delete zipfile: " + zipfile);
+		ZipManifest.delete(zipfile);
+		ZipDirectory old = null;
+		ParallelZipWriter zw = new ParallelZipWriter(zipfile, threads);
+		try {
+			if(previous != null)
+				old = new ZipDirectory(previous);
+			zw.setDeterministic(deterministic);
+			zw.setStoreOnly(storeOnly);
+			zw.setComment(digest);
+			zw.setHashing(manifest);
+			for(ZipSource zs : list) {
+				if(zs.m_dir)
+					zw.addDirectory(zs.m_name, zs.m_file.lastModified());
+				else {
+					ZipDirectory.Entry e = old == null ? null : old.getEntry(zs.m_name);
+					if(e != null && !e.isDirectory() && e.getSize() == zs.m_size && e.getCrc() == zs.m_crc && isSameContent(old, e, oldManifest, zs))
+						zw.addCopy(old, e, zs.m_hash);
+					else
+						zw.addFile(zs.m_name, zs.m_file);
+				}
+			}
+			zw.close();
+			if(manifest)
+				zw.createManifest().save(zipfile);
+		} finally {
+			if(!zw.m_closed)
+				zw.abort();
+			if(old != null)
+				old.close();
+			if(previous != null)
+				previous.delete();
+		}
+		return true;
+	}
+
+	/**
+	 * A matching size and CRC32 is not proof enough to reuse an entry: its MD5 must match the source's
+	 * too. It is taken from the manifest of the old zip if that has it, else the old entry gets inflated
+	 * and hashed, which is still way cheaper than compressing the source.
+	 */
+	static private boolean isSameContent(ZipDirectory old, ZipDirectory.Entry e, ZipManifest oldManifest, ZipSource zs) throws IOException {
+		byte[] hash = null;
+		if(oldManifest != null) {
+			int ix = oldManifest.indexOf(zs.m_name);
+			if(ix != -1 && oldManifest.getSize(ix) == e.getSize() && oldManifest.getCrc(ix) == e.getCrc())
+				hash = oldManifest.getHash(ix);
+		}
+		if(hash == null) {
+			InputStream is = old.getInputStream(e);
+			try {
+				hash = FileTool.hashFile(is);
+			} finally {
+				try {
+					is.close();
+				} catch(Exception x) {}
+			}
+		}
+		return Arrays.equals(hash, zs.m_hash);
+	}
+
+	/**
+	 * Create a manifest from the sources, which must have their size, CRC and hash calculated.
+	 */
+	static private ZipManifest createManifest(List<ZipSource> list) {
+		int n = list.size();
+		String[] names = new String[n];
+		long[] sizes = new long[n];
+		int[] crcs = new int[n];
+		byte[][] hashes = new byte[n][];
+		for(int i = 0; i < n; i++) {
+			ZipSource zs = list.get(i);
+			names[i] = zs.m_name;
+			sizes[i] = zs.m_size;
+			crcs[i] = (int) zs.m_crc;
+			hashes[i] = zs.m_hash;
+		}
+		return new ZipManifest(names, sizes, crcs, hashes);
+	}
+
+	static private void collectSources(List<ZipSource> list, String base, File dir, boolean sorted) {
+		if(base.length() > 0) {
+			ZipSource zs = new ZipSource(base, dir);
+			zs.m_dir = true;
+			list.add(zs);
+		}
+		File[] far = dir.listFiles();
+		if(sorted) {
+			Arrays.sort(far, new Comparator<File>() {
+				@Override
+				public int compare(File a, File b) {
+					return a.getName().compareTo(b.getName());
+				}
+			});
+		}
+		for(File f : far) {
+			if(f.isFile())
+				list.add(new ZipSource(base + f.getName(), f));
+			else
+				collectSources(list, base + f.getName() + "/", f, sorted);
+		}
+	}
+
+	/**
+	 * Calculate a digest over the names and the content of all entries. The size, CRC and MD5 of
+	 * every file get stored in its source, for reusing entries and for the manifest.
+	 */
+	static private String calculateDigest(List<ZipSource> list) throws Exception {
+		MessageDigest md = MessageDigest.getInstance("MD5");
+		MessageDigest fmd = MessageDigest.getInstance("MD5");
+		byte[] buf = new byte[65536];
+		CRC32 crc = new CRC32();
+		for(ZipSource zs : list) {
+			md.update(zs.m_name.getBytes("UTF-8"));
+			md.update((byte) 0);
+			if(zs.m_dir)
+				continue;
+			crc.reset();
+			fmd.reset();
+			long size = 0;
+			InputStream is = new FileInputStream(zs.m_file);
+			try {
+				int sz;
+				while(0 < (sz = is.read(buf))) {
+					crc.update(buf, 0, sz);
+					fmd.update(buf, 0, sz);
+					size += sz;
+				}
+			} finally {
+				try {
+					is.close();
+				} catch(Exception x) {}
+			}
+			zs.m_size = size;
+			zs.m_crc = crc.getValue();
+			zs.m_hash = fmd.digest();
+			md.update(zs.m_hash);
+		}
+		return StringTool.toHex(md.digest());
+	}
+
+	/**
+	 * Return the comment of an existing zip file, or null if it does not exist or cannot be read.
+	 */
+	static private String readComment(File zipfile) {
+		if(!zipfile.exists())
+			return null;
+		ZipDirectory zd = null;
+		try {
+			zd = new ZipDirectory(zipfile);
+			return zd.getComment();
+		} catch(Exception x) {
+			return null;
+		} finally {
+			if(zd != null)
+				zd.close();
+		}
+	}
+
+	/*--------------------------------------------------------------*/
+	/*	CODING:	Helper classes.										*/
+	/*--------------------------------------------------------------*/
+	/**
+	 * An entry as it will be written.
+	 */
+	static final class ZipItem {
+		final String m_name;
+
+		final int m_dosTime;
+
+		File m_source;
+
+		int m_method;
+
+		long m_crc;
+
+		long m_size;
+
+		long m_csize;
+
+		/** When deflated: the compressed data. */
+		byte[] m_data;
+
+		/** When deflated to more than {@link #MAX_MEMORY_ENTRY} bytes: the temp file with the compressed data. */
+		File m_spill;
+
+		/** Position of the local header in the output. */
+		long m_offset;
+
+		/** The MD5 of the content, if calculated. */
+		byte[] m_hash;
+
+		/** When set the raw data gets copied from this zip's entry. */
+		ZipDirectory m_copyFrom;
+
+		ZipDirectory.Entry m_copyEntry;
+
+		ZipItem(String name, int dosTime) {
+			m_name = name;
+			m_dosTime = dosTime;
+		}
+
+		byte[] getNameBytes() {
+			try {
+				return m_name.getBytes("UTF-8");
+			} catch(UnsupportedEncodingException x) {
+				throw new WrappedException(x);
+			}
+		}
+	}
+
+	static int javaToDosTime(long time) {
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(time);
+		int year = cal.get(Calendar.YEAR);
+		if(year < 1980)
+			return (1 << 21) | (1 << 16);
+		return (year - 1980) << 25 | (cal.get(Calendar.MONTH) + 1) << 21 | cal.get(Calendar.DAY_OF_MONTH) << 16 | cal.get(Calendar.HOUR_OF_DAY) << 11 | cal.get(Calendar.MINUTE) << 5
+			| cal.get(Calendar.SECOND) >> 1;
+	}
+
+	/**
+	 * A file or directory to add.
+	 */
+	static private final class ZipSource {
+		final String m_name;
+
+		final File m_file;
+
+		boolean m_dir;
+
+		/** Size, CRC and MD5 of a file, when calculated. */
+		long m_size;
+
+		long m_crc;
+
+		byte[] m_hash;
+
+		ZipSource(String name, File file) {
+			m_name = name;
+			m_file = file;
+		}
+	}
+
+	/**
+	 * Collects compressed data in memory, and moves it to a temp file as soon as it gets bigger
+	 * than {@link #MAX_MEMORY_ENTRY}. The buffer is exposed to prevent a copy of the data.
+	 */
+	static private final class SpillOutput extends OutputStream {
+		private final File m_dir;
+
+		private byte[] m_buf;
+
+		private long m_size;
+
+		private File m_file;
+
+		private OutputStream m_os;
+
+		SpillOutput(int size, File dir) {
+			m_buf = new byte[size];
+			m_dir = dir;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if(m_os == null && m_size + len > MAX_MEMORY_ENTRY) {
+				m_file = File.createTempFile("zipentry", ".tmp", m_dir);
+				m_os = new BufferedOutputStream(new FileOutputStream(m_file), 65536);
+				m_os.write(m_buf, 0, (int) m_size);
+				m_buf = null;
+			}
+			if(m_os != null)
+				m_os.write(b, off, len);
+			else {
+				if(m_size + len > m_buf.length)
+					m_buf = Arrays.copyOf(m_buf, (int) Math.min(Math.max(m_buf.length * 2, m_size + len), MAX_MEMORY_ENTRY));
+				System.arraycopy(b, off, m_buf, (int) m_size, len);
+			}
+			m_size += len;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(m_os != null) {
+				m_os.close();
+				m_os = null;
+			}
+		}
+
+		long size() {
+			return m_size;
+		}
+
+		/**
+		 * The data, or null if it is in the temp file.
+		 */
+		byte[] getBuffer() {
+			return m_buf;
+		}
+
+		/**
+		 * The temp file with the data, or null if the data is in memory.
+		 */
+		File getFile() {
+			return m_file;
+		}
+
+		/**
+		 * Drop the data and delete the temp file, if any.
+		 */
+		void discard() {
+			try {
+				close();
+			} catch(Exception x) {}
+			if(m_file != null) {
+				m_file.delete();
+				m_file = null;
+			}
+			m_buf = null;
+		}
+	}
+
+	/**
+	 * A Future for something that is already known.
+	 */
+	static private final class CompletedFuture implements Future<ZipItem> {
+		private final ZipItem m_item;
+
+		CompletedFuture(ZipItem item) {
+			m_item = item;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isDone() {
+			return true;
+		}
+
+		@Override
+		public ZipItem get() {
+			return m_item;
+		}
+
+		@Override
+		public ZipItem get(long timeout, TimeUnit unit) {
+			return m_item;
+		}
+	}
+}
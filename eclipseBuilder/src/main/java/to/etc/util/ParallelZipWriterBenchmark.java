@@ -0,0 +1,114 @@
+package to.etc.util;
+
+import java.io.*;
+import java.util.zip.*;
+
+/**
+ * End-to-end benchmark for {@link ParallelZipWriter}: zips a directory the way FileTool.zip did
+ * before, with a single java.util.zip.ZipOutputStream, and then with the parallel writer using an
+ * increasing number of threads. It reports the best time of each and the speedup against the
+ * ZipOutputStream, and checks that every zip can be read back.
+ *
+ * Usage: ParallelZipWriterBenchmark directory [runs [maxthreads]]; maxthreads defaults to the #of processors.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+public class ParallelZipWriterBenchmark {
+	public static void main(String[] args) throws Exception {
+		if(args.length < 1) {
+			System.out.println("Usage: ParallelZipWriterBenchmark directory [runs [maxthreads]]");
+			return;
+		}
+		File dir = new File(args[0]);
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		File out = File.createTempFile("zipbench", ".zip");
+		try {
+			long base = Long.MAX_VALUE;
+			for(int i = 0; i < runs; i++) {
+				long ts = System.nanoTime();
+				zipStream(out, dir);
+				base = Math.min(base, System.nanoTime() - ts);
+			}
+			int count = check(out);
+			System.out.println("ZipOutputStream: " + StringTool.strNanoTime(base) + ", " + out.length() + " bytes, " + count + " entries");
+
+			int cpus = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+			for(int threads = 1; threads <= cpus; threads *= 2) {
+				long best = Long.MAX_VALUE;
+				for(int i = 0; i < runs; i++) {
+					long ts = System.nanoTime();
+					ParallelZipWriter.zip(out, dir, threads);
+					best = Math.min(best, System.nanoTime() - ts);
+				}
+				check(out);
+				System.out.println(threads + " thread(s): " + StringTool.strNanoTime(best) + ", " + out.length() + " bytes, " + String.format("%.2f", (double) base / best) + "x");
+				if(threads < cpus && threads * 2 > cpus)
+					threads = cpus / 2;
+			}
+		} finally {
+			out.delete();
+		}
+	}
+
+	/**
+	 * Zip like the old FileTool.zip: one ZipOutputStream, compressing everything.
+	 */
+	static private void zipStream(File zipfile, File dir) throws IOException {
+		ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zipfile), 65536));
+		try {
+			zipStream(zos, "", dir, new byte[8192]);
+		} finally {
+			try {
+				zos.close();
+			} catch(Exception x) {}
+		}
+	}
+
+	static private void zipStream(ZipOutputStream zos, String base, File dir, byte[] buf) throws IOException {
+		for(File f : dir.listFiles()) {
+			if(f.isDirectory()) {
+				ZipEntry ze = new ZipEntry(base + f.getName() + "/");
+				ze.setTime(f.lastModified());
+				zos.putNextEntry(ze);
+				zos.closeEntry();
+				zipStream(zos, base + f.getName() + "/", f, buf);
+				continue;
+			}
+			ZipEntry ze = new ZipEntry(base + f.getName());
+			ze.setTime(f.lastModified());
+			zos.putNextEntry(ze);
+			InputStream is = new FileInputStream(f);
+			try {
+				int sz;
+				while(0 < (sz = is.read(buf)))
+					zos.write(buf, 0, sz);
+			} finally {
+				try {
+					is.close();
+				} catch(Exception x) {}
+			}
+			zos.closeEntry();
+		}
+	}
+
+	/**
+	 * Read all entries back, and return the #of entries.
+	 */
+	static private int check(File zipfile) throws IOException {
+		ZipInputStream zis = new ZipInputStream(new BufferedInputStream(new FileInputStream(zipfile), 65536));
+		try {
+			byte[] buf = new byte[65536];
+			int count = 0;
+			while(zis.getNextEntry() != null) {
+				while(zis.read(buf) > 0)
+					;
+				count++;
+			}
+			return count;
+		} finally {
+			try {
+				zis.close();
+			} catch(Exception x) {}
+		}
+	}
+}
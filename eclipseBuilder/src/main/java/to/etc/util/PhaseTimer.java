@@ -0,0 +1,88 @@
+package to.etc.util;
+
+import java.util.*;
+
+/**
+ * Collects the start and duration of the phases of some process, and renders them as a
+ * report. Phases may run concurrently on different threads; the report shows when each
+ * phase started relative to the start of the timer so that overlap is visible.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+public class PhaseTimer {
+	static private final class Phase {
+		public final String	name;
+
+		public final long	start;
+
+		public final long	duration;
+
+		public Phase(String name, long start, long duration) {
+			this.name = name;
+			this.start = start;
+			this.duration = duration;
+		}
+	}
+
+	private final String		m_name;
+
+	private final long			m_start = System.nanoTime();
+
+	private final List<Phase>	m_list = new ArrayList<Phase>();
+
+	public PhaseTimer(String name) {
+		m_name = name;
+	}
+
+	/**
+	 * Record a phase that started at the specified System.nanoTime() and ends now.
+	 */
+	public synchronized void add(String phase, long startTs) {
+		m_list.add(new Phase(phase, startTs, System.nanoTime() - startTs));
+	}
+
+	/**
+	 * Render the report: one line per phase in start order, with its start relative to the timer's
+	 * creation and its duration.
+	 */
+	public synchronized String getReport() {
+		long wall = System.nanoTime() - m_start;
+		List<Phase> list = new ArrayList<Phase>(m_list);
+		Collections.sort(list, new Comparator<Phase>() {
+			@Override
+			public int compare(Phase a, Phase b) {
+				return a.start < b.start ? -1 : a.start == b.start ? 0 : 1;
+			}
+		});
+
+		int width = 8;
+		for(Phase p : list)
+			width = Math.max(width, p.name.length());
+		StringBuilder sb = new StringBuilder(128);
+		sb.append(m_name).append(": ").append(millis(wall)).append(" total");
+		for(Phase p : list) {
+			sb.append("\n  ");
+			pad(sb, p.name, width + 2);
+			pad(sb, "at +" + millis(p.start - m_start), 14);
+			pad(sb, millis(p.duration), 10);
+			if(wall > 0)
+				sb.append(p.duration * 100 / wall).append('%');
+		}
+		return sb.toString();
+	}
+
+	static private String millis(long ns) {
+		return (ns / 1000000) + "ms";
+	}
+
+	static private void pad(StringBuilder sb, String s, int width) {
+		sb.append(s);
+		for(int i = s.length(); i < width; i++)
+			sb.append(' ');
+	}
+
+	@Override
+	public String toString() {
+		return getReport();
+	}
+}
@@ -0,0 +1,341 @@
+package to.etc.util;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Reads the central directory of a zip file, without inflating anything. Unlike java.util.zip.ZipFile
+ * this exposes where each entry's raw (compressed) data is located, so that it can be copied as-is
+ * into another zip file. Zip64 archives are supported. The file stays open until {@link #close()}.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+public class ZipDirectory {
+	static private final int LOCSIG = 0x04034b50;
+
+	static private final int CENSIG = 0x02014b50;
+
+	static private final int ENDSIG = 0x06054b50;
+
+	static private final int ZIP64_ENDSIG = 0x06064b50;
+
+	static private final int ZIP64_LOCSIG = 0x07064b50;
+
+	static private final long ZIP64_MAGIC = 0xffffffffL;
+
+	private final File m_file;
+
+	private final RandomAccessFile m_raf;
+
+	private final List<Entry> m_entryList = new ArrayList<Entry>();
+
+	private final Map<String, Entry> m_entryMap = new HashMap<String, Entry>();
+
+	private String m_comment;
+
+	/**
+	 * A central directory entry.
+	 */
+	static public final class Entry {
+		private final String m_name;
+
+		private final int m_flags;
+
+		private final int m_method;
+
+		private final int m_dosTime;
+
+		private final long m_crc;
+
+		private final long m_size;
+
+		private final long m_compressedSize;
+
+		private final long m_localOffset;
+
+		Entry(String name, int flags, int method, int dosTime, long crc, long size, long csize, long localOffset) {
+			m_name = name;
+			m_flags = flags;
+			m_method = method;
+			m_dosTime = dosTime;
+			m_crc = crc;
+			m_size = size;
+			m_compressedSize = csize;
+			m_localOffset = localOffset;
+		}
+
+		public String getName() {
+			return m_name;
+		}
+
+		public boolean isDirectory() {
+			return m_name.endsWith("/");
+		}
+
+		public int getFlags() {
+			return m_flags;
+		}
+
+		public int getMethod() {
+			return m_method;
+		}
+
+		public int getDosTime() {
+			return m_dosTime;
+		}
+
+		public long getCrc() {
+			return m_crc;
+		}
+
+		public long getSize() {
+			return m_size;
+		}
+
+		public long getCompressedSize() {
+			return m_compressedSize;
+		}
+
+		public long getLocalOffset() {
+			return m_localOffset;
+		}
+	}
+
+	public ZipDirectory(File f) throws IOException {
+		m_file = f;
+		m_raf = new RandomAccessFile(f, "r");
+		try {
+			readDirectory();
+		} catch(IOException x) {
+			close();
+			throw x;
+		} catch(RuntimeException x) {
+			close();
+			throw x;
+		}
+	}
+
+	public File getFile() {
+		return m_file;
+	}
+
+	/**
+	 * All entries in the order of the central directory.
+	 */
+	public List<Entry> getEntryList() {
+		return m_entryList;
+	}
+
+	public Entry getEntry(String name) {
+		return m_entryMap.get(name);
+	}
+
+	/**
+	 * The zip file comment, or null if there is none.
+	 */
+	public String getComment() {
+		return m_comment;
+	}
+
+	public void close() {
+		try {
+			m_raf.close();
+		} catch(Exception x) {}
+	}
+
+	/*--------------------------------------------------------------*/
+	/*	CODING:	Raw data access.									*/
+	/*--------------------------------------------------------------*/
+	/**
+	 * Returns the offset of the entry's (compressed) data in the file, by reading
+	 * the local header.
+	 */
+	public long getDataOffset(Entry e) throws IOException {
+		byte[] hdr = new byte[30];
+		m_raf.seek(e.getLocalOffset());
+		m_raf.readFully(hdr);
+		if(getInt(hdr, 0) != LOCSIG)
+			throw new IOException(m_file + ": bad local header for " + e.getName());
+		return e.getLocalOffset() + 30 + getShort(hdr, 26) + getShort(hdr, 28);
+	}
+
+	/**
+	 * Copy the entry's raw compressed data to the output stream.
+	 */
+	public void copyRawData(Entry e, OutputStream os, byte[] buf) throws IOException {
+		long pos = getDataOffset(e);
+		long left = e.getCompressedSize();
+		m_raf.seek(pos);
+		while(left > 0) {
+			int sz = m_raf.read(buf, 0, (int) Math.min(buf.length, left));
+			if(sz <= 0)
+				throw new EOFException(m_file + ": unexpected eof in " + e.getName());
+			os.write(buf, 0, sz);
+			left -= sz;
+		}
+	}
+
+	/**
+	 * Return a stream reading the entry's uncompressed data. It shares the file with this, so it
+	 * must be read completely before this is used for anything else.
+	 */
+	public InputStream getInputStream(Entry e) throws IOException {
+		InputStream is = new RawInputStream(getDataOffset(e), e.getCompressedSize());
+		switch(e.getMethod()){
+			default:
+				throw new IOException(m_file + ": unsupported compression method " + e.getMethod() + " for " + e.getName());
+			case 0:
+				return is;
+			case 8:
+				return new InflaterInputStream(is, new Inflater(true), 65536) {
+					@Override
+					public void close() throws IOException {
+						super.close();
+						inf.end();
+					}
+				};
+		}
+	}
+
+	/**
+	 * Reads a range of the file.
+	 */
+	private final class RawInputStream extends InputStream {
+		private long m_pos;
+
+		private long m_left;
+
+		RawInputStream(long pos, long len) {
+			m_pos = pos;
+			m_left = len;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(m_left <= 0)
+				return -1;
+			m_raf.seek(m_pos);
+			int sz = m_raf.read(b, off, (int) Math.min(len, m_left));
+			if(sz <= 0)
+				throw new EOFException(m_file + ": unexpected eof");
+			m_pos += sz;
+			m_left -= sz;
+			return sz;
+		}
+	}
+
+	/*--------------------------------------------------------------*/
+	/*	CODING:	Parsing.											*/
+	/*--------------------------------------------------------------*/
+	private void readDirectory() throws IOException {
+		//-- Locate the end record: it is followed by a comment of max 64K.
+		long len = m_raf.length();
+		int taillen = (int) Math.min(len, 65535 + 22);
+		byte[] tail = new byte[taillen];
+		m_raf.seek(len - taillen);
+		m_raf.readFully(tail);
+		int endpos = -1;
+		for(int i = taillen - 22; i >= 0; i--) {
+			if(getInt(tail, i) == ENDSIG && i + 22 + getShort(tail, i + 20) == taillen) {
+				endpos = i;
+				break;
+			}
+		}
+		if(endpos == -1)
+			throw new IOException(m_file + ": not a zip file (no end of central directory)");
+
+		long count = getShort(tail, endpos + 10);
+		long cdsize = getInt(tail, endpos + 12);
+		long cdstart = getInt(tail, endpos + 16);
+		int commentlen = getShort(tail, endpos + 20);
+		if(commentlen > 0)
+			m_comment = new String(tail, endpos + 22, commentlen, "UTF-8");
+
+		//-- Zip64 locator right before the end record?
+		long endoffset = len - taillen + endpos;
+		if(endoffset >= 20) {
+			byte[] loc = new byte[20];
+			m_raf.seek(endoffset - 20);
+			m_raf.readFully(loc);
+			if(getInt(loc, 0) == ZIP64_LOCSIG) {
+				byte[] z64 = new byte[56];
+				m_raf.seek(getLong(loc, 8));
+				m_raf.readFully(z64);
+				if(getInt(z64, 0) != ZIP64_ENDSIG)
+					throw new IOException(m_file + ": bad zip64 end of central directory");
+				count = getLong(z64, 32);
+				cdsize = getLong(z64, 40);
+				cdstart = getLong(z64, 48);
+			}
+		}
+
+		//-- Read the central directory as a whole
+		if(cdsize > Integer.MAX_VALUE)
+			throw new IOException(m_file + ": central directory too big");
+		byte[] cd = new byte[(int) cdsize];
+		m_raf.seek(cdstart);
+		m_raf.readFully(cd);
+		int pos = 0;
+		for(long i = 0; i < count; i++) {
+			if(getInt(cd, pos) != CENSIG)
+				throw new IOException(m_file + ": bad central directory entry #" + i);
+			int flags = getShort(cd, pos + 8);
+			int method = getShort(cd, pos + 10);
+			int dostime = (int) getInt(cd, pos + 12);
+			long crc = getInt(cd, pos + 16);
+			long csize = getInt(cd, pos + 20);
+			long size = getInt(cd, pos + 24);
+			int namelen = getShort(cd, pos + 28);
+			int extralen = getShort(cd, pos + 30);
+			int cmtlen = getShort(cd, pos + 32);
+			long offset = getInt(cd, pos + 42);
+			String name = new String(cd, pos + 46, namelen, (flags & 0x800) != 0 ? "UTF-8" : "Cp437");
+
+			//-- Zip64 extra field contains the values that overflowed, in a fixed order.
+			int xp = pos + 46 + namelen;
+			int xend = xp + extralen;
+			while(xp + 4 <= xend) {
+				int id = getShort(cd, xp);
+				int sz = getShort(cd, xp + 2);
+				if(id == 1) {
+					int vp = xp + 4;
+					if(size == ZIP64_MAGIC) {
+						size = getLong(cd, vp);
+						vp += 8;
+					}
+					if(csize == ZIP64_MAGIC) {
+						csize = getLong(cd, vp);
+						vp += 8;
+					}
+					if(offset == ZIP64_MAGIC)
+						offset = getLong(cd, vp);
+				}
+				xp += 4 + sz;
+			}
+
+			Entry e = new Entry(name, flags, method, dostime, crc, size, csize, offset);
+			m_entryList.add(e);
+			m_entryMap.put(name, e);
+			pos += 46 + namelen + extralen + cmtlen;
+		}
+	}
+
+	static private int getShort(byte[] b, int off) {
+		return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8);
+	}
+
+	static private long getInt(byte[] b, int off) {
+		return (getShort(b, off) | ((long) getShort(b, off + 2) << 16)) & 0xffffffffL;
+	}
+
+	static private long getLong(byte[] b, int off) {
+		return getInt(b, off) | (getInt(b, off + 4) << 32);
+	}
+}
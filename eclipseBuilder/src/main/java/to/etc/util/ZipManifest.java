@@ -0,0 +1,113 @@
+package to.etc.util;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The list of entries of a zip file as written by {@link ParallelZipWriter}: name, size, CRC
+ * and, when known, the MD5 hash of the content of every entry. It is stored as a sidecar file
+ * next to the zip, together with the zip's size and timestamp at the time it was written, so
+ * that a manifest whose zip changed later is recognized as stale and ignored.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+public class ZipManifest implements Serializable {
+	static private final long serialVersionUID = 1;
+
+	static public final String SUFFIX = ".entries";
+
+	private long				m_zipSize;
+
+	private long				m_zipLastModified;
+
+	/** Entry names in the order of the zip. Directories end in a slash. */
+	private final String[]		m_names;
+
+	private final long[]		m_sizes;
+
+	private final int[]			m_crcs;
+
+	/** MD5 of each entry's content; null for directories and for entries whose hash is not known. */
+	private final byte[][]		m_hashes;
+
+	private transient Map<String, Integer> m_indexMap;
+
+	public ZipManifest(String[] names, long[] sizes, int[] crcs, byte[][] hashes) {
+		m_names = names;
+		m_sizes = sizes;
+		m_crcs = crcs;
+		m_hashes = hashes;
+	}
+
+	static public File getFile(File zip) {
+		return new File(zip.getParentFile(), zip.getName() + SUFFIX);
+	}
+
+	/**
+	 * Load the manifest for the zip. Returns null if there is none, if it cannot be read or if the
+	 * zip changed after the manifest was written.
+	 */
+	static public ZipManifest load(File zip) {
+		File f = getFile(zip);
+		if(!f.exists() || !zip.exists())
+			return null;
+		try {
+			ZipManifest zm = (ZipManifest) FileTool.loadSerialized(f);
+			if(zm.m_zipSize != zip.length() || zm.m_zipLastModified != zip.lastModified())
+				return null;
+			return zm;
+		} catch(Exception x) {
+			return null;
+		}
+	}
+
+	/**
+	 * Store this as the manifest of the zip, which must have been completely written.
+	 */
+	public void save(File zip) throws IOException {
+		m_zipSize = zip.length();
+		m_zipLastModified = zip.lastModified();
+		FileTool.saveSerialized(getFile(zip), this);
+	}
+
+	static public void delete(File zip) {
+		getFile(zip).delete();
+	}
+
+	public int getEntryCount() {
+		return m_names.length;
+	}
+
+	public String getName(int ix) {
+		return m_names[ix];
+	}
+
+	public boolean isDirectory(int ix) {
+		return m_names[ix].endsWith("/");
+	}
+
+	public long getSize(int ix) {
+		return m_sizes[ix];
+	}
+
+	public long getCrc(int ix) {
+		return m_crcs[ix] & 0xffffffffL;
+	}
+
+	public byte[] getHash(int ix) {
+		return m_hashes[ix];
+	}
+
+	/**
+	 * Return the index of the entry with the specified name, or -1.
+	 */
+	public synchronized int indexOf(String name) {
+		if(m_indexMap == null) {
+			m_indexMap = new HashMap<String, Integer>(m_names.length * 2);
+			for(int i = 0; i < m_names.length; i++)
+				m_indexMap.put(m_names[i], Integer.valueOf(i));
+		}
+		Integer ix = m_indexMap.get(name);
+		return ix == null ? -1 : ix.intValue();
+	}
+}
@@ -0,0 +1,122 @@
+package to.etc.util;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+
+/**
+ * Creating a patch and applying it must give the new file back exactly.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+public class BinaryPatchTest {
+	private File m_dir;
+
+	private final Random m_random = new Random(1234);
+
+	@Before
+	public void setUp() throws Exception {
+		m_dir = TestFiles.createTempDir("patchtest");
+	}
+
+	@After
+	public void tearDown() {
+		FileTool.deleteDir(m_dir);
+	}
+
+	/**
+	 * Patch old into new, apply the patch to old and check that the result is new. Returns the
+	 * size of the patch.
+	 */
+	private long roundTrip(File oldf, File newf) throws Exception {
+		File patchf = new File(m_dir, "test.patch");
+		File result = new File(m_dir, "result");
+		long size = BinaryPatch.create(oldf, newf, patchf);
+		BinaryPatch.apply(oldf, patchf, result);
+		assertArrayEquals(TestFiles.read(newf), TestFiles.read(result));
+		return size;
+	}
+
+	private long roundTrip(byte[] olddata, byte[] newdata) throws Exception {
+		File oldf = new File(m_dir, "old.bin");
+		File newf = new File(m_dir, "new.bin");
+		TestFiles.write(oldf, olddata);
+		TestFiles.write(newf, newdata);
+		return roundTrip(oldf, newf);
+	}
+
+	@Test
+	public void testSame() throws Exception {
+		byte[] data = TestFiles.random(m_random, 300000);
+		long size = roundTrip(data, data);
+		assertTrue("patch for an unchanged file is too big: " + size, size < 1000);
+	}
+
+	@Test
+	public void testInsert() throws Exception {
+		byte[] olddata = TestFiles.random(m_random, 300000);
+		byte[] ins = TestFiles.random(m_random, 5000);
+		byte[] newdata = new byte[olddata.length + ins.length];
+		System.arraycopy(olddata, 0, newdata, 0, 123457);
+		System.arraycopy(ins, 0, newdata, 123457, ins.length);
+		System.arraycopy(olddata, 123457, newdata, 123457 + ins.length, olddata.length - 123457);
+		long size = roundTrip(olddata, newdata);
+		assertTrue("patch for an insert is too big: " + size, size < 20000);
+	}
+
+	@Test
+	public void testDelete() throws Exception {
+		byte[] olddata = TestFiles.random(m_random, 300000);
+		byte[] newdata = new byte[olddata.length - 7001];
+		System.arraycopy(olddata, 0, newdata, 0, 99999);
+		System.arraycopy(olddata, 99999 + 7001, newdata, 99999, newdata.length - 99999);
+		long size = roundTrip(olddata, newdata);
+		assertTrue("patch for a delete is too big: " + size, size < 10000);
+	}
+
+	@Test
+	public void testBitFlip() throws Exception {
+		byte[] olddata = TestFiles.random(m_random, 300000);
+		byte[] newdata = olddata.clone();
+		newdata[0] ^= 0x01;
+		newdata[150001] ^= 0x10;
+		newdata[newdata.length - 1] ^= 0x80;
+		long size = roundTrip(olddata, newdata);
+		assertTrue("patch for flipped bits is too big: " + size, size < 10000);
+	}
+
+	@Test
+	public void testUnrelated() throws Exception {
+		roundTrip(TestFiles.random(m_random, 100000), TestFiles.random(m_random, 120000));
+	}
+
+	@Test
+	public void testEmpty() throws Exception {
+		roundTrip(new byte[0], TestFiles.random(m_random, 1000));
+		roundTrip(TestFiles.random(m_random, 1000), new byte[0]);
+	}
+
+	/**
+	 * A zip with a changed, an added and a removed entry: the unchanged entries must be copied.
+	 */
+	@Test
+	public void testZip() throws Exception {
+		File src = new File(m_dir, "src");
+		for(int i = 0; i < 40; i++)
+			TestFiles.write(new File(src, "to/etc/C" + i + ".class"), TestFiles.text(m_random, 20000 + i));
+		File oldzip = new File(m_dir, "old.jar");
+		ParallelZipWriter.zip(oldzip, src, 4, true, false);
+
+		TestFiles.write(new File(src, "to/etc/C7.class"), TestFiles.text(m_random, 21000));
+		TestFiles.write(new File(src, "to/etc/Added.class"), TestFiles.text(m_random, 5000));
+		new File(src, "to/etc/C20.class").delete();
+		File newzip = new File(m_dir, "new.jar");
+		ParallelZipWriter.zip(newzip, src, 4, true, false);
+
+		long size = roundTrip(oldzip, newzip);
+		assertTrue("patch for a zip is too big: " + size + " for a zip of " + newzip.length(), size < newzip.length() / 4);
+	}
+}
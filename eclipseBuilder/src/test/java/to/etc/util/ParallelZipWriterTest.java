@@ -0,0 +1,110 @@
+package to.etc.util;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+import org.junit.*;
+
+/**
+ * Zips written by {@link ParallelZipWriter} must be readable by java.util.zip.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+public class ParallelZipWriterTest {
+	private File m_dir;
+
+	private final Random m_random = new Random(4321);
+
+	@Before
+	public void setUp() throws Exception {
+		m_dir = TestFiles.createTempDir("ziptest");
+	}
+
+	@After
+	public void tearDown() {
+		FileTool.deleteDir(m_dir);
+	}
+
+	private File createSource() throws Exception {
+		return TestFiles.createSource(new File(m_dir, "src"), m_random);
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		File src = createSource();
+		File zip = new File(m_dir, "out/test.zip");
+		zip.getParentFile().mkdirs();
+		ParallelZipWriter.zip(zip, src, 4);
+		TestFiles.assertZipContains(zip, src);
+
+		//-- Compressed data that was kept in a temp file must have been removed.
+		assertEquals(1, zip.getParentFile().list().length);
+	}
+
+	@Test
+	public void testSingleThread() throws Exception {
+		File src = createSource();
+		File zip = new File(m_dir, "test.zip");
+		ParallelZipWriter.zip(zip, src, 1);
+		TestFiles.assertZipContains(zip, src);
+	}
+
+	/**
+	 * Already compressed files and files that do not get smaller are stored, all else is deflated.
+	 */
+	@Test
+	public void testStoredEntries() throws Exception {
+		File src = createSource();
+		File zip = new File(m_dir, "test.zip");
+		ParallelZipWriter.zip(zip, src, 4);
+		ZipFile zf = new ZipFile(zip);
+		try {
+			assertEquals(ZipEntry.STORED, zf.getEntry("lib/nested.jar").getMethod());
+			assertEquals(ZipEntry.STORED, zf.getEntry("to/etc/random.bin").getMethod());
+			assertEquals(ZipEntry.STORED, zf.getEntry("empty.txt").getMethod());
+			assertEquals(ZipEntry.DEFLATED, zf.getEntry("to/etc/util/C1.class").getMethod());
+			assertEquals(ZipEntry.DEFLATED, zf.getEntry("big.txt").getMethod());
+		} finally {
+			zf.close();
+		}
+	}
+
+	/**
+	 * More than 65535 entries need the zip64 end records.
+	 */
+	@Test
+	public void testManyEntries() throws Exception {
+		File f = new File(m_dir, "entry.txt");
+		TestFiles.write(f, "Hello, world\n".getBytes("UTF-8"));
+		int count = 70000;
+		File zip = new File(m_dir, "many.zip");
+		ParallelZipWriter zw = new ParallelZipWriter(zip, 4);
+		zw.addDirectory("dir/", f.lastModified());
+		for(int i = 0; i < count; i++)
+			zw.addFile("dir/entry" + i + ".txt", f);
+		zw.close();
+
+		ZipFile zf = new ZipFile(zip);
+		try {
+			assertEquals(count + 1, zf.size());
+			for(int i = 0; i < count; i += 9999) {
+				ZipEntry ze = zf.getEntry("dir/entry" + i + ".txt");
+				assertNotNull("entry " + i, ze);
+				assertArrayEquals(TestFiles.read(f), TestFiles.read(zf.getInputStream(ze)));
+			}
+			assertNotNull(zf.getEntry("dir/entry" + (count - 1) + ".txt"));
+		} finally {
+			zf.close();
+		}
+
+		ZipDirectory zd = new ZipDirectory(zip);
+		try {
+			assertEquals(count + 1, zd.getEntryList().size());
+		} finally {
+			zd.close();
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package to.etc.util;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Helpers for the tests that need files: a temp directory, reading/writing whole files and
+ * checking the content of zips.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+final class TestFiles {
+	private TestFiles() {}
+
+	/**
+	 * Create an empty temp directory; delete it with {@link FileTool#deleteDir(File)}.
+	 */
+	static File createTempDir(String prefix) throws IOException {
+		File f = File.createTempFile(prefix, ".dir");
+		if(!f.delete() || !f.mkdirs())
+			throw new IOException("Cannot create temp directory " + f);
+		return f;
+	}
+
+	static void write(File f, byte[] data) throws IOException {
+		f.getParentFile().mkdirs();
+		OutputStream os = new FileOutputStream(f);
+		try {
+			os.write(data);
+		} finally {
+			try {
+				os.close();
+			} catch(Exception x) {}
+		}
+	}
+
+	static byte[] read(File f) throws IOException {
+		return read(new FileInputStream(f));
+	}
+
+	/**
+	 * Read the stream completely, and close it.
+	 */
+	static byte[] read(InputStream is) throws IOException {
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			int sz;
+			while(0 < (sz = is.read(buf)))
+				bos.write(buf, 0, sz);
+			return bos.toByteArray();
+		} finally {
+			try {
+				is.close();
+			} catch(Exception x) {}
+		}
+	}
+
+	/**
+	 * Random bytes, which do not compress.
+	 */
+	static byte[] random(Random r, int size) {
+		byte[] data = new byte[size];
+		r.nextBytes(data);
+		return data;
+	}
+
+	/**
+	 * Text-like bytes, which compress well.
+	 */
+	static byte[] text(Random r, int size) {
+		String[] words = {"public ", "class ", "static ", "void ", "return ", "int ", "String ", "new ", "if(", ") {\n", "}\n", "\t", "m_name", "= ", "; "};
+		byte[] data = new byte[size];
+		int ix = 0;
+		while(ix < size) {
+			String w = words[r.nextInt(words.length)];
+			for(int i = 0; i < w.length() && ix < size; i++)
+				data[ix++] = (byte) w.charAt(i);
+		}
+		return data;
+	}
+
+	/**
+	 * Create a source tree for zipping with compressible, incompressible, empty and big files.
+	 */
+	static File createSource(File src, Random r) throws IOException {
+		for(int i = 0; i < 50; i++)
+			write(new File(src, "to/etc/util/C" + i + ".class"), text(r, 1000 + i * 100));
+		write(new File(src, "to/etc/random.bin"), random(r, 100000));
+		write(new File(src, "lib/nested.jar"), text(r, 10000));
+		write(new File(src, "empty.txt"), new byte[0]);
+		write(new File(src, "big.txt"), text(r, ParallelZipWriter.MAX_MEMORY_ENTRY * 3));
+		new File(src, "emptydir").mkdirs();
+		return src;
+	}
+
+	/**
+	 * Check that the zip contains exactly the files and directories in src.
+	 */
+	static void assertZipContains(File zip, File src) throws IOException {
+		Map<String, File> files = new HashMap<String, File>();
+		collect(files, "", src);
+		ZipFile zf = new ZipFile(zip);
+		try {
+			int count = 0;
+			for(Enumeration< ? extends ZipEntry> en = zf.entries(); en.hasMoreElements();) {
+				ZipEntry ze = en.nextElement();
+				File f = files.get(ze.getName());
+				assertNotNull("Unexpected entry " + ze.getName(), f);
+				if(ze.isDirectory())
+					assertTrue(ze.getName(), f.isDirectory());
+				else
+					assertArrayEquals(ze.getName(), read(f), read(zf.getInputStream(ze)));
+				count++;
+			}
+			assertEquals("#entries", files.size(), count);
+		} finally {
+			zf.close();
+		}
+	}
+
+	static private void collect(Map<String, File> map, String base, File dir) {
+		for(File f : dir.listFiles()) {
+			if(f.isFile())
+				map.put(base + f.getName(), f);
+			else {
+				map.put(base + f.getName() + "/", f);
+				collect(map, base + f.getName() + "/", f);
+			}
+		}
+	}
+}
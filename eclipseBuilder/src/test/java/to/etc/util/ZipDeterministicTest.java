@@ -0,0 +1,126 @@
+package to.etc.util;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+import org.junit.*;
+
+/**
+ * Deterministic zips must only depend on the content of the files, and an existing zip must be
+ * left alone exactly when its content did not change.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+public class ZipDeterministicTest {
+	private File m_dir;
+
+	private final Random m_random = new Random(5678);
+
+	@Before
+	public void setUp() throws Exception {
+		m_dir = TestFiles.createTempDir("ziptest");
+	}
+
+	@After
+	public void tearDown() {
+		FileTool.deleteDir(m_dir);
+	}
+
+	/**
+	 * The same content with other timestamps gives the same bytes.
+	 */
+	@Test
+	public void testReproducible() throws Exception {
+		File a = TestFiles.createSource(new File(m_dir, "a"), new Random(1));
+		File b = TestFiles.createSource(new File(m_dir, "b"), new Random(1));
+		new File(b, "to/etc/util/C9.class").setLastModified(System.currentTimeMillis() - 86400000L);
+		new File(b, "lib").setLastModified(System.currentTimeMillis() - 3600000L);
+
+		File za = new File(m_dir, "a.zip");
+		File zb = new File(m_dir, "b.zip");
+		assertTrue(ParallelZipWriter.zip(za, a, 4, true, false));
+		assertTrue(ParallelZipWriter.zip(zb, b, 1, true, false));
+		assertArrayEquals(TestFiles.read(za), TestFiles.read(zb));
+		TestFiles.assertZipContains(za, a);
+	}
+
+	/**
+	 * An unchanged zip is not rewritten, so it keeps its timestamp.
+	 */
+	@Test
+	public void testUnchangedNotRewritten() throws Exception {
+		File src = TestFiles.createSource(new File(m_dir, "src"), m_random);
+		File zip = new File(m_dir, "test.zip");
+		assertTrue(ParallelZipWriter.zip(zip, src, 4, true, false));
+		long time = System.currentTimeMillis() - 3600000L;
+		zip.setLastModified(time);
+		assertFalse(ParallelZipWriter.zip(zip, src, 4, true, false));
+		assertEquals(time, zip.lastModified());
+	}
+
+	/**
+	 * A file whose content changed while its size and timestamp stayed the same must still cause
+	 * the zip to be rewritten.
+	 */
+	@Test
+	public void testSameSizeAndTimeChanged() throws Exception {
+		File src = TestFiles.createSource(new File(m_dir, "src"), m_random);
+		File zip = new File(m_dir, "test.zip");
+		assertTrue(ParallelZipWriter.zip(zip, src, 4, true, false));
+
+		File f = new File(src, "to/etc/util/C5.class");
+		long time = f.lastModified();
+		byte[] data = TestFiles.read(f);
+		data[data.length / 2] ^= 0x20;
+		TestFiles.write(f, data);
+		f.setLastModified(time);
+
+		assertTrue(ParallelZipWriter.zip(zip, src, 4, true, false));
+		TestFiles.assertZipContains(zip, src);
+	}
+
+	/**
+	 * A store-only zip stores all entries, and is rewritten when compression is switched on.
+	 */
+	@Test
+	public void testStoreOnly() throws Exception {
+		File src = TestFiles.createSource(new File(m_dir, "src"), m_random);
+		File zip = new File(m_dir, "test.zip");
+		assertTrue(ParallelZipWriter.zip(zip, src, 4, true, true));
+		assertFalse(ParallelZipWriter.zip(zip, src, 4, true, true));
+		ZipFile zf = new ZipFile(zip);
+		try {
+			for(Enumeration< ? extends ZipEntry> en = zf.entries(); en.hasMoreElements();)
+				assertEquals(ZipEntry.STORED, en.nextElement().getMethod());
+		} finally {
+			zf.close();
+		}
+
+		assertTrue(ParallelZipWriter.zip(zip, src, 4, true, false));
+		zf = new ZipFile(zip);
+		try {
+			assertEquals(ZipEntry.DEFLATED, zf.getEntry("big.txt").getMethod());
+		} finally {
+			zf.close();
+		}
+	}
+
+	/**
+	 * The manifest of an unchanged zip has the hashes of the content.
+	 */
+	@Test
+	public void testManifestOfUnchangedZip() throws Exception {
+		File src = TestFiles.createSource(new File(m_dir, "src"), m_random);
+		File zip = new File(m_dir, "test.zip");
+		assertTrue(ParallelZipWriter.zip(zip, src, 4, true, false));
+		assertNull(ZipManifest.load(zip));
+		assertFalse(ParallelZipWriter.zip(zip, src, 4, true, false, true));
+		ZipManifest zm = ZipManifest.load(zip);
+		assertNotNull(zm);
+		File f = new File(src, "big.txt");
+		assertArrayEquals(FileTool.hashFile(f), zm.getHash(zm.indexOf("big.txt")));
+	}
+}
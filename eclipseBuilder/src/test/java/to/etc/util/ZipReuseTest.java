@@ -0,0 +1,213 @@
+package to.etc.util;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+import org.junit.*;
+
+/**
+ * Reusing the compressed data of the previous version of a deterministic zip must give the same
+ * bytes as a full rebuild, and must never reuse an entry whose content changed.
+ *
+ * @author <a href="mailto:jal@etc.to">Frits Jalvingh</a>
+ */
+public class ZipReuseTest {
+	private File m_dir;
+
+	private final Random m_random = new Random(8765);
+
+	@Before
+	public void setUp() throws Exception {
+		m_dir = TestFiles.createTempDir("ziptest");
+	}
+
+	@After
+	public void tearDown() {
+		FileTool.deleteDir(m_dir);
+	}
+
+	/**
+	 * Entries copied raw from another zip must be readable, between entries that were compressed.
+	 */
+	@Test
+	public void testRawCopy() throws Exception {
+		File src = TestFiles.createSource(new File(m_dir, "src"), m_random);
+		File from = new File(m_dir, "from.zip");
+		ParallelZipWriter.zip(from, src, 4);
+
+		File extra = new File(m_dir, "extra.txt");
+		TestFiles.write(extra, TestFiles.text(m_random, 5000));
+		File zip = new File(m_dir, "copy.zip");
+		ZipDirectory zd = new ZipDirectory(from);
+		try {
+			ParallelZipWriter zw = new ParallelZipWriter(zip, 4);
+			boolean first = true;
+			for(ZipDirectory.Entry e : zd.getEntryList()) {
+				zw.addCopy(zd, e);
+				if(first) {
+					zw.addFile("extra.txt", extra);
+					first = false;
+				}
+			}
+			zw.close();
+		} finally {
+			zd.close();
+		}
+
+		FileTool.copyFile(new File(src, "extra.txt"), extra);
+		TestFiles.assertZipContains(zip, src);
+	}
+
+	/**
+	 * The uncompressed data read by ZipDirectory is the entry's content.
+	 */
+	@Test
+	public void testEntryInputStream() throws Exception {
+		File src = TestFiles.createSource(new File(m_dir, "src"), m_random);
+		File zip = new File(m_dir, "test.zip");
+		ParallelZipWriter.zip(zip, src, 4);
+		ZipDirectory zd = new ZipDirectory(zip);
+		try {
+			for(ZipDirectory.Entry e : zd.getEntryList()) {
+				if(!e.isDirectory())
+					assertArrayEquals(e.getName(), TestFiles.read(new File(src, e.getName())), TestFiles.read(zd.getInputStream(e)));
+			}
+		} finally {
+			zd.close();
+		}
+	}
+
+	@Test
+	public void testReuse() throws Exception {
+		checkReuse(false, false);
+	}
+
+	@Test
+	public void testReuseWithManifest() throws Exception {
+		checkReuse(false, true);
+	}
+
+	@Test
+	public void testReuseStoreOnly() throws Exception {
+		checkReuse(true, false);
+	}
+
+	/**
+	 * A zip that reuses entries of its previous version must be byte-identical to one that is built
+	 * from scratch.
+	 */
+	private void checkReuse(boolean storeOnly, boolean manifest) throws Exception {
+		File src = TestFiles.createSource(new File(m_dir, "src"), m_random);
+		File reused = new File(m_dir, "reused.zip");
+		assertTrue(ParallelZipWriter.zip(reused, src, 4, true, storeOnly, manifest));
+
+		TestFiles.write(new File(src, "to/etc/util/C7.class"), TestFiles.text(m_random, 3000));
+		TestFiles.write(new File(src, "to/etc/util/Added.class"), TestFiles.text(m_random, 2000));
+		new File(src, "to/etc/util/C3.class").delete();
+		assertTrue(ParallelZipWriter.zip(reused, src, 4, true, storeOnly, manifest));
+		assertFalse(new File(m_dir, "reused.zip.previous").exists());
+
+		File full = new File(m_dir, "full.zip");
+		assertTrue(ParallelZipWriter.zip(full, src, 1, true, storeOnly, manifest));
+		assertArrayEquals(TestFiles.read(full), TestFiles.read(reused));
+		TestFiles.assertZipContains(reused, src);
+	}
+
+	/**
+	 * A file that changed to content with the same size and CRC32 must not get the old entry's data,
+	 * whether the proof comes from the manifest, from a manifest kept by the caller or from the old
+	 * entry itself.
+	 */
+	@Test
+	public void testCrcCollisionWithoutManifest() throws Exception {
+		checkCrcCollision(false, false);
+	}
+
+	@Test
+	public void testCrcCollisionWithManifest() throws Exception {
+		checkCrcCollision(true, false);
+	}
+
+	@Test
+	public void testCrcCollisionWithPreviousManifest() throws Exception {
+		checkCrcCollision(true, true);
+	}
+
+	private void checkCrcCollision(boolean manifest, boolean passManifest) throws Exception {
+		File src = TestFiles.createSource(new File(m_dir, "src"), m_random);
+		File f = new File(src, "to/etc/util/C11.class");
+		File zip = new File(m_dir, "test.zip");
+		assertTrue(ParallelZipWriter.zip(zip, src, 4, true, false, manifest));
+		ZipManifest previous = null;
+		if(passManifest) {
+			previous = ZipManifest.load(zip);
+			assertNotNull(previous);
+			ZipManifest.delete(zip);
+		}
+
+		byte[] olddata = TestFiles.read(f);
+		byte[] newdata = crcCollision(olddata);
+		assertFalse(Arrays.equals(olddata, newdata));
+		assertEquals(crc(olddata), crc(newdata));
+		TestFiles.write(f, newdata);
+
+		assertTrue(ParallelZipWriter.zip(zip, src, 4, true, false, manifest, previous));
+		TestFiles.assertZipContains(zip, src);
+	}
+
+	static private long crc(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return crc.getValue();
+	}
+
+	/**
+	 * Return a copy of the data with some bits flipped so that the CRC32 stays the same. CRC32 is
+	 * linear, so a set of bit flips whose CRC effects XOR to zero is found by Gaussian elimination
+	 * over the effects of 40 single bit flips.
+	 */
+	static private byte[] crcCollision(byte[] data) {
+		int n = data.length;
+		long zero = crc(new byte[n]);
+		int start = (n / 2) * 8;
+		int[] pivotValue = new int[32];
+		long[] pivotMask = new long[32];
+		boolean[] used = new boolean[32];
+		for(int i = 0; i < 40; i++) {
+			int pos = start + i;
+			byte[] unit = new byte[n];
+			unit[pos / 8] = (byte) (1 << (pos % 8));
+			int v = (int) (crc(unit) ^ zero);
+			long m = 1L << i;
+			boolean added = false;
+			for(int bit = 31; bit >= 0 && !added; bit--) {
+				if((v & (1 << bit)) == 0)
+					continue;
+				if(!used[bit]) {
+					used[bit] = true;
+					pivotValue[bit] = v;
+					pivotMask[bit] = m;
+					added = true;
+				} else {
+					v ^= pivotValue[bit];
+					m ^= pivotMask[bit];
+				}
+			}
+			if(!added) {
+				//-- v was reduced to zero: the flips in m cancel out.
+				byte[] res = data.clone();
+				for(int b = 0; b < 40; b++) {
+					if((m & (1L << b)) != 0) {
+						int p = start + b;
+						res[p / 8] ^= (byte) (1 << (p % 8));
+					}
+				}
+				return res;
+			}
+		}
+		throw new IllegalStateException("No collision found");
+	}
+}